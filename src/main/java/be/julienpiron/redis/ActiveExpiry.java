@@ -0,0 +1,70 @@
+package be.julienpiron.redis;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Background reclamation of keys with a TTL, modelled on Redis's activeExpireCycle. The expiry
+// index is ordered by deadline, so a cycle only visits keys that are due, in batches, and never
+// past its time budget so a burst of expirations is spread over several cycles.
+public class ActiveExpiry implements Runnable {
+  static final long PERIOD_MILLIS = 100;
+  private static final long BUDGET_NANOS = PERIOD_MILLIS * 1_000_000 / 4;
+  private static final int BATCH_SIZE = 20;
+
+  private final Store store;
+  private final LongAdder cycles = new LongAdder();
+  private final LongAdder cycleNanos = new LongAdder();
+  private final LongAdder timeCapReached = new LongAdder();
+
+  ActiveExpiry(Store store) {
+    this.store = store;
+  }
+
+  @Override
+  public void run() {
+    runCycle(BUDGET_NANOS);
+  }
+
+  int runCycle(long budgetNanos) {
+    long start = System.nanoTime();
+    int expired = 0;
+    int visited;
+
+    try {
+      do {
+        for (visited = 0; visited < BATCH_SIZE; visited++) {
+          String key = store.firstExpiredKey();
+
+          if (key == null) {
+            break;
+          }
+
+          if (store.expireIfNeeded(key)) {
+            expired++;
+          }
+        }
+
+        if (System.nanoTime() - start >= budgetNanos) {
+          timeCapReached.increment();
+          break;
+        }
+      } while (visited == BATCH_SIZE);
+    } finally {
+      cycles.increment();
+      cycleNanos.add(System.nanoTime() - start);
+    }
+
+    return expired;
+  }
+
+  public long cycles() {
+    return cycles.sum();
+  }
+
+  public long cycleMillis() {
+    return cycleNanos.sum() / 1_000_000;
+  }
+
+  public long timeCapReached() {
+    return timeCapReached.sum();
+  }
+}
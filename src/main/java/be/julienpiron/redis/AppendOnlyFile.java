@@ -0,0 +1,424 @@
+package be.julienpiron.redis;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Log of the writes applied to the store, as RESP commands replayed on startup. Store appends the
+// effect of each write under the key lock, so the records of a key are in the order the writes
+// applied. Appending only copies the record into the current batch: a single writer thread takes
+// the whole batch, writes it and fsyncs it once, so concurrent writers share one write and one
+// fsync (group commit) and never wait for the disk under the stripe locks.
+//
+// A rewrite dumps a point in time view of the store as the base of a new log. Records appended
+// since the view was opened are also kept aside, and the writer appends them to the new log before
+// renaming it over the current one.
+public class AppendOnlyFile implements CommandLog, Runnable {
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final long FSYNC_PERIOD_MILLIS = 1000;
+  private static final CompletableFuture<Void> SYNCED = CompletableFuture.completedFuture(null);
+
+  private final Path path;
+  private final FsyncPolicy policy;
+  private final AtomicBoolean rewriting = new AtomicBoolean();
+  private final Logger logger = LoggerFactory.getLogger(AppendOnlyFile.class);
+  // Guarded by this.
+  private Batch current = new Batch();
+  private RESPWriter rewriteBuffer;
+  private Path rewritten;
+  private CompletableFuture<Void> switched;
+  private boolean running;
+  // Writer thread only.
+  private FileChannel channel;
+  private boolean dirty;
+  private long lastFsync;
+  private Thread writer;
+  private volatile boolean lastWriteFailed;
+  private volatile boolean lastRewriteFailed;
+
+  private static class Batch {
+    private final RESPWriter records = new RESPWriter(BUFFER_SIZE);
+    private final CompletableFuture<Void> synced = new CompletableFuture<>();
+    private boolean awaited;
+  }
+
+  public AppendOnlyFile(Path path, FsyncPolicy policy) {
+    this.path = path;
+    this.policy = policy;
+  }
+
+  public boolean exists() {
+    return Files.exists(path);
+  }
+
+  // Replays the log into the store, before it is attached so that replayed writes are not logged
+  // again. A command cut short by a crash is truncated from the file. Returns how many commands
+  // were replayed.
+  public long load(Store store, RequestHandler handler) throws IOException {
+    long start = System.nanoTime();
+    long commands = 0;
+    long keys = 0;
+    long valid;
+
+    try (BufferedInputStream buffered =
+            new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE);
+        CountingInputStream in = new CountingInputStream(buffered)) {
+      if (Dump.startsWithDump(buffered)) {
+        keys = Dump.load(in, store, path.toString());
+      }
+
+      RequestParser parser = new RequestParser(in);
+      Transaction transaction = new Transaction();
+      Request request;
+      valid = in.count();
+
+      while ((request = parser.read()) != null) {
+        if (handler.apply(transaction, request) instanceof RESP.SimpleError error) {
+          logger.warn("Replaying {} failed: {}", request, error.message());
+        }
+
+        commands++;
+
+        // An EXEC cut short by a crash is truncated whole, from its MULTI.
+        if (!transaction.queuing()) {
+          valid = in.count() - parser.buffered();
+        }
+      }
+    }
+
+    long size = Files.size(path);
+
+    if (valid < size) {
+      logger.warn("Truncating an incomplete command of {} bytes from {}", size - valid, path);
+
+      try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+        file.truncate(valid);
+      }
+    }
+
+    logger.info(
+        "Loaded {} keys and replayed {} commands from {} in {} ms",
+        keys,
+        commands,
+        path,
+        (System.nanoTime() - start) / 1_000_000);
+
+    return commands;
+  }
+
+  // A new log whose base is the dump the store was just loaded from. It is in place before the
+  // log is opened, so a restart never finds a log without the dump's keys.
+  public void startFrom(Path dump) throws IOException {
+    Path temp = path.resolveSibling("temp-rewrite-" + path.getFileName());
+    boolean failed = true;
+
+    try {
+      Files.copy(dump, temp, StandardCopyOption.REPLACE_EXISTING);
+
+      try (FileChannel file = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        file.force(false);
+      }
+
+      Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+      failed = false;
+    } finally {
+      if (failed) {
+        deleteTemp(temp);
+      }
+    }
+  }
+
+  public void open() throws IOException {
+    channel =
+        FileChannel.open(
+            path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    lastFsync = System.currentTimeMillis();
+
+    synchronized (this) {
+      running = true;
+    }
+
+    writer = Thread.ofPlatform().name("aof-writer").daemon().start(this);
+  }
+
+  // Writes what is left and fsyncs it.
+  public void close() {
+    synchronized (this) {
+      running = false;
+      notifyAll();
+    }
+
+    if (writer == null) {
+      return;
+    }
+
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public boolean recording() {
+    return true;
+  }
+
+  @Override
+  public synchronized void append(List<String> command) {
+    if (current.records.isEmpty()) {
+      notifyAll();
+    }
+
+    RESP.writeCommand(current.records, command);
+
+    if (rewriteBuffer != null) {
+      RESP.writeCommand(rewriteBuffer, command);
+    }
+  }
+
+  @Override
+  public synchronized void appendAll(List<List<String>> commands) {
+    for (List<String> command : commands) {
+      append(command);
+    }
+  }
+
+  // Completes once the records appended so far are on disk. Only ALWAYS waits for it, the other
+  // policies answer writes right away.
+  synchronized CompletableFuture<Void> sync() {
+    if (policy != FsyncPolicy.ALWAYS || !running) {
+      return SYNCED;
+    }
+
+    current.awaited = true;
+    notifyAll();
+    return current.synced;
+  }
+
+  // BGREWRITEAOF. False when a rewrite, a dump or a full sync already has the store's view.
+  public boolean rewrite(Store store) {
+    if (!store.tryClaimView()) {
+      return false;
+    }
+
+    rewriting.set(true);
+    Thread.ofPlatform().name("aof-rewrite").daemon().start(() -> rewriteClaimed(store));
+    return true;
+  }
+
+  // Rewrites on the calling thread once the view is free. Returns whether the new log is in place.
+  public boolean rewriteNow(Store store) throws InterruptedException {
+    store.claimView();
+    rewriting.set(true);
+    return rewriteClaimed(store);
+  }
+
+  private boolean rewriteClaimed(Store store) {
+    Path temp = path.resolveSibling("temp-rewrite-" + path.getFileName());
+    boolean failed = true;
+
+    try {
+      long start = System.nanoTime();
+      PointInTimeView view = store.openView(this::startRewrite);
+      long keys;
+
+      try {
+        keys = Dump.write(store, view, temp);
+      } finally {
+        store.closeView();
+      }
+
+      switchTo(temp).join();
+      failed = false;
+
+      logger.info(
+          "Rewrote {} with {} keys in {} ms", path, keys, (System.nanoTime() - start) / 1_000_000);
+    } catch (IOException | RuntimeException e) {
+      logger.error("Append only file rewrite failed", e);
+    } finally {
+      stopRewrite();
+      lastRewriteFailed = failed;
+      rewriting.set(false);
+      store.releaseView();
+
+      if (failed) {
+        deleteTemp(temp);
+      }
+    }
+
+    return !failed;
+  }
+
+  private void deleteTemp(Path temp) {
+    try {
+      Files.deleteIfExists(temp);
+    } catch (IOException e) {
+      logger.warn("Deleting {} failed", temp, e);
+    }
+  }
+
+  public boolean rewriteInProgress() {
+    return rewriting.get();
+  }
+
+  public boolean lastRewriteFailed() {
+    return lastRewriteFailed;
+  }
+
+  public boolean lastWriteFailed() {
+    return lastWriteFailed;
+  }
+
+  @Override
+  public void run() {
+    boolean stopping = false;
+
+    while (!stopping) {
+      Batch batch;
+      RESPWriter tail = null;
+      Path base = null;
+      CompletableFuture<Void> switching = null;
+
+      synchronized (this) {
+        try {
+          while (running && !hasWork()) {
+            long untilFsync = untilFsync();
+
+            if (untilFsync <= 0) {
+              break;
+            }
+
+            wait(untilFsync == Long.MAX_VALUE ? 0 : untilFsync);
+          }
+        } catch (InterruptedException e) {
+          running = false;
+        }
+
+        stopping = !running;
+        batch = current;
+        current = new Batch();
+
+        if (switched != null) {
+          tail = rewriteBuffer;
+          base = rewritten;
+          switching = switched;
+          rewriteBuffer = null;
+          rewritten = null;
+          switched = null;
+        }
+      }
+
+      // The batch is also in the rewrite buffer, the new log gets it from there.
+      boolean replaced = switching != null && replaceWith(base, tail, switching);
+
+      try {
+        if (!replaced) {
+          flush(batch, stopping);
+        }
+
+        lastWriteFailed = false;
+        batch.synced.complete(null);
+      } catch (IOException e) {
+        logger.error("Writing the append only file failed: " + e.getMessage());
+        lastWriteFailed = true;
+        batch.synced.completeExceptionally(e);
+      }
+    }
+
+    try {
+      channel.close();
+    } catch (IOException e) {
+      logger.error("Closing the append only file failed: " + e.getMessage());
+    }
+  }
+
+  private boolean hasWork() {
+    return !current.records.isEmpty() || current.awaited || switched != null;
+  }
+
+  // Millis until the next EVERYSEC fsync is due, Long.MAX_VALUE when none is.
+  private long untilFsync() {
+    if (policy != FsyncPolicy.EVERYSEC || !dirty) {
+      return Long.MAX_VALUE;
+    }
+
+    return lastFsync + FSYNC_PERIOD_MILLIS - System.currentTimeMillis();
+  }
+
+  private void flush(Batch batch, boolean closing) throws IOException {
+    while (!batch.records.isEmpty()) {
+      batch.records.writeTo(channel);
+      dirty = true;
+    }
+
+    boolean due =
+        switch (policy) {
+          case ALWAYS -> true;
+          case EVERYSEC -> untilFsync() <= 0;
+          case NO -> false;
+        };
+
+    if (dirty && (due || closing)) {
+      channel.force(false);
+      dirty = false;
+      lastFsync = System.currentTimeMillis();
+    }
+  }
+
+  // Appends the records written during the rewrite to its base and makes it the log. On failure
+  // the current log is kept.
+  private boolean replaceWith(Path base, RESPWriter tail, CompletableFuture<Void> switching) {
+    try {
+      try (FileChannel file = FileChannel.open(base, StandardOpenOption.WRITE)) {
+        file.position(file.size());
+
+        while (!tail.isEmpty()) {
+          tail.writeTo(file);
+        }
+
+        file.force(false);
+      }
+
+      Files.move(base, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      channel.close();
+      channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+      dirty = false;
+      lastFsync = System.currentTimeMillis();
+      switching.complete(null);
+      return true;
+    } catch (IOException e) {
+      switching.completeExceptionally(e);
+      return false;
+    }
+  }
+
+  // Runs while the store holds every stripe lock, so no write is both in the view and kept aside.
+  private synchronized void startRewrite() {
+    rewriteBuffer = new RESPWriter(BUFFER_SIZE);
+  }
+
+  private synchronized CompletableFuture<Void> switchTo(Path base) {
+    if (!running) {
+      throw new IllegalStateException("The append only file is closed");
+    }
+
+    rewritten = base;
+    switched = new CompletableFuture<>();
+    notifyAll();
+    return switched;
+  }
+
+  private synchronized void stopRewrite() {
+    rewriteBuffer = null;
+  }
+}
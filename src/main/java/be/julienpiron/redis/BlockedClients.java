@@ -0,0 +1,195 @@
+package be.julienpiron.redis;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Clients waiting in XREAD BLOCK, indexed by the stream keys they wait on. Clients reading from the
+// same position share a group: a write wakes each group of its key once, the group reads and
+// encodes the reply once, and every member gets the same bytes. Reads with side effects, such as
+// XREADGROUP delivering entries to one consumer, get a group of their own. No thread is parked per
+// blocked client, each member only keeps its own deadline.
+public class BlockedClients {
+  private final Logger logger = LoggerFactory.getLogger(BlockedClients.class);
+  private final ConcurrentHashMap<Position, Group> groups = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Set<Group>> byKey = new ConcurrentHashMap<>();
+  private final AtomicInteger blocked = new AtomicInteger();
+
+  public record Position(List<String> keys, List<StreamId> from, long count) {}
+
+  private class Group {
+    // Null when the group is not shared.
+    private final Position position;
+    private final List<String> keys;
+    private final Supplier<RESPDataType> poll;
+    private final CompletableFuture<RESPDataType> reply = new CompletableFuture<>();
+    // Only changed inside groups.compute for the position.
+    private int members;
+
+    Group(Position position, List<String> keys, Supplier<RESPDataType> poll) {
+      this.position = position;
+      this.keys = keys;
+      this.poll = poll;
+    }
+
+    // Synchronized so that concurrent signals poll once, a poll may consume what it reads.
+    synchronized void tryComplete() {
+      if (reply.isDone()) {
+        return;
+      }
+
+      try {
+        RESPDataType result = poll.get();
+
+        if (result != null) {
+          RESPWriter writer = new RESPWriter();
+          result.write(writer);
+          reply.complete(new RESP.Encoded(writer.toByteArray()));
+        }
+      } catch (IllegalArgumentException e) {
+        reply.complete(RESP.error(e.getMessage()));
+      } catch (RuntimeException e) {
+        // A failing poll fails its own group, not the writer that signalled nor the other groups.
+        logger.error("Polling blocked clients on {} failed", keys, e);
+        reply.complete(RESP.error("internal error: " + e.getClass().getSimpleName()));
+      }
+    }
+
+    // Ends the wait unless a poll already answered it. Synchronized with tryComplete so a poll that
+    // consumes entries is never answered by the timeout instead.
+    synchronized void finish(RESPDataType result) {
+      reply.complete(result);
+    }
+  }
+
+  // poll returns the reply once there is something to read at the position and null until then.
+  // A timeout of 0 waits forever.
+  public CompletableFuture<RESPDataType> block(
+      Position position, Supplier<RESPDataType> poll, long timeoutMillis, RESPDataType onTimeout) {
+    Group group =
+        groups.compute(
+            position,
+            (_, existing) -> {
+              Group joined =
+                  existing != null && !existing.reply.isDone()
+                      ? existing
+                      : new Group(position, position.keys(), poll);
+              joined.members++;
+              return joined;
+            });
+
+    return await(group, timeoutMillis, onTimeout);
+  }
+
+  // Blocks a client alone, for a poll whose reply only belongs to that client.
+  public CompletableFuture<RESPDataType> block(
+      List<String> keys, Supplier<RESPDataType> poll, long timeoutMillis, RESPDataType onTimeout) {
+    Group group = new Group(null, keys, poll);
+    group.members = 1;
+
+    return await(group, timeoutMillis, onTimeout);
+  }
+
+  private CompletableFuture<RESPDataType> await(
+      Group group, long timeoutMillis, RESPDataType onTimeout) {
+    CompletableFuture<RESPDataType> waiting = new CompletableFuture<>();
+    CompletableFuture<RESPDataType> client = new CompletableFuture<>();
+
+    blocked.incrementAndGet();
+
+    for (String key : group.keys) {
+      byKey.compute(
+          key,
+          (_, set) -> {
+            Set<Group> registered = set != null ? set : ConcurrentHashMap.newKeySet();
+            registered.add(group);
+            return registered;
+          });
+    }
+
+    // The client leaves the registry before it gets the reply, and when it cancels the wait.
+    group.reply.whenComplete((reply, _) -> waiting.complete(reply));
+    waiting.whenComplete(
+        (reply, _) -> {
+          leave(group);
+          client.complete(reply);
+        });
+    client.whenComplete((_, _) -> waiting.cancel(false));
+
+    // A write that landed between the caller's first read and the registration is not missed.
+    group.tryComplete();
+
+    if (group.position == null) {
+      // A client alone in its group ends the group itself, so the timeout or a disconnect and a
+      // consuming poll never both happen.
+      client.whenComplete((_, _) -> group.finish(RESP.NULL_ARRAY));
+
+      if (timeoutMillis > 0) {
+        CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS)
+            .execute(() -> group.finish(onTimeout));
+      }
+    } else if (timeoutMillis > 0) {
+      waiting.completeOnTimeout(onTimeout, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    return client;
+  }
+
+  public void signal(String key) {
+    Set<Group> set = byKey.get(key);
+
+    if (set == null) {
+      return;
+    }
+
+    for (Group group : set) {
+      group.tryComplete();
+    }
+  }
+
+  public int size() {
+    return blocked.get();
+  }
+
+  public int groups() {
+    return groups.size();
+  }
+
+  private void leave(Group group) {
+    boolean[] empty = {group.position == null};
+
+    blocked.decrementAndGet();
+
+    if (!empty[0]) {
+      groups.compute(
+          group.position,
+          (_, current) -> {
+            if (--group.members > 0) {
+              return current;
+            }
+
+            empty[0] = true;
+            return current == group ? null : current;
+          });
+    }
+
+    if (!empty[0]) {
+      return;
+    }
+
+    for (String key : group.keys) {
+      byKey.computeIfPresent(
+          key,
+          (_, set) -> {
+            set.remove(group);
+            return set.isEmpty() ? null : set;
+          });
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package be.julienpiron.redis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+public record Command(
+    int id,
+    String name,
+    int arity,
+    Set<Command.Flag> flags,
+    KeyFinder keyFinder,
+    Handler handler) {
+
+  public enum Flag {
+    READONLY,
+    WRITE,
+    BLOCKING,
+    FAST,
+    // MULTI, EXEC, DISCARD, WATCH and UNWATCH act on the client's transaction.
+    TRANSACTION;
+  }
+
+  @FunctionalInterface
+  public interface Handler {
+    RESPDataType handle(RequestHandler handler, Request request) throws InvalidRequestException;
+  }
+
+  @FunctionalInterface
+  public interface KeyFinder {
+    List<String> keys(Request request);
+  }
+
+  // Per server counters, indexed by command id in RequestHandler.
+  public static class Stats {
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final LongAdder rejectedCalls = new LongAdder();
+    private final LongAdder failedCalls = new LongAdder();
+
+    void recordCall(long elapsedNanos) {
+      calls.increment();
+      nanos.add(elapsedNanos);
+    }
+
+    void recordRejected() {
+      rejectedCalls.increment();
+    }
+
+    void recordFailed() {
+      failedCalls.increment();
+    }
+
+    public long calls() {
+      return calls.sum();
+    }
+
+    public long micros() {
+      return nanos.sum() / 1000;
+    }
+
+    public long rejectedCalls() {
+      return rejectedCalls.sum();
+    }
+
+    public long failedCalls() {
+      return failedCalls.sum();
+    }
+  }
+
+  // Arity follows Redis: the count includes the command name, negative means "at least".
+  public boolean acceptsArgCount(int argCount) {
+    int total = argCount + 1;
+    return arity >= 0 ? total == arity : total >= -arity;
+  }
+
+  public boolean is(Flag flag) {
+    return flags.contains(flag);
+  }
+
+  // The connection reads no further until the reply is known: it may block, or it uses the
+  // connection's transaction. Other replies still to come are pipelined behind.
+  public boolean waitsForReply() {
+    return is(Flag.BLOCKING) || is(Flag.TRANSACTION);
+  }
+
+  public List<String> keys(Request request) {
+    return keyFinder.keys(request);
+  }
+
+  // Keys at fixed argument positions, "last" may be negative to count from the end.
+  public static KeyFinder keysAt(int first, int last, int step) {
+    return request -> {
+      int end = last < 0 ? request.argCount() + last : last;
+      List<String> keys = new ArrayList<>();
+
+      for (int i = first; i <= end && i < request.argCount(); i += step) {
+        keys.add(new String(request.arguments().get(i), StandardCharsets.UTF_8));
+      }
+
+      return keys;
+    };
+  }
+
+  public static KeyFinder noKeys() {
+    return _ -> List.of();
+  }
+}
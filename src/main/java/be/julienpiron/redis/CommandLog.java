@@ -0,0 +1,15 @@
+package be.julienpiron.redis;
+
+import java.util.List;
+
+// Receives the effect of every write as a command, see Store.log: the append only file and the
+// replication backlog.
+interface CommandLog {
+  // False while appended commands are dropped, so writers need not build them.
+  boolean recording();
+
+  void append(List<String> command);
+
+  // Appends the commands next to each other, with no other command in between.
+  void appendAll(List<List<String>> commands);
+}
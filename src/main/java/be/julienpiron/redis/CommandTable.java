@@ -0,0 +1,179 @@
+package be.julienpiron.redis;
+
+import static be.julienpiron.redis.Command.Flag.BLOCKING;
+import static be.julienpiron.redis.Command.Flag.FAST;
+import static be.julienpiron.redis.Command.Flag.READONLY;
+import static be.julienpiron.redis.Command.Flag.TRANSACTION;
+import static be.julienpiron.redis.Command.Flag.WRITE;
+import static be.julienpiron.redis.Command.keysAt;
+import static be.julienpiron.redis.Command.noKeys;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+// Static registry of every command the server understands. Lookups hash the raw request bytes
+// case-insensitively into an open-addressing table, so dispatch allocates nothing.
+public final class CommandTable {
+  private static final List<Command> COMMANDS = new ArrayList<>();
+  private static final Command[] SLOTS;
+  private static final byte[][] NAMES;
+  private static final int MASK;
+
+  static {
+    register(
+        "BGREWRITEAOF",
+        1,
+        EnumSet.noneOf(Command.Flag.class),
+        noKeys(),
+        RequestHandler::bgrewriteaof);
+    register("BGSAVE", -1, EnumSet.noneOf(Command.Flag.class), noKeys(), RequestHandler::bgsave);
+    register("DECR", 2, EnumSet.of(WRITE, FAST), keysAt(0, 0, 1), RequestHandler::decr);
+    register("DECRBY", 3, EnumSet.of(WRITE, FAST), keysAt(0, 0, 1), RequestHandler::decrby);
+    register("DEL", -2, EnumSet.of(WRITE), keysAt(0, -1, 1), RequestHandler::del);
+    register("DISCARD", 1, EnumSet.of(TRANSACTION, FAST), noKeys(), RequestHandler::noClient);
+    register("ECHO", 2, EnumSet.of(FAST), noKeys(), RequestHandler::echo);
+    register("EXEC", 1, EnumSet.of(TRANSACTION), noKeys(), RequestHandler::noClient);
+    register("EXISTS", -2, EnumSet.of(READONLY, FAST), keysAt(0, -1, 1), RequestHandler::exists);
+    register("EXPIRE", 3, EnumSet.of(WRITE, FAST), keysAt(0, 0, 1), RequestHandler::expire);
+    register("GET", 2, EnumSet.of(READONLY, FAST), keysAt(0, 0, 1), RequestHandler::get);
+    register("INCR", 2, EnumSet.of(WRITE, FAST), keysAt(0, 0, 1), RequestHandler::incr);
+    register("INCRBY", 3, EnumSet.of(WRITE, FAST), keysAt(0, 0, 1), RequestHandler::incrby);
+    register(
+        "INCRBYFLOAT", 3, EnumSet.of(WRITE, FAST), keysAt(0, 0, 1), RequestHandler::incrbyfloat);
+    register("INFO", -1, EnumSet.noneOf(Command.Flag.class), noKeys(), RequestHandler::info);
+    register("LASTSAVE", 1, EnumSet.of(FAST), noKeys(), RequestHandler::lastsave);
+    register("MGET", -2, EnumSet.of(READONLY, FAST), keysAt(0, -1, 1), RequestHandler::mget);
+    register("MSET", -3, EnumSet.of(WRITE), keysAt(0, -1, 2), RequestHandler::mset);
+    register("MSETNX", -3, EnumSet.of(WRITE), keysAt(0, -1, 2), RequestHandler::msetnx);
+    register("MULTI", 1, EnumSet.of(TRANSACTION, FAST), noKeys(), RequestHandler::noClient);
+    register("PERSIST", 2, EnumSet.of(WRITE, FAST), keysAt(0, 0, 1), RequestHandler::persist);
+    register("PEXPIRE", 3, EnumSet.of(WRITE, FAST), keysAt(0, 0, 1), RequestHandler::pexpire);
+    register("PEXPIREAT", 3, EnumSet.of(WRITE, FAST), keysAt(0, 0, 1), RequestHandler::pexpireat);
+    register("PING", -1, EnumSet.of(FAST), noKeys(), RequestHandler::ping);
+    register("PSYNC", 3, EnumSet.noneOf(Command.Flag.class), noKeys(), RequestHandler::psync);
+    register("PTTL", 2, EnumSet.of(READONLY, FAST), keysAt(0, 0, 1), RequestHandler::pttl);
+    register("REPLCONF", -1, EnumSet.of(FAST), noKeys(), RequestHandler::replconf);
+    register(
+        "REPLICAOF", 3, EnumSet.noneOf(Command.Flag.class), noKeys(), RequestHandler::replicaof);
+    register("SAVE", 1, EnumSet.noneOf(Command.Flag.class), noKeys(), RequestHandler::save);
+    register("SET", -3, EnumSet.of(WRITE), keysAt(0, 0, 1), RequestHandler::set);
+    register("TTL", 2, EnumSet.of(READONLY, FAST), keysAt(0, 0, 1), RequestHandler::ttl);
+    register("TYPE", 2, EnumSet.of(READONLY, FAST), keysAt(0, 0, 1), RequestHandler::type);
+    register("UNLINK", -2, EnumSet.of(WRITE, FAST), keysAt(0, -1, 1), RequestHandler::del);
+    register("UNWATCH", 1, EnumSet.of(TRANSACTION, FAST), noKeys(), RequestHandler::noClient);
+    register("WAIT", 3, EnumSet.of(BLOCKING), noKeys(), RequestHandler::waitForReplicas);
+    register(
+        "WATCH", -2, EnumSet.of(TRANSACTION, FAST), keysAt(0, -1, 1), RequestHandler::noClient);
+    register("XACK", -4, EnumSet.of(WRITE, FAST), keysAt(0, 0, 1), RequestHandler::xack);
+    register("XADD", -5, EnumSet.of(WRITE, FAST), keysAt(0, 0, 1), RequestHandler::xadd);
+    register("XCLAIM", -6, EnumSet.of(WRITE), keysAt(0, 0, 1), RequestHandler::xclaim);
+    register("XGROUP", -2, EnumSet.of(WRITE), keysAt(1, 1, 1), RequestHandler::xgroup);
+    register("XPENDING", -3, EnumSet.of(READONLY), keysAt(0, 0, 1), RequestHandler::xpending);
+    register("XRANGE", -4, EnumSet.of(READONLY), keysAt(0, 0, 1), RequestHandler::xrange);
+    register(
+        "XREAD",
+        -4,
+        EnumSet.of(READONLY, BLOCKING),
+        CommandTable::xreadKeys,
+        RequestHandler::xread);
+    register(
+        "XREADGROUP",
+        -7,
+        EnumSet.of(WRITE, BLOCKING),
+        CommandTable::xreadKeys,
+        RequestHandler::xreadgroup);
+    register("XREVRANGE", -4, EnumSet.of(READONLY), keysAt(0, 0, 1), RequestHandler::xrevrange);
+    register("XTRIM", -4, EnumSet.of(WRITE), keysAt(0, 0, 1), RequestHandler::xtrim);
+
+    int size = Integer.highestOneBit(COMMANDS.size() * 4);
+    SLOTS = new Command[size];
+    NAMES = new byte[size][];
+    MASK = size - 1;
+
+    for (Command command : COMMANDS) {
+      byte[] name = command.name().getBytes(StandardCharsets.US_ASCII);
+      int slot = hash(name) & MASK;
+
+      while (SLOTS[slot] != null) {
+        slot = (slot + 1) & MASK;
+      }
+
+      SLOTS[slot] = command;
+      NAMES[slot] = name;
+    }
+  }
+
+  private CommandTable() {}
+
+  private static void register(
+      String name,
+      int arity,
+      EnumSet<Command.Flag> flags,
+      Command.KeyFinder keyFinder,
+      Command.Handler handler) {
+    COMMANDS.add(new Command(COMMANDS.size(), name, arity, flags, keyFinder, handler));
+  }
+
+  public static Command lookup(byte[] name) {
+    int slot = hash(name) & MASK;
+
+    while (SLOTS[slot] != null) {
+      if (equalsIgnoreCase(NAMES[slot], name)) {
+        return SLOTS[slot];
+      }
+      slot = (slot + 1) & MASK;
+    }
+
+    return null;
+  }
+
+  public static List<Command> all() {
+    return Collections.unmodifiableList(COMMANDS);
+  }
+
+  public static int size() {
+    return COMMANDS.size();
+  }
+
+  // Command names are ASCII letters, so setting bit 5 folds case.
+  private static int hash(byte[] name) {
+    int hash = 0;
+
+    for (byte b : name) {
+      hash = 31 * hash + (b | 0x20);
+    }
+
+    return hash ^ (hash >>> 16);
+  }
+
+  private static boolean equalsIgnoreCase(byte[] expected, byte[] actual) {
+    if (expected.length != actual.length) {
+      return false;
+    }
+
+    for (int i = 0; i < expected.length; i++) {
+      if (expected[i] != (actual[i] & ~0x20) && expected[i] != actual[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  // XREAD and XREADGROUP, the keys follow STREAMS and come before as many IDs.
+  private static List<String> xreadKeys(Request request) {
+    List<String> args = request.args();
+
+    for (int i = 0; i < args.size(); i++) {
+      if (request.argEquals(i, "STREAMS")) {
+        int numberOfStreams = (args.size() - i - 1) / 2;
+        return args.subList(i + 1, i + 1 + numberOfStreams);
+      }
+    }
+
+    return List.of();
+  }
+}
@@ -0,0 +1,122 @@
+package be.julienpiron.redis;
+
+public record Config(
+    int port,
+    IOMode ioMode,
+    int ioThreads,
+    String dir,
+    String dbFilename,
+    boolean appendOnly,
+    FsyncPolicy appendFsync,
+    String appendFilename,
+    int shards) {
+
+  public static Config defaults() {
+    return new Config(
+        6379,
+        IOMode.THREADS,
+        Runtime.getRuntime().availableProcessors(),
+        ".",
+        "dump.db",
+        false,
+        FsyncPolicy.EVERYSEC,
+        "appendonly.aof",
+        0);
+  }
+
+  public static Config parse(String[] args) {
+    Config config = defaults();
+
+    for (int i = 0; i < args.length; i++) {
+      String option = args[i];
+
+      if (i + 1 >= args.length) {
+        throw new IllegalArgumentException("Missing value for option: " + option);
+      }
+
+      String value = args[++i];
+
+      config =
+          switch (option) {
+            case "--port" -> config.withPort(Integer.parseInt(value));
+            case "--io-mode" -> config.withIOMode(IOMode.parse(value));
+            case "--io-threads" -> config.withIOThreads(Integer.parseInt(value));
+            case "--dir" -> config.withDir(value);
+            case "--dbfilename" -> config.withDbFilename(value);
+            case "--appendonly" -> config.withAppendOnly(parseYesNo(option, value));
+            case "--appendfsync" -> config.withAppendFsync(FsyncPolicy.parse(value));
+            case "--appendfilename" -> config.withAppendFilename(value);
+            case "--shards" -> config.withShards(Integer.parseInt(value));
+            default -> throw new IllegalArgumentException("Unknown option: " + option);
+          };
+    }
+
+    return config;
+  }
+
+  public Config withPort(int port) {
+    return new Config(
+        port, ioMode, ioThreads, dir, dbFilename, appendOnly, appendFsync, appendFilename, shards);
+  }
+
+  public Config withIOMode(IOMode ioMode) {
+    return new Config(
+        port, ioMode, ioThreads, dir, dbFilename, appendOnly, appendFsync, appendFilename, shards);
+  }
+
+  public Config withIOThreads(int ioThreads) {
+    if (ioThreads < 1) {
+      throw new IllegalArgumentException("io threads must be positive");
+    }
+    return new Config(
+        port, ioMode, ioThreads, dir, dbFilename, appendOnly, appendFsync, appendFilename, shards);
+  }
+
+  public Config withDir(String dir) {
+    return new Config(
+        port, ioMode, ioThreads, dir, dbFilename, appendOnly, appendFsync, appendFilename, shards);
+  }
+
+  public Config withDbFilename(String dbFilename) {
+    if (dbFilename.contains("/")) {
+      throw new IllegalArgumentException("dbfilename can't be a path, just a filename");
+    }
+    return new Config(
+        port, ioMode, ioThreads, dir, dbFilename, appendOnly, appendFsync, appendFilename, shards);
+  }
+
+  public Config withAppendOnly(boolean appendOnly) {
+    return new Config(
+        port, ioMode, ioThreads, dir, dbFilename, appendOnly, appendFsync, appendFilename, shards);
+  }
+
+  public Config withAppendFsync(FsyncPolicy appendFsync) {
+    return new Config(
+        port, ioMode, ioThreads, dir, dbFilename, appendOnly, appendFsync, appendFilename, shards);
+  }
+
+  public Config withAppendFilename(String appendFilename) {
+    if (appendFilename.contains("/")) {
+      throw new IllegalArgumentException("appendfilename can't be a path, just a filename");
+    }
+    return new Config(
+        port, ioMode, ioThreads, dir, dbFilename, appendOnly, appendFsync, appendFilename, shards);
+  }
+
+  // 0 runs commands on the connection threads, the default.
+  public Config withShards(int shards) {
+    if (shards < 0) {
+      throw new IllegalArgumentException("shards can't be negative");
+    }
+    return new Config(
+        port, ioMode, ioThreads, dir, dbFilename, appendOnly, appendFsync, appendFilename, shards);
+  }
+
+  private static boolean parseYesNo(String option, String value) {
+    return switch (value.toLowerCase()) {
+      case "yes" -> true;
+      case "no" -> false;
+      default -> throw new IllegalArgumentException("Expected yes or no for " + option);
+    };
+  }
+}
@@ -0,0 +1,291 @@
+package be.julienpiron.redis;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class Connection {
+  private static final int BUFFER_SIZE = 16 * 1024;
+  private static final int FLUSH_THRESHOLD = 64 * 1024;
+  private static final int MAX_IN_FLIGHT = 1024;
+
+  private final Logger logger = LoggerFactory.getLogger(Connection.class);
+  private final SocketChannel channel;
+  private final SelectionKey key;
+  private final EventLoop loop;
+  private final RequestDecoder decoder = new RequestDecoder();
+  private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+  private final RESPWriter output = new RESPWriter(BUFFER_SIZE);
+  private boolean blocked;
+  private IncrementalReply pending;
+  // Replies in request order, from the first one not known yet, as forwarded to a shard.
+  private final ArrayDeque<RESPDataType> inFlight = new ArrayDeque<>();
+  // The reply the connection stops reading for, see Command.waitsForReply.
+  private RESP.Deferred deferred;
+  private Replication.Handoff handoff;
+  private final Transaction transaction = new Transaction();
+
+  Connection(SocketChannel channel, SelectionKey key, EventLoop loop) {
+    this.channel = channel;
+    this.key = key;
+    this.loop = loop;
+  }
+
+  void onReadable() {
+    try {
+      int needed = decoder.bytesNeeded();
+
+      if (!readBuffer.hasRemaining() || readBuffer.capacity() < needed) {
+        readBuffer = grow(readBuffer, Math.max(BUFFER_SIZE, needed - readBuffer.position()));
+      }
+
+      if (channel.read(readBuffer) == -1) {
+        close();
+        return;
+      }
+
+      processRequests();
+      flush();
+    } catch (IOException | RuntimeException e) {
+      logger.error("Closing connection: " + e.getMessage());
+      close();
+    }
+  }
+
+  void onWritable() {
+    try {
+      flush();
+
+      // A large reply or requests left behind when the output cap was hit are picked up once the
+      // socket has drained.
+      if (output.isEmpty()) {
+        proceed();
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.error("Closing connection: " + e.getMessage());
+      close();
+    }
+  }
+
+  // Answers every request already buffered and leaves the replies in the write buffer so the whole
+  // pipeline goes out in a single write. Past FLUSH_THRESHOLD the replies are written early, and if
+  // the socket cannot take them the remaining requests wait in the read buffer.
+  private void processRequests() throws IOException {
+    readBuffer.flip();
+    try {
+      Request request;
+
+      while (!blocked
+          && pending == null
+          && handoff == null
+          && inFlight.size() < MAX_IN_FLIGHT
+          && (request = decoder.decode(readBuffer)) != null) {
+        logger.debug("Request: {}", request);
+        Command command = CommandTable.lookup(request.name());
+
+        queue(loop.handler().handle(transaction, command, request), command);
+
+        if (!drain()) {
+          break;
+        }
+      }
+    } finally {
+      readBuffer.compact();
+    }
+
+    if (handoff != null) {
+      handOver();
+    }
+  }
+
+  // PSYNC: the follower link is served with blocking IO on a thread of its own, which writes what
+  // is still buffered first. The bytes already read are fed to it before the socket's.
+  private void handOver() {
+    Replication.Handoff link = handoff;
+    byte[] rest = new byte[readBuffer.position()];
+    readBuffer.flip().get(rest);
+    blocked = true;
+    key.cancel();
+
+    // The channel can only switch to blocking once the selector dropped the cancelled key.
+    loop.execute(
+        () -> {
+          try {
+            channel.configureBlocking(true);
+            Socket socket = channel.socket();
+            OutputStream out = socket.getOutputStream();
+            RequestParser in =
+                new RequestParser(
+                    new SequenceInputStream(
+                        new ByteArrayInputStream(rest), socket.getInputStream()));
+
+            Thread.ofVirtual()
+                .name("replica-link")
+                .start(
+                    () -> {
+                      try {
+                        output.writeTo(out);
+                        link.serve(socket.getRemoteSocketAddress().toString(), in, out, channel);
+                      } catch (IOException e) {
+                        logger.error("Closing connection: " + e.getMessage());
+                        close();
+                      }
+                    });
+          } catch (IOException e) {
+            logger.error("Closing connection: " + e.getMessage());
+            close();
+          }
+        });
+  }
+
+  // A reply became known: writes the ones now ready and reads on.
+  private void resume() {
+    if (!key.isValid()) {
+      return;
+    }
+
+    try {
+      proceed();
+    } catch (IOException | RuntimeException e) {
+      logger.error("Closing connection: " + e.getMessage());
+      close();
+    }
+  }
+
+  private void proceed() throws IOException {
+    if (drain()) {
+      processRequests();
+    }
+    flush();
+  }
+
+  // Replies go out in request order, a reply not known yet holds back the ones behind it. The loop
+  // thread never waits for it, the connection resumes once it completes.
+  private void queue(RESPDataType response, Command command) {
+    if (response instanceof RESP.Deferred waiting && !waiting.reply().isDone()) {
+      if (command != null && command.waitsForReply()) {
+        blocked = true;
+        deferred = waiting;
+      }
+
+      waiting.reply().whenComplete((_, _) -> loop.execute(this::resume));
+    } else if (response instanceof Replication.Handoff) {
+      // What follows PSYNC is for the follower link, not for this loop.
+      blocked = true;
+    }
+
+    inFlight.add(response);
+  }
+
+  private void write(RESPDataType response) {
+    logger.debug("Response: {}", response);
+
+    if (response instanceof RESP.Deferred waiting) {
+      write(waiting.value());
+    } else if (response instanceof Replication.Handoff link) {
+      handoff = link;
+    } else if (response instanceof IncrementalReply incremental) {
+      pending = incremental;
+    } else {
+      response.write(output);
+    }
+  }
+
+  // Writes early while more than FLUSH_THRESHOLD is buffered, encoding the pending large reply as
+  // room frees up. Returns false when the socket is full and the rest has to wait for OP_WRITE.
+  private boolean drain() throws IOException {
+    encodeReplies();
+
+    while (output.size() >= FLUSH_THRESHOLD) {
+      output.writeTo(channel);
+
+      if (output.size() >= FLUSH_THRESHOLD) {
+        return false;
+      }
+
+      encodeReplies();
+    }
+
+    return true;
+  }
+
+  // Encodes the replies already known, in order, up to FLUSH_THRESHOLD.
+  private void encodeReplies() {
+    while (output.size() < FLUSH_THRESHOLD) {
+      if (pending != null) {
+        if (!pending.writeSome(output)) {
+          pending = null;
+        }
+      } else if (handoff == null
+          && !inFlight.isEmpty()
+          && !(inFlight.peek() instanceof RESP.Deferred waiting && !waiting.reply().isDone())) {
+        RESPDataType response = inFlight.poll();
+
+        if (response == deferred) {
+          blocked = false;
+          deferred = null;
+        }
+
+        write(response);
+      } else {
+        return;
+      }
+    }
+  }
+
+  private void flush() throws IOException {
+    output.writeTo(channel);
+    updateInterest();
+  }
+
+  // Stop reading while replies are pending so a slow reader cannot make us buffer without bound.
+  private void updateInterest() {
+    if (!key.isValid()) {
+      return;
+    }
+
+    if (!output.isEmpty() || pending != null) {
+      key.interestOps(SelectionKey.OP_WRITE);
+    } else if ((blocked || inFlight.size() >= MAX_IN_FLIGHT) && !readBuffer.hasRemaining()) {
+      key.interestOps(0);
+    } else {
+      // A blocked client is still read, up to the free space in its buffer, so that a client
+      // closing the connection while it waits is noticed.
+      key.interestOps(SelectionKey.OP_READ);
+    }
+  }
+
+  private static ByteBuffer grow(ByteBuffer buffer, int extra) {
+    ByteBuffer grown =
+        ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra));
+    buffer.flip();
+    grown.put(buffer);
+    return grown;
+  }
+
+  void close() {
+    // Drops a blocked XREAD from the registry instead of waiting for an entry or its timeout.
+    for (RESPDataType response : inFlight) {
+      if (response instanceof RESP.Deferred waiting) {
+        waiting.reply().cancel(false);
+      }
+    }
+
+    loop.handler().disconnected(transaction);
+
+    key.cancel();
+    try {
+      channel.close();
+    } catch (IOException e) {
+      logger.error("IOException: " + e.getMessage());
+    }
+  }
+}
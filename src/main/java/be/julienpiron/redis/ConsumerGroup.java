@@ -0,0 +1,275 @@
+package be.julienpiron.redis;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+// A consumer group of a stream: the last ID delivered to the group and its pending entries list
+// (PEL), the entries delivered to a consumer but not acknowledged yet. The PEL is ordered by ID for
+// XPENDING and XACK, and each consumer indexes its own pending entries, so reading a consumer's
+// history or claiming entries never scans the other consumers'. Callers serialize access, Store
+// holds the key lock.
+public class ConsumerGroup {
+  private final TreeMap<StreamId, Pending> pending = new TreeMap<>();
+  private final TreeMap<String, Consumer> consumers = new TreeMap<>();
+  private StreamId lastDelivered;
+
+  private static class Consumer {
+    private final String name;
+    private final TreeMap<StreamId, Pending> pending = new TreeMap<>();
+
+    Consumer(String name) {
+      this.name = name;
+    }
+  }
+
+  private static class Pending {
+    private Consumer owner;
+    private long deliveryTime;
+    private long deliveries;
+
+    Pending(Consumer owner, long deliveryTime) {
+      this.owner = owner;
+      this.deliveryTime = deliveryTime;
+      this.deliveries = 1;
+    }
+  }
+
+  // One entry as reported by XPENDING, idle is in milliseconds.
+  public record PendingEntry(StreamId id, String consumer, long idle, long deliveries) {}
+
+  // XPENDING without a range: pending count, lowest and highest pending IDs, count per consumer.
+  public record Summary(
+      int count, StreamId smallest, StreamId greatest, Map<String, Integer> consumers) {}
+
+  // XCLAIM options, -1 when not given. Idle and time both set the delivery time of claimed entries.
+  public record Claim(long minIdle, long idle, long time, long retryCount, boolean justId) {}
+
+  public ConsumerGroup(StreamId lastDelivered) {
+    this.lastDelivered = lastDelivered;
+  }
+
+  public StreamId lastDelivered() {
+    return lastDelivered;
+  }
+
+  // Records the new entries read by the consumer. With noAck they are not added to the PEL.
+  public void deliver(String name, List<Stream> entries, long now, boolean noAck) {
+    Consumer consumer = consumer(name);
+
+    for (Stream entry : entries) {
+      if (!noAck) {
+        Pending previous = pending.get(entry.id());
+
+        if (previous != null) {
+          previous.owner.pending.remove(entry.id());
+        }
+
+        Pending delivered = new Pending(consumer, now);
+        pending.put(entry.id(), delivered);
+        consumer.pending.put(entry.id(), delivered);
+      }
+
+      lastDelivered = entry.id();
+    }
+  }
+
+  // The consumer's pending IDs after the given one, which count as delivered once more.
+  public List<StreamId> history(String name, StreamId after, long count, long now) {
+    List<StreamId> ids = pendingAfter(name, after, count);
+    redeliver(name, ids, now);
+    return ids;
+  }
+
+  // The consumer's pending IDs after the given one, without changing anything.
+  public List<StreamId> pendingAfter(String name, StreamId after, long count) {
+    Consumer consumer = consumers.get(name);
+    List<StreamId> ids = new ArrayList<>();
+
+    if (consumer == null) {
+      return ids;
+    }
+
+    for (StreamId id : consumer.pending.tailMap(after, false).keySet()) {
+      if (ids.size() >= count) {
+        break;
+      }
+
+      ids.add(id);
+    }
+
+    return ids;
+  }
+
+  // The consumer's pending IDs count as delivered once more.
+  public void redeliver(String name, List<StreamId> ids, long now) {
+    Consumer consumer = consumer(name);
+
+    for (StreamId id : ids) {
+      Pending entry = consumer.pending.get(id);
+      entry.deliveryTime = now;
+      entry.deliveries++;
+    }
+  }
+
+  public boolean ack(StreamId id) {
+    Pending acked = pending.remove(id);
+
+    if (acked == null) {
+      return false;
+    }
+
+    acked.owner.pending.remove(id);
+    return true;
+  }
+
+  public Summary summary() {
+    Map<String, Integer> counts = new TreeMap<>();
+
+    for (Map.Entry<String, Consumer> consumer : consumers.entrySet()) {
+      if (!consumer.getValue().pending.isEmpty()) {
+        counts.put(consumer.getKey(), consumer.getValue().pending.size());
+      }
+    }
+
+    return pending.isEmpty()
+        ? new Summary(0, null, null, counts)
+        : new Summary(pending.size(), pending.firstKey(), pending.lastKey(), counts);
+  }
+
+  // Pending entries with start <= id <= end, of one consumer when a name is given.
+  public List<PendingEntry> pending(
+      StreamId start, StreamId end, long count, String name, long minIdle, long now) {
+    List<PendingEntry> result = new ArrayList<>();
+    NavigableMap<StreamId, Pending> source = pending;
+
+    if (name != null) {
+      Consumer consumer = consumers.get(name);
+
+      if (consumer == null) {
+        return result;
+      }
+
+      source = consumer.pending;
+    }
+
+    for (Map.Entry<StreamId, Pending> entry : source.subMap(start, true, end, true).entrySet()) {
+      if (result.size() >= count) {
+        break;
+      }
+
+      Pending entryPending = entry.getValue();
+      long idle = now - entryPending.deliveryTime;
+
+      if (idle >= minIdle) {
+        result.add(
+            new PendingEntry(
+                entry.getKey(), entryPending.owner.name, idle, entryPending.deliveries));
+      }
+    }
+
+    return result;
+  }
+
+  // Moves the pending entries idle for at least claim.minIdle() to the consumer and returns their
+  // IDs. Entries that are not pending are skipped.
+  public List<StreamId> claim(String name, List<StreamId> ids, Claim claim, long now) {
+    Consumer consumer = consumer(name);
+    List<StreamId> claimed = new ArrayList<>();
+
+    for (StreamId id : ids) {
+      Pending entry = pending.get(id);
+
+      if (entry == null || now - entry.deliveryTime < claim.minIdle()) {
+        continue;
+      }
+
+      entry.owner.pending.remove(id);
+      entry.owner = consumer;
+      consumer.pending.put(id, entry);
+
+      if (claim.time() >= 0) {
+        entry.deliveryTime = claim.time();
+      } else {
+        entry.deliveryTime = now - Math.max(0, claim.idle());
+      }
+
+      if (claim.retryCount() >= 0) {
+        entry.deliveries = claim.retryCount();
+      } else if (!claim.justId()) {
+        entry.deliveries++;
+      }
+
+      claimed.add(id);
+    }
+
+    return claimed;
+  }
+
+  public int consumerCount() {
+    return consumers.size();
+  }
+
+  ConsumerGroup copy() {
+    ConsumerGroup copy = new ConsumerGroup(lastDelivered);
+
+    for (String name : consumers.keySet()) {
+      copy.consumer(name);
+    }
+
+    for (Map.Entry<StreamId, Pending> entry : pending.entrySet()) {
+      Pending value = entry.getValue();
+      copy.restore(entry.getKey(), value.owner.name, value.deliveryTime, value.deliveries);
+    }
+
+    return copy;
+  }
+
+  void write(DataOutput out) throws IOException {
+    Dump.writeId(out, lastDelivered);
+    out.writeInt(consumers.size());
+
+    for (String name : consumers.keySet()) {
+      Dump.writeString(out, name);
+    }
+
+    out.writeInt(pending.size());
+
+    for (Map.Entry<StreamId, Pending> entry : pending.entrySet()) {
+      Dump.writeId(out, entry.getKey());
+      Dump.writeString(out, entry.getValue().owner.name);
+      out.writeLong(entry.getValue().deliveryTime);
+      out.writeLong(entry.getValue().deliveries);
+    }
+  }
+
+  static ConsumerGroup read(DataInput in) throws IOException {
+    ConsumerGroup group = new ConsumerGroup(Dump.readId(in));
+
+    for (int i = in.readInt(); i > 0; i--) {
+      group.consumer(Dump.readString(in));
+    }
+
+    for (int i = in.readInt(); i > 0; i--) {
+      group.restore(Dump.readId(in), Dump.readString(in), in.readLong(), in.readLong());
+    }
+
+    return group;
+  }
+
+  private void restore(StreamId id, String name, long deliveryTime, long deliveries) {
+    Pending entry = new Pending(consumer(name), deliveryTime);
+    entry.deliveries = deliveries;
+    pending.put(id, entry);
+    entry.owner.pending.put(id, entry);
+  }
+
+  private Consumer consumer(String name) {
+    return consumers.computeIfAbsent(name, Consumer::new);
+  }
+}
@@ -0,0 +1,409 @@
+package be.julienpiron.redis;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Binary snapshot of the keyspace, split in sections that load in parallel. Layout: MAGIC, VERSION,
+// the sections, END, then the index: the section count, the offset, length, key count and CRC32 of
+// each section, the CRC32 of the index from END on, and last the offset of END. A section is a run
+// of records (type, key, deadline in epoch millis or -1, value) closed by SECTION_END, cut once it
+// passes SECTION_BYTES. Loading a file reads the index from its end, maps every section and decodes
+// them on all cores; a dump read as a stream, such as the base of the append only file, checks the
+// sections against the index once it gets to it.
+//
+// Strings are an int byte length followed by UTF-8 bytes. Streams keep their chunks encoded as they
+// are in memory, see StreamChunk.write.
+public final class Dump {
+  private static final byte[] MAGIC = "JPREDIS".getBytes(StandardCharsets.US_ASCII);
+  private static final int VERSION = 2;
+  private static final int STRING = 0;
+  private static final int STREAM = 1;
+  private static final int SECTION_END = 0xFE;
+  private static final int END = 0xFF;
+  private static final int HEADER_BYTES = MAGIC.length + Integer.BYTES;
+  private static final int SECTION_BYTES = 4 * 1024 * 1024;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private Dump() {}
+
+  private record Section(long offset, long length, long keys, long crc) {}
+
+  // Writes the keys as the view sees them and returns how many were written. Keys that had
+  // expired when the view was opened are left out.
+  static long write(Store store, PointInTimeView view, Path path) throws IOException {
+    try (SectionWriter out =
+        new SectionWriter(new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE))) {
+      for (String key : store.keys()) {
+        out.add(key, store.read(view, key), view.openedAt());
+      }
+
+      // Keys deleted since the view was opened are only left in the view.
+      for (String key : List.copyOf(view.preservedKeys())) {
+        out.add(key, store.read(view, key), view.openedAt());
+      }
+
+      return out.finish();
+    }
+  }
+
+  // Adds the keys of the dump to the store and returns how many were loaded, keys that have
+  // expired since the dump was written are skipped. Sections are decoded in parallel straight from
+  // the mapped file, the store only takes the key lock per key.
+  static long load(Path path, Store store) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      List<Section> index = readIndex(channel, path);
+      int threads = Math.min(index.size(), Runtime.getRuntime().availableProcessors());
+      List<Future<Long>> sections = new ArrayList<>();
+
+      try (ExecutorService pool =
+          Executors.newFixedThreadPool(
+              Math.max(1, threads), Thread.ofPlatform().name("dump-load-", 0).factory())) {
+        for (Section section : index) {
+          sections.add(pool.submit(() -> loadSection(channel, section, store, path)));
+        }
+
+        long keys = 0;
+
+        for (Future<Long> section : sections) {
+          keys += join(section);
+        }
+
+        return keys;
+      }
+    }
+  }
+
+  // Reads exactly one dump from the stream, leaving whatever follows it unread.
+  static long load(InputStream input, Store store, String source) throws IOException {
+    CRC32 crc = new CRC32();
+    DataInputStream in = new DataInputStream(new CheckedInputStream(input, crc));
+    List<Long> sections = new ArrayList<>();
+    long keys = 0;
+
+    readHeader(in, source);
+    crc.reset();
+    int type;
+
+    while ((type = in.readUnsignedByte()) != END) {
+      if (type == SECTION_END) {
+        sections.add(crc.getValue());
+        crc.reset();
+      } else {
+        keys += readKey(in, type, store, source);
+      }
+    }
+
+    List<Section> index = readIndex(in, crc, source);
+    in.readLong();
+
+    if (!index.stream().map(Section::crc).toList().equals(sections)) {
+      throw new IOException("Checksum mismatch in " + source);
+    }
+
+    return keys;
+  }
+
+  // Whether the stream starts with a dump, without consuming anything. Needs mark support.
+  static boolean startsWithDump(InputStream in) throws IOException {
+    byte[] magic = new byte[MAGIC.length];
+    in.mark(MAGIC.length);
+
+    try {
+      return in.readNBytes(magic, 0, magic.length) == magic.length && Arrays.equals(magic, MAGIC);
+    } finally {
+      in.reset();
+    }
+  }
+
+  private static void readHeader(DataInput in, String source) throws IOException {
+    byte[] magic = new byte[MAGIC.length];
+    in.readFully(magic);
+
+    if (!Arrays.equals(magic, MAGIC)) {
+      throw new IOException("Not a dump file: " + source);
+    }
+
+    int version = in.readInt();
+
+    if (version != VERSION) {
+      throw new IOException("Unsupported dump version " + version + " in " + source);
+    }
+  }
+
+  private static List<Section> readIndex(FileChannel channel, Path path) throws IOException {
+    long size = channel.size();
+
+    if (size < HEADER_BYTES + 1 + Integer.BYTES + 2 * Long.BYTES) {
+      throw new IOException("Not a dump file: " + path);
+    }
+
+    ByteBuffer header = read(channel, 0, HEADER_BYTES);
+    readHeader(new DataInputStream(new ByteBufferInputStream(header)), path.toString());
+    long indexOffset = read(channel, size - Long.BYTES, Long.BYTES).getLong();
+
+    if (indexOffset < HEADER_BYTES || indexOffset > size - Long.BYTES) {
+      throw new IOException("Corrupted index in " + path);
+    }
+
+    ByteBuffer index = read(channel, indexOffset, (int) (size - Long.BYTES - indexOffset));
+    CRC32 crc = new CRC32();
+    DataInputStream in =
+        new DataInputStream(new CheckedInputStream(new ByteBufferInputStream(index), crc));
+
+    if (in.readUnsignedByte() != END) {
+      throw new IOException("Corrupted index in " + path);
+    }
+
+    return readIndex(in, crc, path.toString());
+  }
+
+  // Reads the index after END, crc covering END.
+  private static List<Section> readIndex(DataInputStream in, CRC32 crc, String source)
+      throws IOException {
+    List<Section> index = new ArrayList<>();
+
+    for (int i = in.readInt(); i > 0; i--) {
+      index.add(new Section(in.readLong(), in.readLong(), in.readLong(), in.readLong()));
+    }
+
+    long expected = crc.getValue();
+
+    if (in.readLong() != expected) {
+      throw new IOException("Checksum mismatch in " + source);
+    }
+
+    return index;
+  }
+
+  private static ByteBuffer read(FileChannel channel, long position, int length)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+
+    return buffer.flip();
+  }
+
+  private static long loadSection(FileChannel channel, Section section, Store store, Path path)
+      throws IOException {
+    MappedByteBuffer bytes =
+        channel.map(FileChannel.MapMode.READ_ONLY, section.offset(), section.length());
+    CRC32 crc = new CRC32();
+    crc.update(bytes.duplicate());
+
+    if (crc.getValue() != section.crc()) {
+      throw new IOException("Checksum mismatch in " + path + " at " + section.offset());
+    }
+
+    DataInputStream in = new DataInputStream(new ByteBufferInputStream(bytes));
+    long keys = 0;
+    int type;
+
+    while ((type = in.readUnsignedByte()) != SECTION_END) {
+      keys += readKey(in, type, store, path.toString());
+    }
+
+    return keys;
+  }
+
+  private static long join(Future<Long> section) throws IOException {
+    try {
+      return section.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while loading");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException io) {
+        throw io;
+      }
+
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private static int readKey(DataInput in, int type, Store store, String source)
+      throws IOException {
+    String key = readString(in);
+    long deadline = in.readLong();
+    StoreEntry entry =
+        switch (type) {
+          case STRING -> StringValue.of(readString(in));
+          case STREAM -> StreamEntry.read(in);
+          default -> throw new IOException("Unknown entry type " + type + " in " + source);
+        };
+
+    return store.restore(key, entry, deadline) ? 1 : 0;
+  }
+
+  private static int writeKey(
+      DataOutputStream out, String key, PointInTimeView.Image image, long openedAt)
+      throws IOException {
+    if (image == null || image.entry() == null) {
+      return 0;
+    }
+
+    if (image.deadline() != ExpiryIndex.NO_DEADLINE && openedAt > image.deadline()) {
+      return 0;
+    }
+
+    if (image.entry() instanceof StringValue string) {
+      out.writeByte(STRING);
+      writeString(out, key);
+      out.writeLong(image.deadline());
+      writeString(out, string.value());
+    } else if (image.entry() instanceof StreamEntry stream) {
+      out.writeByte(STREAM);
+      writeString(out, key);
+      out.writeLong(image.deadline());
+      stream.write(out);
+    } else {
+      throw new IllegalStateException("Cannot dump a " + image.entry().type());
+    }
+
+    return 1;
+  }
+
+  // Buffers one section to know its length and checksum before writing it.
+  private static class SectionWriter implements AutoCloseable {
+    private final CRC32 crc = new CRC32();
+    private final DataOutputStream file;
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(SECTION_BYTES + 1);
+    private final DataOutputStream section = new DataOutputStream(bytes);
+    private final List<Section> index = new ArrayList<>();
+    private long offset = HEADER_BYTES;
+    private long sectionKeys;
+    private long keys;
+
+    SectionWriter(OutputStream out) throws IOException {
+      file = new DataOutputStream(new CheckedOutputStream(out, crc));
+      file.write(MAGIC);
+      file.writeInt(VERSION);
+    }
+
+    void add(String key, PointInTimeView.Image image, long openedAt) throws IOException {
+      sectionKeys += writeKey(section, key, image, openedAt);
+
+      if (bytes.size() >= SECTION_BYTES) {
+        flushSection();
+      }
+    }
+
+    // Writes the index and returns how many keys were written.
+    long finish() throws IOException {
+      flushSection();
+      crc.reset();
+      file.writeByte(END);
+      file.writeInt(index.size());
+
+      for (Section written : index) {
+        file.writeLong(written.offset());
+        file.writeLong(written.length());
+        file.writeLong(written.keys());
+        file.writeLong(written.crc());
+      }
+
+      file.writeLong(crc.getValue());
+      file.writeLong(offset);
+      return keys;
+    }
+
+    private void flushSection() throws IOException {
+      if (sectionKeys == 0) {
+        return;
+      }
+
+      section.writeByte(SECTION_END);
+      crc.reset();
+      bytes.writeTo(file);
+      index.add(new Section(offset, bytes.size(), sectionKeys, crc.getValue()));
+      offset += bytes.size();
+      keys += sectionKeys;
+      sectionKeys = 0;
+      bytes.reset();
+    }
+
+    @Override
+    public void close() throws IOException {
+      file.close();
+    }
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+
+      int read = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, read);
+      return read;
+    }
+  }
+
+  static void writeString(DataOutput out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static String readString(DataInput in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  static void writeId(DataOutput out, StreamId id) throws IOException {
+    out.writeLong(id.milliseconds());
+    out.writeLong(id.sequence());
+  }
+
+  static StreamId readId(DataInput in) throws IOException {
+    return new StreamId(in.readLong(), in.readLong());
+  }
+}
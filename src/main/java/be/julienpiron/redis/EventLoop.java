@@ -0,0 +1,106 @@
+package be.julienpiron.redis;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class EventLoop implements Runnable {
+  private final Logger logger = LoggerFactory.getLogger(EventLoop.class);
+  private final Selector selector;
+  private final RequestHandler handler;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private volatile boolean running;
+
+  EventLoop(RequestHandler handler) throws IOException {
+    this.selector = Selector.open();
+    this.handler = handler;
+    this.running = true;
+  }
+
+  RequestHandler handler() {
+    return handler;
+  }
+
+  void register(SocketChannel channel) {
+    execute(
+        () -> {
+          try {
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key, this));
+          } catch (IOException e) {
+            logger.error("IOException: " + e.getMessage());
+            try {
+              channel.close();
+            } catch (IOException _) {
+            }
+          }
+        });
+  }
+
+  // Runs the task on the loop thread, which is the only one allowed to touch its connections.
+  void execute(Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (running) {
+        selector.select();
+
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+          task.run();
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+
+          Connection connection = (Connection) key.attachment();
+
+          if (key.isValid() && key.isReadable()) {
+            connection.onReadable();
+          }
+
+          if (key.isValid() && key.isWritable()) {
+            connection.onWritable();
+          }
+        }
+      }
+    } catch (IOException | ClosedSelectorException e) {
+      logger.error("Event loop stopped: " + e.getMessage());
+    } finally {
+      closeAll();
+    }
+  }
+
+  private void closeAll() {
+    try {
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() instanceof Connection connection) {
+          connection.close();
+        }
+      }
+      selector.close();
+    } catch (IOException | ClosedSelectorException e) {
+      logger.error("IOException: " + e.getMessage());
+    }
+  }
+
+  void stop() {
+    running = false;
+    selector.wakeup();
+  }
+}
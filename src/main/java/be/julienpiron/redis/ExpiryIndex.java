@@ -0,0 +1,65 @@
+package be.julienpiron.redis;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+// Deadlines of every key with a TTL, whatever its type, as epoch millis. Checking a key is a single
+// hash lookup, and keys are also kept ordered by deadline so the expiry cycle only visits keys that
+// are actually due. Callers serialize updates of a given key, Store does it inside map.compute.
+public class ExpiryIndex {
+  public static final long NO_DEADLINE = -1;
+
+  private record Deadline(long at, String key) implements Comparable<Deadline> {
+    @Override
+    public int compareTo(Deadline other) {
+      int byTime = Long.compare(at, other.at);
+      return byTime != 0 ? byTime : key.compareTo(other.key);
+    }
+  }
+
+  private static final Deadline EARLIEST = new Deadline(Long.MIN_VALUE, "");
+
+  private final ConcurrentHashMap<String, Long> deadlines = new ConcurrentHashMap<>();
+  private final ConcurrentSkipListSet<Deadline> queue = new ConcurrentSkipListSet<>();
+
+  public void set(String key, long at) {
+    Long previous = deadlines.put(key, at);
+
+    if (previous != null) {
+      queue.remove(new Deadline(previous, key));
+    }
+
+    queue.add(new Deadline(at, key));
+  }
+
+  public boolean remove(String key) {
+    Long previous = deadlines.remove(key);
+
+    if (previous == null) {
+      return false;
+    }
+
+    queue.remove(new Deadline(previous, key));
+    return true;
+  }
+
+  public long deadline(String key) {
+    Long at = deadlines.get(key);
+    return at == null ? NO_DEADLINE : at;
+  }
+
+  public boolean isExpired(String key, long now) {
+    Long at = deadlines.get(key);
+    return at != null && now > at;
+  }
+
+  // The key with the earliest deadline if it has passed, null otherwise.
+  public String firstExpired(long now) {
+    Deadline first = queue.ceiling(EARLIEST);
+    return first != null && now > first.at() ? first.key() : null;
+  }
+
+  public int size() {
+    return deadlines.size();
+  }
+}
@@ -0,0 +1,223 @@
+package be.julienpiron.redis;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// The link of a follower to its leader, on a thread of its own. Connects as a client, asks for the
+// stream with PSYNC, loads the dump on a full resync, then applies the leader's writes in order and
+// acknowledges the offset it got to. When the link breaks it reconnects and asks to resume from
+// that offset.
+public class Follower implements Runnable {
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final long RETRY_MILLIS = 500;
+  private static final long ACK_PERIOD_MILLIS = 100;
+
+  private final String host;
+  private final int port;
+  private final Store store;
+  private final RequestHandler handler;
+  private final Replication replication;
+  private final Logger logger = LoggerFactory.getLogger(Follower.class);
+  private volatile boolean running = true;
+  private volatile boolean linkUp;
+  private volatile Socket socket;
+  // The leader's history and the offset of the next byte of it to apply.
+  private volatile String leaderId = "?";
+  private volatile long offset = -1;
+
+  Follower(String host, int port, Store store, RequestHandler handler, Replication replication) {
+    this.host = host;
+    this.port = port;
+    this.store = store;
+    this.handler = handler;
+    this.replication = replication;
+  }
+
+  public String host() {
+    return host;
+  }
+
+  public int port() {
+    return port;
+  }
+
+  public boolean linkUp() {
+    return linkUp;
+  }
+
+  public long offset() {
+    return offset;
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      try (Socket link = new Socket(host, port)) {
+        socket = link;
+
+        if (running) {
+          follow(link);
+        }
+      } catch (IOException | RuntimeException e) {
+        if (running) {
+          logger.info("Link to {}:{} broken: {}", host, port, e.getMessage());
+        }
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        linkUp = false;
+      }
+
+      try {
+        Thread.sleep(RETRY_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  void stop() {
+    running = false;
+    Socket link = socket;
+
+    if (link != null) {
+      try {
+        link.close();
+      } catch (IOException e) {
+        logger.debug("IOException: " + e.getMessage());
+      }
+    }
+  }
+
+  private void follow(Socket link) throws IOException, InterruptedException {
+    CountingInputStream in =
+        new CountingInputStream(new BufferedInputStream(link.getInputStream(), BUFFER_SIZE));
+    OutputStream out = link.getOutputStream();
+
+    send(out, "PING");
+    readLine(in);
+    send(out, "REPLCONF", "capa", "psync2");
+    readLine(in);
+    send(out, "PSYNC", leaderId, Long.toString(offset));
+
+    String[] reply = readLine(in).split(" ");
+
+    if (reply[0].equals("+FULLRESYNC") && reply.length == 3) {
+      String size = readLine(in);
+      long start = System.nanoTime();
+
+      // A dump or rewrite reading the view now would see a mix of our keys and the leader's.
+      store.claimView();
+      long keys;
+
+      try {
+        store.clear();
+        keys = Dump.load(in, store, host + ":" + port);
+      } finally {
+        store.releaseView();
+      }
+
+      leaderId = reply[1];
+      offset = Long.parseLong(reply[2]);
+
+      // Acknowledged only once a restart would load the leader's data set.
+      while (!replication.replaced()) {
+        if (!running) {
+          return;
+        }
+
+        logger.warn("Retrying the rewrite of the append only file after the full resync");
+        Thread.sleep(RETRY_MILLIS);
+      }
+
+      logger.info(
+          "Full resync from {}:{}: {} keys ({} bytes) in {} ms",
+          host,
+          port,
+          keys,
+          size.substring(1),
+          (System.nanoTime() - start) / 1_000_000);
+    } else if (reply[0].equals("+CONTINUE")) {
+      logger.info("Resumed from {}:{} at offset {}", host, port, offset);
+    } else {
+      throw new IOException("Unexpected reply to PSYNC: " + String.join(" ", reply));
+    }
+
+    linkUp = true;
+    apply(in, out);
+  }
+
+  private void apply(CountingInputStream in, OutputStream out) throws IOException {
+    RequestParser parser = new RequestParser(in);
+    Transaction transaction = new Transaction();
+    long base = offset - in.count();
+    long lastAck = 0;
+    Request request;
+
+    send(out, "REPLCONF", "ACK", Long.toString(offset));
+
+    while ((request = parser.read()) != null) {
+      if (handler.apply(transaction, request) instanceof RESP.SimpleError error) {
+        logger.warn("Applying {} failed: {}", request.command(), error.message());
+      }
+
+      // Inside an EXEC the offset stays at its MULTI: nothing of it is applied before its EXEC, a
+      // link lost in between resumes from the MULTI.
+      if (transaction.queuing()) {
+        continue;
+      }
+
+      offset = base + in.count() - parser.buffered();
+
+      // Acknowledged once what arrived is applied, or now and then under a steady stream.
+      long now = System.currentTimeMillis();
+
+      if (parser.buffered() == 0 || now - lastAck >= ACK_PERIOD_MILLIS) {
+        send(out, "REPLCONF", "ACK", Long.toString(offset));
+        lastAck = now;
+      }
+    }
+
+    throw new EOFException("Leader closed the link");
+  }
+
+  private static void send(OutputStream out, String... command) throws IOException {
+    RESPWriter writer = new RESPWriter();
+    RESP.writeCommand(writer, List.of(command));
+    writer.writeTo(out);
+    out.flush();
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int previous = -1;
+    int current;
+
+    while ((current = in.read()) != -1) {
+      if (previous == '\r' && current == '\n') {
+        byte[] bytes = line.toByteArray();
+        String value = new String(bytes, 0, bytes.length - 1, StandardCharsets.UTF_8);
+
+        if (value.startsWith("-")) {
+          throw new IOException("Leader replied " + value);
+        }
+
+        return value;
+      }
+
+      line.write(current);
+      previous = current;
+    }
+
+    throw new EOFException("Leader closed the link");
+  }
+}
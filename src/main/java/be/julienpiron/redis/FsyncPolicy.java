@@ -0,0 +1,17 @@
+package be.julienpiron.redis;
+
+// appendfsync: when the append only file is flushed to disk. ALWAYS answers a write once it is on
+// disk, EVERYSEC fsyncs at most once a second, NO leaves it to the operating system.
+public enum FsyncPolicy {
+  ALWAYS,
+  EVERYSEC,
+  NO;
+
+  public static FsyncPolicy parse(String input) {
+    try {
+      return FsyncPolicy.valueOf(input.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown appendfsync policy: " + input);
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package be.julienpiron.redis;
+
+public enum IOMode {
+  THREADS,
+  VIRTUAL_THREADS,
+  NIO;
+
+  public static IOMode parse(String input) {
+    try {
+      return IOMode.valueOf(input.toUpperCase().replace('-', '_'));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown io mode: " + input);
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package be.julienpiron.redis;
+
+// A string value that fits a long. Entries are immutable, so the small ones most counters hold are
+// shared instead of allocated on every increment.
+public record IntegerEntry(long number) implements StringValue {
+  static final int SHARED_INTEGERS = 10_000;
+  private static final IntegerEntry[] SHARED = new IntegerEntry[SHARED_INTEGERS];
+
+  static {
+    for (int i = 0; i < SHARED_INTEGERS; i++) {
+      SHARED[i] = new IntegerEntry(i);
+    }
+  }
+
+  static IntegerEntry of(long number) {
+    if (number >= 0 && number < SHARED_INTEGERS) {
+      return SHARED[(int) number];
+    }
+
+    return new IntegerEntry(number);
+  }
+
+  // Null unless the value is exactly how a long prints: no sign but "-", no leading zero, no
+  // spaces, so GET gives back what SET stored.
+  static IntegerEntry parse(String value) {
+    int length = value.length();
+    boolean negative = length > 1 && value.charAt(0) == '-';
+    int start = negative ? 1 : 0;
+
+    if (length == 0 || length > 20 || (value.charAt(start) == '0' && length > 1)) {
+      return null;
+    }
+
+    long number = 0;
+
+    for (int i = start; i < length; i++) {
+      int digit = value.charAt(i) - '0';
+
+      // Accumulate negatively so Long.MIN_VALUE is representable.
+      if (digit < 0 || digit > 9 || number < (Long.MIN_VALUE + digit) / 10) {
+        return null;
+      }
+
+      number = number * 10 - digit;
+    }
+
+    if (!negative && number == Long.MIN_VALUE) {
+      return null;
+    }
+
+    return of(negative ? number : -number);
+  }
+
+  @Override
+  public String value() {
+    return Long.toString(number);
+  }
+}
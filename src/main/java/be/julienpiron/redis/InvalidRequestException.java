@@ -6,6 +6,6 @@ public class InvalidRequestException extends Exception {
   }
 
   public InvalidRequestException(Throwable throwable) {
-    super(throwable);
+    super("syntax error", throwable);
   }
 }
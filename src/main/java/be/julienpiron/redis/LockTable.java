@@ -0,0 +1,64 @@
+package be.julienpiron.redis;
+
+// Fixed set of key locks shared by hashing, so locking a key never allocates and the table does not
+// grow with the keyspace. Keys on the same stripe serialize with each other.
+public class LockTable {
+  public static final int DEFAULT_STRIPES = 1024;
+
+  private final KeyLock[] stripes;
+  private final int mask;
+
+  public LockTable(int stripes) {
+    if (stripes <= 0 || Integer.bitCount(stripes) != 1) {
+      throw new IllegalArgumentException("stripes must be a power of two: " + stripes);
+    }
+
+    this.stripes = new KeyLock[stripes];
+    this.mask = stripes - 1;
+
+    for (int i = 0; i < stripes; i++) {
+      this.stripes[i] = new KeyLock();
+    }
+  }
+
+  private LockTable(KeyLock lock) {
+    this.stripes = new KeyLock[] {lock};
+    this.mask = 0;
+  }
+
+  // For a store only one thread ever touches, as a shard's: every key shares a lock that does
+  // nothing.
+  static LockTable unlocked() {
+    return new LockTable(
+        new KeyLock() {
+          @Override
+          public void lock() {}
+
+          @Override
+          public void unlock() {}
+
+          @Override
+          void lockBatch() {}
+
+          @Override
+          void unlockBatch() {}
+        });
+  }
+
+  public int stripeOf(String key) {
+    int hash = key.hashCode();
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+
+  public KeyLock forKey(String key) {
+    return stripes[stripeOf(key)];
+  }
+
+  public KeyLock stripe(int index) {
+    return stripes[index];
+  }
+
+  public int size() {
+    return stripes.length;
+  }
+}
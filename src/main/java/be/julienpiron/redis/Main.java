@@ -2,7 +2,7 @@ package be.julienpiron.redis;
 
 public class Main {
   public static void main(String[] args) {
-    Server server = new Server(6379);
+    Server server = new Server(Config.parse(args));
     server.start();
   }
 }
@@ -0,0 +1,47 @@
+package be.julienpiron.redis;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+// The keyspace as it was when the view was opened, for writing a dump while clients keep writing.
+// Copy-on-write: the first write to a key the dump has not visited yet keeps an image of the key
+// first, so only keys written during the dump are copied. Both preserve and visit run under the
+// key lock, which orders them for a given key.
+public class PointInTimeView {
+  private final long openedAt;
+  private final ConcurrentHashMap<String, Image> preserved = new ConcurrentHashMap<>();
+  private final Set<String> visited = ConcurrentHashMap.newKeySet();
+
+  // A null entry means that the key did not exist when the view was opened.
+  public record Image(StoreEntry entry, long deadline) {}
+
+  PointInTimeView(long openedAt) {
+    this.openedAt = openedAt;
+  }
+
+  public long openedAt() {
+    return openedAt;
+  }
+
+  void preserve(String key, Supplier<Image> current) {
+    if (!visited.contains(key)) {
+      preserved.computeIfAbsent(key, _ -> current.get());
+    }
+  }
+
+  // The image of the key at the time the view was opened, null when it was already visited.
+  Image visit(String key, Supplier<Image> current) {
+    if (!visited.add(key)) {
+      return null;
+    }
+
+    Image image = preserved.remove(key);
+    return image != null ? image : current.get();
+  }
+
+  // Keys written since the view was opened and not visited yet, including deleted ones.
+  Set<String> preservedKeys() {
+    return preserved.keySet();
+  }
+}
@@ -1,33 +1,187 @@
 package be.julienpiron.redis;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 interface RESPDataType {
-  public String encode();
+  public void write(RESPWriter writer);
+
+  public default String encode() {
+    RESPWriter writer = new RESPWriter();
+    write(writer);
+    return writer.toString();
+  }
+}
+
+// A reply too large to encode in one go. writeSome encodes the next part and returns true while
+// there is more, letting the connection flush in between.
+interface IncrementalReply extends RESPDataType {
+  public boolean writeSome(RESPWriter writer);
+
+  public default void write(RESPWriter writer) {
+    while (writeSome(writer)) {}
+  }
 }
 
 public abstract class RESP {
   public static String CRLF = "\r\n";
 
+  public static final Encoded OK = Encoded.of("+OK\r\n");
+  public static final Encoded PONG = Encoded.of("+PONG\r\n");
+  public static final Encoded NULL_BULK = Encoded.of("$-1\r\n");
+  public static final Encoded NULL_ARRAY = Encoded.of("*-1\r\n");
+  public static final Encoded EMPTY_ARRAY = Encoded.of("*0\r\n");
+  public static final Encoded QUEUED = Encoded.of("+QUEUED\r\n");
+
+  // Error codes kept as they are, any other message gets the generic ERR code.
+  private static final List<String> ERROR_CODES =
+      List.of("ERR ", "NOGROUP ", "BUSYGROUP ", "READONLY ", "EXECABORT ");
+  private static final Logger logger = LoggerFactory.getLogger(RESP.class);
+
+  static SimpleError error(String message) {
+    if (message == null) {
+      return new SimpleError("ERR unknown error");
+    }
+
+    // A simple error is one line, as in Redis.
+    message = message.replace('\r', ' ').replace('\n', ' ');
+
+    for (String code : ERROR_CODES) {
+      if (message.startsWith(code)) {
+        return new SimpleError(message);
+      }
+    }
+
+    return new SimpleError("ERR " + message);
+  }
+
+  // The reply to a deferred one that failed: the message of an invalid request, otherwise only the
+  // exception's class, the rest goes to the log.
+  static SimpleError failure(Throwable error) {
+    Throwable cause =
+        error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+
+    if (cause instanceof IllegalArgumentException) {
+      return error(cause.getMessage());
+    }
+
+    logger.error("Deferred reply failed", cause);
+    return error("internal error: " + cause.getClass().getSimpleName());
+  }
+
+  // Bulk lengths count bytes on the wire, not chars.
+  static int utf8Length(String value) {
+    int length = 0;
+
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (isSurrogatePair(value, i)) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+
+    return length;
+  }
+
+  static boolean isSurrogatePair(String value, int index) {
+    return Character.isHighSurrogate(value.charAt(index))
+        && index + 1 < value.length()
+        && Character.isLowSurrogate(value.charAt(index + 1));
+  }
+
+  // A reply encoded once up front, copied as is into the output buffer. Never mutate the bytes.
+  public record Encoded(byte[] bytes) implements RESPDataType {
+    static Encoded of(String value) {
+      return new Encoded(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void write(RESPWriter writer) {
+      writer.write(bytes);
+    }
+  }
+
+  // A command as clients send it: an array of bulk strings.
+  static void writeCommand(RESPWriter writer, List<String> command) {
+    writer.writeHeader((byte) '*', command.size());
+
+    for (String arg : command) {
+      writeBulkString(writer, arg);
+    }
+  }
+
+  static void writeBulkString(RESPWriter writer, String value) {
+    if (value == null) {
+      writer.writeHeader((byte) '$', -1);
+      return;
+    }
+
+    writer.writeHeader((byte) '$', utf8Length(value)).writeUtf8(value).writeCRLF();
+  }
+
+  // A reply that is not known yet, such as XREAD BLOCK waiting for an entry. Writing it waits for
+  // the value, the event loop instead subscribes to the future. timedOut is the reply to a client
+  // that cannot wait, as inside EXEC, null when the reply cannot be given without waiting.
+  public record Deferred(CompletableFuture<RESPDataType> reply, RESPDataType timedOut)
+      implements RESPDataType {
+    public Deferred(CompletableFuture<RESPDataType> reply) {
+      this(reply, null);
+    }
+
+    public void write(RESPWriter writer) {
+      reply.join().write(writer);
+    }
+
+    // The reply once it is known, an error when it failed or was cancelled.
+    public RESPDataType value() {
+      return reply.handle((value, error) -> error == null ? value : failure(error)).join();
+    }
+  }
+
   public record BulkString(String value) implements RESPDataType {
-    public String encode() {
-      if (value == null) return "$-1" + CRLF;
+    public void write(RESPWriter writer) {
+      writeBulkString(writer, value);
+    }
+  }
+
+  // MGET reply: the values go straight to the writer, null ones as null bulk strings.
+  public record BulkStrings(List<String> values) implements RESPDataType {
+    public void write(RESPWriter writer) {
+      writer.writeHeader((byte) '*', values.size());
 
-      return "$" + value.length() + CRLF + value + CRLF;
+      for (String value : values) {
+        writeBulkString(writer, value);
+      }
     }
   }
 
   public record SimpleString(String value) implements RESPDataType {
-    public String encode() {
-      return "+" + value + CRLF;
+    public void write(RESPWriter writer) {
+      writer.write((byte) '+').writeUtf8(value).writeCRLF();
+    }
+  }
+
+  public record Int(long value) implements RESPDataType {
+    public void write(RESPWriter writer) {
+      writer.writeHeader((byte) ':', value);
     }
   }
 
   public record SimpleError(String message) implements RESPDataType {
-    public String encode() {
-      return "-" + message + CRLF;
+    public void write(RESPWriter writer) {
+      writer.write((byte) '-').writeUtf8(message).writeCRLF();
     }
   }
 
@@ -36,14 +190,17 @@ public abstract class RESP {
       this(Arrays.stream(args).map(BulkString::new).<RESPDataType>map(b -> b).toList());
     }
 
-    public String encode() {
+    public void write(RESPWriter writer) {
       if (items.isEmpty()) {
-        return "*-1" + CRLF;
+        writer.writeHeader((byte) '*', -1);
+        return;
+      }
+
+      writer.writeHeader((byte) '*', items.size());
+
+      for (RESPDataType item : items) {
+        item.write(writer);
       }
-      return "*"
-          + items.size()
-          + CRLF
-          + items.stream().map(item -> item.encode()).collect(Collectors.joining());
     }
   }
 }
@@ -0,0 +1,196 @@
+package be.julienpiron.redis;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+// Growable output buffer RESP values encode themselves into. Strings and integers are written as
+// bytes directly, so a reply is never materialized as a String before reaching the socket.
+public final class RESPWriter {
+  private static final int DEFAULT_CAPACITY = 1024;
+  private static final int CACHED_HEADERS = 1024;
+  private static final byte[][] BULK_HEADERS = headers('$');
+  private static final byte[][] ARRAY_HEADERS = headers('*');
+  private static final byte[][] INTEGER_HEADERS = headers(':');
+
+  private final int initialCapacity;
+  private byte[] buffer;
+  private int start;
+  private int end;
+
+  public RESPWriter() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public RESPWriter(int capacity) {
+    initialCapacity = capacity;
+    buffer = new byte[capacity];
+  }
+
+  public int size() {
+    return end - start;
+  }
+
+  public boolean isEmpty() {
+    return start == end;
+  }
+
+  public RESPWriter write(byte value) {
+    ensureCapacity(1);
+    buffer[end++] = value;
+    return this;
+  }
+
+  public RESPWriter write(byte[] bytes) {
+    ensureCapacity(bytes.length);
+    System.arraycopy(bytes, 0, buffer, end, bytes.length);
+    end += bytes.length;
+    return this;
+  }
+
+  public RESPWriter writeCRLF() {
+    ensureCapacity(2);
+    buffer[end++] = '\r';
+    buffer[end++] = '\n';
+    return this;
+  }
+
+  // Type byte, length and CRLF, e.g. "*3\r\n" or "$5\r\n".
+  public RESPWriter writeHeader(byte type, long length) {
+    byte[][] cache =
+        switch (type) {
+          case '$' -> BULK_HEADERS;
+          case '*' -> ARRAY_HEADERS;
+          case ':' -> INTEGER_HEADERS;
+          default -> null;
+        };
+
+    if (cache != null && length >= 0 && length < CACHED_HEADERS) {
+      return write(cache[(int) length]);
+    }
+
+    return write(type).writeLong(length).writeCRLF();
+  }
+
+  public RESPWriter writeLong(long value) {
+    ensureCapacity(20);
+
+    if (value == Long.MIN_VALUE) {
+      byte[] digits = Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+      System.arraycopy(digits, 0, buffer, end, digits.length);
+      end += digits.length;
+      return this;
+    }
+
+    if (value < 0) {
+      buffer[end++] = '-';
+      value = -value;
+    }
+
+    int digits = 1;
+    for (long rest = value / 10; rest > 0; rest /= 10) {
+      digits++;
+    }
+
+    for (int i = end + digits - 1; i >= end; i--) {
+      buffer[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    end += digits;
+
+    return this;
+  }
+
+  public RESPWriter writeUtf8(String value) {
+    ensureCapacity(RESP.utf8Length(value));
+
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+
+      if (c < 0x80) {
+        buffer[end++] = (byte) c;
+      } else if (c < 0x800) {
+        buffer[end++] = (byte) (0xC0 | (c >> 6));
+        buffer[end++] = (byte) (0x80 | (c & 0x3F));
+      } else if (RESP.isSurrogatePair(value, i)) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        buffer[end++] = (byte) (0xF0 | (codePoint >> 18));
+        buffer[end++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+        buffer[end++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        buffer[end++] = (byte) (0x80 | (codePoint & 0x3F));
+      } else {
+        buffer[end++] = (byte) (0xE0 | (c >> 12));
+        buffer[end++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        buffer[end++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+
+    return this;
+  }
+
+  public void writeTo(OutputStream output) throws IOException {
+    output.write(buffer, start, size());
+    reset();
+  }
+
+  // Writes as much as the channel accepts and keeps the rest for the next call.
+  public int writeTo(WritableByteChannel channel) throws IOException {
+    int written = channel.write(ByteBuffer.wrap(buffer, start, size()));
+    start += written;
+
+    if (start == end) {
+      reset();
+    }
+
+    return written;
+  }
+
+  public byte[] toByteArray() {
+    byte[] bytes = new byte[size()];
+    System.arraycopy(buffer, start, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  @Override
+  public String toString() {
+    return new String(buffer, start, size(), StandardCharsets.UTF_8);
+  }
+
+  // Drops what is buffered. Once drained, give back memory a large reply made us grab.
+  public void reset() {
+    start = end = 0;
+
+    if (buffer.length > initialCapacity * 4) {
+      buffer = new byte[initialCapacity];
+    }
+  }
+
+  private void ensureCapacity(int extra) {
+    if (end + extra <= buffer.length) {
+      return;
+    }
+
+    int size = size();
+    byte[] target =
+        size + extra <= buffer.length / 2
+            ? buffer
+            : new byte[Math.max(buffer.length * 2, size + extra)];
+
+    System.arraycopy(buffer, start, target, 0, size);
+    buffer = target;
+    start = 0;
+    end = size;
+  }
+
+  private static byte[][] headers(char type) {
+    byte[][] headers = new byte[CACHED_HEADERS][];
+
+    for (int i = 0; i < CACHED_HEADERS; i++) {
+      headers[i] = (type + Integer.toString(i) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    return headers;
+  }
+}
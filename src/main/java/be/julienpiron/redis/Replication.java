@@ -0,0 +1,334 @@
+package be.julienpiron.redis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// The leader side of replication, which every server is, and REPLICAOF to follow another server.
+//
+// Writes reach the backlog through Store.log, as the same effect commands the append only file
+// gets. A follower connects as a client and sends PSYNC with the ID of the history it follows and
+// the offset it got to. When that offset is still in the backlog it resumes from there, otherwise
+// it gets a dump of a point in time view cut at a known offset, then the stream from that offset.
+// Followers acknowledge the offset they applied, which is what WAIT counts.
+public class Replication implements CommandLog {
+  static final int BACKLOG_SIZE = 1024 * 1024;
+  private static final int SEND_SIZE = 64 * 1024;
+  private static final long SEND_WAIT_MILLIS = 100;
+
+  private final Store store;
+  private final Path dir;
+  // Null when appendonly is off.
+  private final AppendOnlyFile aof;
+  private final ReplicationBacklog backlog = new ReplicationBacklog(BACKLOG_SIZE);
+  private final RESPWriter encoder = new RESPWriter();
+  private final Set<Replica> replicas = ConcurrentHashMap.newKeySet();
+  private final Set<Waiter> waiters = ConcurrentHashMap.newKeySet();
+  private final Logger logger = LoggerFactory.getLogger(Replication.class);
+  private volatile String id = newId();
+  // Writes only go to the backlog once a follower asked for them. Read without the lock, so that
+  // writers do not line up on it before then.
+  private volatile boolean recording;
+  private volatile Follower follower;
+
+  private static class Replica {
+    private final String address;
+    private volatile long sent;
+    private volatile long acked = -1;
+    private volatile boolean closed;
+
+    Replica(String address) {
+      this.address = address;
+    }
+  }
+
+  private record Waiter(long offset, int replicas, CompletableFuture<Long> done) {}
+
+  public record FollowerInfo(String address, long acked) {}
+
+  // The reply to PSYNC: the connection stops answering requests and hands its socket over.
+  public record Handoff(Replication replication, Request psync) implements RESPDataType {
+    public void write(RESPWriter writer) {
+      throw new IllegalStateException("PSYNC has no reply, the connection is handed over");
+    }
+
+    // Blocks until the follower disconnects. Bytes the connection had already read are in "in".
+    public void serve(String address, RequestParser in, OutputStream out, Closeable link) {
+      replication.serve(psync, address, in, out, link);
+    }
+  }
+
+  public Replication(Store store, Path dir, AppendOnlyFile aof) {
+    this.store = store;
+    this.dir = dir;
+    this.aof = aof;
+  }
+
+  @Override
+  public boolean recording() {
+    return recording;
+  }
+
+  @Override
+  public void append(List<String> command) {
+    if (recording) {
+      appendAll(List.of(command));
+    }
+  }
+
+  @Override
+  public void appendAll(List<List<String>> commands) {
+    if (!recording) {
+      return;
+    }
+
+    synchronized (this) {
+      for (List<String> command : commands) {
+        RESP.writeCommand(encoder, command);
+      }
+
+      backlog.append(encoder.toByteArray());
+      encoder.reset();
+    }
+  }
+
+  public String id() {
+    return id;
+  }
+
+  public long offset() {
+    return backlog.offset();
+  }
+
+  public ReplicationBacklog backlog() {
+    return backlog;
+  }
+
+  public List<FollowerInfo> followers() {
+    return replicas.stream()
+        .map(replica -> new FollowerInfo(replica.address, replica.acked))
+        .toList();
+  }
+
+  // REPLICAOF host port: drops the data set for the leader's and follows it until told otherwise.
+  public synchronized void follow(String host, int port, RequestHandler handler) {
+    stopFollowing();
+    follower = new Follower(host, port, store, handler, this);
+    Thread.ofPlatform().name("replica-link").daemon().start(follower);
+  }
+
+  // REPLICAOF NO ONE: keeps the data set and starts a history of its own.
+  public synchronized void stopFollowing() {
+    if (follower != null) {
+      follower.stop();
+      follower = null;
+      resetHistory();
+    }
+  }
+
+  // Server shutdown: drops the link to the leader and the links of the followers.
+  public synchronized void shutdown() {
+    if (follower != null) {
+      follower.stop();
+      follower = null;
+    }
+
+    for (Replica replica : replicas) {
+      replica.closed = true;
+    }
+  }
+
+  // Null when not following.
+  public Follower follower() {
+    return follower;
+  }
+
+  // Followers of this server sync again from scratch.
+  private void resetHistory() {
+    id = newId();
+
+    for (Replica replica : replicas) {
+      replica.closed = true;
+    }
+  }
+
+  // After a full resync the data set is the leader's, loaded without going through the logs, so the
+  // append only file is rewritten from it. Returns whether that rewrite succeeded.
+  boolean replaced() throws InterruptedException {
+    resetHistory();
+    return aof == null || aof.rewriteNow(store);
+  }
+
+  // WAIT: how many followers acknowledged every write logged so far, once there are enough of them
+  // or when the timeout elapses. A timeout of 0 waits forever.
+  public CompletableFuture<Long> waitFor(int count, long timeoutMillis) {
+    long offset = backlog.offset();
+    long acked = acked(offset);
+
+    if (acked >= count) {
+      return CompletableFuture.completedFuture(acked);
+    }
+
+    Waiter waiter = new Waiter(offset, count, new CompletableFuture<>());
+    waiters.add(waiter);
+    waiter.done().whenComplete((_, _) -> waiters.remove(waiter));
+
+    // An acknowledgement may have come in before the waiter was registered.
+    checkWaiters();
+
+    if (timeoutMillis > 0) {
+      waiter.done().completeOnTimeout(-1L, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    CompletableFuture<Long> result =
+        waiter.done().thenApply(replicas -> replicas >= 0 ? replicas : acked(offset));
+
+    // A client that stops waiting, because it left or runs WAIT inside EXEC, drops its waiter.
+    result.whenComplete((_, _) -> waiter.done().cancel(false));
+    return result;
+  }
+
+  // How many followers acknowledged every write logged so far.
+  public long acknowledged() {
+    return acked(backlog.offset());
+  }
+
+  private void serve(
+      Request psync, String address, RequestParser in, OutputStream out, Closeable link) {
+    Replica replica = new Replica(address);
+
+    try {
+      replica.sent = sync(psync, out);
+      replicas.add(replica);
+      logger.info("Follower {} synced at offset {}", address, replica.sent);
+
+      Thread.ofVirtual().name("replica-acks").start(() -> readAcks(replica, in, link));
+      send(replica, out);
+    } catch (IOException | InvalidRequestException | RuntimeException e) {
+      logger.info("Follower {} disconnected: {}", address, e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      replica.closed = true;
+      replicas.remove(replica);
+      close(link);
+    }
+  }
+
+  // Sends what the follower misses and returns the offset the stream resumes from.
+  private long sync(Request psync, OutputStream out)
+      throws IOException, InvalidRequestException, InterruptedException {
+    String requested = psync.argAsString(0);
+    long from = psync.argAsLong(1);
+
+    // Set before the view is cut: every write after the cut is recorded.
+    recording = true;
+
+    if (requested.equals(id) && backlog.contains(from)) {
+      out.write(("+CONTINUE " + id + "\r\n").getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+      return from;
+    }
+
+    // Waits for a dump or rewrite still reading the view, or a full resync of this server.
+    store.claimView();
+    Path temp = Files.createTempFile(dir, "temp-sync-", ".db");
+
+    try {
+      // Every write is logged under its key lock, so with every lock held the backlog offset is
+      // exactly where the view stands.
+      long[] cut = {0};
+      PointInTimeView view = store.openView(() -> cut[0] = backlog.offset());
+
+      try {
+        Dump.write(store, view, temp);
+      } finally {
+        store.closeView();
+      }
+
+      String header = "+FULLRESYNC " + id + " " + cut[0] + "\r\n$" + Files.size(temp) + "\r\n";
+      out.write(header.getBytes(StandardCharsets.US_ASCII));
+      Files.copy(temp, out);
+      out.flush();
+      return cut[0];
+    } finally {
+      store.releaseView();
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private void send(Replica replica, OutputStream out) throws IOException, InterruptedException {
+    while (!replica.closed) {
+      byte[] bytes = backlog.read(replica.sent, SEND_SIZE, SEND_WAIT_MILLIS);
+
+      if (bytes == null) {
+        throw new IOException("Follower fell behind the backlog");
+      }
+
+      if (bytes.length > 0) {
+        out.write(bytes);
+        out.flush();
+        replica.sent += bytes.length;
+      }
+    }
+  }
+
+  // REPLCONF ACK offset, sent by the follower once it applied what it got.
+  private void readAcks(Replica replica, RequestParser in, Closeable link) {
+    try {
+      Request request;
+
+      while ((request = in.read()) != null) {
+        if (request.command().equals("REPLCONF") && request.argEquals(0, "ACK")) {
+          replica.acked = request.argAsLong(1);
+          checkWaiters();
+        }
+      }
+    } catch (IOException | InvalidRequestException | IllegalArgumentException e) {
+      logger.debug("Follower {} link closed: {}", replica.address, e.getMessage());
+    } finally {
+      replica.closed = true;
+      close(link);
+    }
+  }
+
+  private long acked(long offset) {
+    return replicas.stream().filter(replica -> replica.acked >= offset).count();
+  }
+
+  private void checkWaiters() {
+    for (Waiter waiter : waiters) {
+      long acked = acked(waiter.offset());
+
+      if (acked >= waiter.replicas()) {
+        waiter.done().complete(acked);
+      }
+    }
+  }
+
+  private void close(Closeable link) {
+    try {
+      link.close();
+    } catch (IOException e) {
+      logger.debug("IOException: " + e.getMessage());
+    }
+  }
+
+  private static String newId() {
+    byte[] bytes = new byte[20];
+    new SecureRandom().nextBytes(bytes);
+    return HexFormat.of().formatHex(bytes);
+  }
+}
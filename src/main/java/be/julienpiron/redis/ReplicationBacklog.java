@@ -0,0 +1,67 @@
+package be.julienpiron.redis;
+
+// Ring buffer of the latest bytes of the replication stream. Offsets count every byte ever
+// appended, the ring holds [start(), offset()). A follower that reconnects asking for an offset
+// still in the ring resumes from there (partial resync) instead of loading a whole dump.
+public class ReplicationBacklog {
+  private final byte[] ring;
+  private long offset;
+
+  public ReplicationBacklog(int size) {
+    ring = new byte[size];
+  }
+
+  public synchronized void append(byte[] bytes) {
+    // Only the end of a record larger than the ring is kept.
+    for (int i = Math.max(0, bytes.length - ring.length); i < bytes.length; ) {
+      int position = (int) ((offset + i) % ring.length);
+      int length = Math.min(bytes.length - i, ring.length - position);
+      System.arraycopy(bytes, i, ring, position, length);
+      i += length;
+    }
+
+    offset += bytes.length;
+    notifyAll();
+  }
+
+  // Offset of the next byte appended.
+  public synchronized long offset() {
+    return offset;
+  }
+
+  // Oldest offset still in the ring.
+  public synchronized long start() {
+    return Math.max(0, offset - ring.length);
+  }
+
+  public synchronized boolean contains(long from) {
+    return from >= start() && from <= offset;
+  }
+
+  public int size() {
+    return ring.length;
+  }
+
+  // At most max bytes from the offset on, waiting up to waitMillis while there are none. Null when
+  // the offset has already left the ring.
+  public synchronized byte[] read(long from, int max, long waitMillis) throws InterruptedException {
+    if (from == offset && waitMillis > 0) {
+      wait(waitMillis);
+    }
+
+    if (!contains(from)) {
+      return null;
+    }
+
+    byte[] bytes = new byte[(int) Math.min(max, offset - from)];
+
+    for (int i = 0; i < bytes.length; ) {
+      int position = (int) ((from + i) % ring.length);
+      int length = Math.min(bytes.length - i, ring.length - position);
+      System.arraycopy(ring, position, bytes, i, length);
+      i += length;
+    }
+
+    return bytes;
+  }
+}
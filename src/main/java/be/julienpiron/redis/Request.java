@@ -1,50 +1,122 @@
 package be.julienpiron.redis;
 
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
 import java.util.List;
 
-public record Request(String command, List<String> args) {
-  public Request {
-    command = command.toUpperCase();
-  }
+public record Request(byte[] name, List<byte[]> arguments) {
 
   public String command() {
-    return command;
+    return new String(name, StandardCharsets.US_ASCII).toUpperCase();
+  }
+
+  public int argCount() {
+    return arguments.size();
   }
 
+  // Decoded lazily, element by element, so handlers only pay for the arguments they read.
   public List<String> args() {
-    return args;
+    return new AbstractList<>() {
+      @Override
+      public String get(int index) {
+        return new String(arguments.get(index), StandardCharsets.UTF_8);
+      }
+
+      @Override
+      public int size() {
+        return arguments.size();
+      }
+    };
   }
 
-  public String argAsString(int index) throws InvalidRequestException {
+  public byte[] argAsBytes(int index) throws InvalidRequestException {
     try {
-      return args.get(index);
+      return arguments.get(index);
     } catch (IndexOutOfBoundsException e) {
       throw new InvalidRequestException(e);
     }
   }
 
+  public boolean argEquals(int index, String expected) {
+    if (index >= arguments.size()) {
+      return false;
+    }
+
+    byte[] arg = arguments.get(index);
+
+    if (arg.length != expected.length()) {
+      return false;
+    }
+
+    for (int i = 0; i < arg.length; i++) {
+      if (Character.toUpperCase(arg[i]) != Character.toUpperCase(expected.charAt(i))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  public String argAsString(int index) throws InvalidRequestException {
+    return new String(argAsBytes(index), StandardCharsets.UTF_8);
+  }
+
   public long argAsLong(int index) throws InvalidRequestException {
-    try {
-      return Long.parseLong(args.get(index));
-    } catch (NumberFormatException | IndexOutOfBoundsException e) {
-      throw new InvalidRequestException(e);
+    byte[] arg = argAsBytes(index);
+
+    if (arg.length == 0 || arg.length > 20) {
+      throw new InvalidRequestException("value is not an integer or out of range");
     }
+
+    boolean negative = arg[0] == '-';
+    int start = negative || arg[0] == '+' ? 1 : 0;
+
+    if (start == arg.length) {
+      throw new InvalidRequestException("value is not an integer or out of range");
+    }
+
+    long value = 0;
+
+    for (int i = start; i < arg.length; i++) {
+      int digit = arg[i] - '0';
+
+      if (digit < 0 || digit > 9) {
+        throw new InvalidRequestException("value is not an integer or out of range");
+      }
+
+      // Accumulate negatively so Long.MIN_VALUE is representable.
+      if (value < (Long.MIN_VALUE + digit) / 10) {
+        throw new InvalidRequestException("value is not an integer or out of range");
+      }
+      value = value * 10 - digit;
+    }
+
+    if (!negative && value == Long.MIN_VALUE) {
+      throw new InvalidRequestException("value is not an integer or out of range");
+    }
+
+    return negative ? value : -value;
   }
 
   public double argAsDouble(int index) throws InvalidRequestException {
     try {
-      return Double.parseDouble(args.get(index));
-    } catch (NumberFormatException | IndexOutOfBoundsException e) {
-      throw new InvalidRequestException(e);
+      return Double.parseDouble(argAsString(index));
+    } catch (NumberFormatException e) {
+      throw new InvalidRequestException("value is not a valid float");
     }
   }
 
   public <E extends Enum<E>> E argAsEnum(int index, Class<E> enumClass)
       throws InvalidRequestException {
     try {
-      return Enum.valueOf(enumClass, args.get(index));
-    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+      return Enum.valueOf(enumClass, argAsString(index));
+    } catch (IllegalArgumentException e) {
       throw new InvalidRequestException(e);
     }
   }
+
+  @Override
+  public String toString() {
+    return "Request[" + command() + " " + String.join(" ", args()) + "]";
+  }
 }
@@ -0,0 +1,137 @@
+package be.julienpiron.redis;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Incremental RESP request decoder working on raw bytes. Lengths are parsed in place and each
+// argument is copied once out of the buffer, so no String is created while decoding. Progress
+// through a partially received frame is kept between calls, so bytes already consumed are never
+// scanned again when more input arrives.
+class RequestDecoder {
+  private static final int INCOMPLETE = -2;
+  private static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+  private static final int MAX_ARGUMENTS = 1024 * 1024;
+  // The "*N" header is not trusted for the allocation, the array grows as arguments arrive.
+  private static final int INITIAL_ARGUMENTS = 1024;
+
+  private byte[][] arguments;
+  private int argumentCount;
+  private int argumentIndex;
+  private int bulkLength = -1;
+
+  // Returns null once the buffer is exhausted without completing a request.
+  Request decode(ByteBuffer buffer) {
+    if (arguments == null) {
+      int length = readHeader(buffer, (byte) '*', MAX_ARGUMENTS);
+
+      if (length == INCOMPLETE) {
+        return null;
+      }
+
+      if (length < 1) {
+        throw new IllegalArgumentException("Request must contain a command");
+      }
+
+      arguments = new byte[Math.min(length, INITIAL_ARGUMENTS)][];
+      argumentCount = length;
+      argumentIndex = 0;
+    }
+
+    while (argumentIndex < argumentCount) {
+      if (bulkLength < 0) {
+        int length = readHeader(buffer, (byte) '$', MAX_BULK_LENGTH);
+
+        if (length == INCOMPLETE) {
+          return null;
+        }
+
+        if (length < 0) {
+          throw new IllegalArgumentException("Invalid bulk length");
+        }
+
+        bulkLength = length;
+      }
+
+      if (buffer.remaining() < bulkLength + 2) {
+        return null;
+      }
+
+      byte[] argument = new byte[bulkLength];
+      buffer.get(argument);
+
+      if (buffer.get() != '\r' || buffer.get() != '\n') {
+        throw new IllegalArgumentException("BulkString must end with CRLF");
+      }
+
+      if (argumentIndex == arguments.length) {
+        arguments = Arrays.copyOf(arguments, Math.min(arguments.length * 2, argumentCount));
+      }
+
+      arguments[argumentIndex++] = argument;
+      bulkLength = -1;
+    }
+
+    byte[][] complete = arguments;
+    arguments = null;
+
+    return new Request(complete[0], Arrays.asList(complete).subList(1, argumentCount));
+  }
+
+  // Bytes the buffer must hold before the next call can make progress, so callers can grow it
+  // ahead of large bulk strings.
+  int bytesNeeded() {
+    return bulkLength < 0 ? 0 : bulkLength + 2;
+  }
+
+  private static int readHeader(ByteBuffer buffer, byte type, int max) {
+    int start = buffer.position();
+    int limit = buffer.limit();
+
+    if (start >= limit) {
+      return INCOMPLETE;
+    }
+
+    if (buffer.get(start) != type) {
+      throw new IllegalArgumentException(
+          "Expected '" + (char) type + "' but got: " + (char) buffer.get(start));
+    }
+
+    int i = start + 1;
+    boolean negative = i < limit && buffer.get(i) == '-';
+
+    if (negative) {
+      i++;
+    }
+
+    long value = 0;
+
+    for (; i < limit; i++) {
+      byte b = buffer.get(i);
+
+      if (b == '\r') {
+        if (i + 1 >= limit) {
+          return INCOMPLETE;
+        }
+
+        if (buffer.get(i + 1) != '\n') {
+          throw new IllegalArgumentException("Header must end with CRLF");
+        }
+
+        buffer.position(i + 2);
+        return negative ? -1 : (int) value;
+      }
+
+      if (b < '0' || b > '9') {
+        throw new IllegalArgumentException("Invalid length in header");
+      }
+
+      value = value * 10 + (b - '0');
+
+      if (value > max) {
+        throw new IllegalArgumentException("Length exceeds " + max);
+      }
+    }
+
+    return INCOMPLETE;
+  }
+}
@@ -1,69 +1,778 @@
 package be.julienpiron.redis;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.time.Instant;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class RequestHandler {
+  private static final RESPDataType READONLY =
+      new RESP.SimpleError("READONLY You can't write against a read only replica.");
+
   private Logger logger = LoggerFactory.getLogger(RequestHandler.class);
-  private Request request;
+  // Null in front of shards, each shard has a handler of its own.
   private Store store;
+  // Null when the server runs sharded.
+  private final Saver saver;
+  // Null when appendonly is off.
+  private final AppendOnlyFile aof;
+  // Null when the server does not replicate, as in unit tests.
+  private final Replication replication;
+  // Null unless this handler is in front of shards.
+  private final Shards shards;
+  private final Command.Stats[] stats;
+
+  public RequestHandler(Store store, Saver saver) {
+    this(store, saver, null);
+  }
+
+  public RequestHandler(Store store, Saver saver, AppendOnlyFile aof) {
+    this(store, saver, aof, null);
+  }
+
+  public RequestHandler(
+      Store store, Saver saver, AppendOnlyFile aof, Replication replication) {
+    this(store, saver, aof, replication, null, newStats());
+  }
+
+  // In front of shards: commands with keys are forwarded to the shard owning them.
+  public RequestHandler(Shards shards) {
+    this(null, null, null, null, shards, shards.stats());
+  }
 
-  public RequestHandler(Request request, Store store) {
-    this.request = request;
+  // The handler of one shard, run by the shard's thread only.
+  RequestHandler(Store store, Command.Stats[] stats) {
+    this(store, null, null, null, null, stats);
+  }
+
+  private RequestHandler(
+      Store store,
+      Saver saver,
+      AppendOnlyFile aof,
+      Replication replication,
+      Shards shards,
+      Command.Stats[] stats) {
     this.store = store;
+    this.saver = saver;
+    this.aof = aof;
+    this.replication = replication;
+    this.shards = shards;
+    this.stats = stats;
   }
 
-  public RESPDataType handle() throws InvalidRequestException {
-    logger.debug("Handling request: {}", request);
+  static Command.Stats[] newStats() {
+    Command.Stats[] stats = new Command.Stats[CommandTable.size()];
+
+    for (int i = 0; i < stats.length; i++) {
+      stats[i] = new Command.Stats();
+    }
+
+    return stats;
+  }
+
+  public RESPDataType handle(Request request) {
+    return handle(CommandTable.lookup(request.name()), request);
+  }
+
+  // A request from a client connection, which may be queuing a transaction.
+  public RESPDataType handle(Transaction transaction, Command command, Request request) {
+    if (command != null && command.is(Command.Flag.TRANSACTION)) {
+      return transaction(transaction, command, request);
+    }
+
+    if (!transaction.queuing()) {
+      return handle(command, request);
+    }
+
+    // A command that could never run is refused now and aborts the transaction.
+    RESPDataType refused =
+        command == null
+            ? unknownCommand(request)
+            : !command.acceptsArgCount(request.argCount())
+                ? wrongArgCount(command)
+                : readOnly(command) ? READONLY : null;
+
+    if (refused != null) {
+      transaction.abort();
+      return refused;
+    }
+
+    transaction.queue(command, request);
+    return RESP.QUEUED;
+  }
+
+  public RESPDataType handle(Command command, Request request) {
+    boolean write = command != null && command.is(Command.Flag.WRITE);
+
+    if (readOnly(command)) {
+      return READONLY;
+    }
+
+    if (shards != null && command != null && command.acceptsArgCount(request.argCount())) {
+      RESPDataType forwarded = shards.forward(command, request);
+
+      if (forwarded != null) {
+        return forwarded;
+      }
+    }
+
+    RESPDataType reply = execute(command, request);
+    return write && aof != null ? afterSync(reply) : reply;
+  }
+
+  // The client went away: its watches go with it.
+  public void disconnected(Transaction transaction) {
+    unwatch(transaction);
+    transaction.end();
+  }
+
+  private boolean readOnly(Command command) {
+    return command != null
+        && command.is(Command.Flag.WRITE)
+        && replication != null
+        && replication.follower() != null;
+  }
+
+  private RESPDataType transaction(Transaction transaction, Command command, Request request) {
+    if (!command.acceptsArgCount(request.argCount())) {
+      if (transaction.queuing()) {
+        transaction.abort();
+      }
+
+      return wrongArgCount(command);
+    }
+
+    return switch (command.name()) {
+      case "MULTI" -> {
+        if (transaction.queuing()) {
+          yield RESP.error("MULTI calls can not be nested");
+        }
+
+        transaction.begin();
+        yield RESP.OK;
+      }
+      case "EXEC" -> {
+        if (!transaction.queuing()) {
+          yield RESP.error("EXEC without MULTI");
+        }
+
+        if (transaction.aborted()) {
+          disconnected(transaction);
+          yield new RESP.SimpleError(
+              "EXECABORT Transaction discarded because of previous errors.");
+        }
+
+        yield shards != null ? execOnShard(transaction) : exec(transaction);
+      }
+      case "DISCARD" -> {
+        if (!transaction.queuing()) {
+          yield RESP.error("DISCARD without MULTI");
+        }
+
+        disconnected(transaction);
+        yield RESP.OK;
+      }
+      case "WATCH" -> {
+        if (transaction.queuing()) {
+          yield RESP.error("WATCH inside MULTI is not allowed");
+        }
+
+        List<String> keys = command.keys(request);
 
-    return switch (request.command()) {
-      case "ECHO" -> echo();
-      case "GET" -> get();
-      case "PING" -> ping();
-      case "TYPE" -> type();
-      case "SET" -> set();
-      case "XADD" -> xadd();
-      case "XRANGE" -> xrange();
-      case "XREAD" -> xread();
-      default -> throw new InvalidRequestException("Unknown command: " + request.command());
+        if (shards == null) {
+          yield watch(transaction, keys);
+        }
+
+        // The connection waits for the reply, the shard thread has the transaction meanwhile.
+        int shard = shards.ownerOf(keys);
+        yield shard < 0
+            ? Shards.CROSSSLOT
+            : shards.run(shard, owner -> owner.watch(transaction, keys));
+      }
+      // Inside MULTI it is queued and does nothing, EXEC unwatches every key anyway.
+      default -> {
+        if (transaction.queuing()) {
+          transaction.queue(command, request);
+          yield RESP.QUEUED;
+        }
+
+        unwatch(transaction);
+        yield RESP.OK;
+      }
     };
   }
 
-  private RESPDataType echo() throws InvalidRequestException {
+  private RESPDataType watch(Transaction transaction, List<String> keys) {
+    for (String key : keys) {
+      if (!transaction.isWatching(key)) {
+        transaction.watch(key, store.watch(key));
+      }
+    }
+
+    return RESP.OK;
+  }
+
+  // Every key the transaction names must be on one shard, whose thread runs it.
+  private RESPDataType execOnShard(Transaction transaction) {
+    Set<String> keys = new HashSet<>(transaction.watched().keySet());
+
+    for (Transaction.Queued command : transaction.queued()) {
+      keys.addAll(command.command().keys(command.request()));
+    }
+
+    int shard = shards.ownerOf(keys);
+
+    if (shard < 0) {
+      disconnected(transaction);
+      return Shards.CROSSSLOT;
+    }
+
+    return shards.run(shard, owner -> owner.exec(transaction));
+  }
+
+  // Runs the queued commands as one batch: the locks of every key they and WATCH name are taken
+  // once, in stripe order, so nothing else touches those keys in between and concurrent batches
+  // cannot deadlock. A watched key written since WATCH fails the whole batch with a null reply.
+  private RESPDataType exec(Transaction transaction) {
+    List<Transaction.Queued> queued = transaction.queued();
+    Set<String> keys = new HashSet<>(transaction.watched().keySet());
+    boolean write = false;
+
+    for (Transaction.Queued command : queued) {
+      keys.addAll(command.command().keys(command.request()));
+      write |= command.command().is(Command.Flag.WRITE);
+    }
+
+    RESPDataType reply =
+        store.atomically(
+            keys,
+            () -> {
+              for (Map.Entry<String, Long> watched : transaction.watched().entrySet()) {
+                if (store.version(watched.getKey()) != watched.getValue()) {
+                  return RESP.NULL_ARRAY;
+                }
+              }
+
+              List<RESPDataType> replies = new ArrayList<>();
+
+              for (Transaction.Queued command : queued) {
+                replies.add(
+                    command.command().is(Command.Flag.TRANSACTION)
+                        ? RESP.OK
+                        : settled(execute(command.command(), command.request())));
+              }
+
+              return replies.isEmpty() ? RESP.EMPTY_ARRAY : new RESP.Array(replies);
+            });
+
+    disconnected(transaction);
+    return write && aof != null && reply != RESP.NULL_ARRAY ? afterSync(reply) : reply;
+  }
+
+  // Nothing blocks inside EXEC: a command that would wait answers as if it had timed out.
+  private static RESPDataType settled(RESPDataType reply) {
+    if (!(reply instanceof RESP.Deferred deferred)) {
+      return reply;
+    }
+
+    if (deferred.reply().isDone() || deferred.timedOut() == null) {
+      return deferred.reply().join();
+    }
+
+    deferred.reply().cancel(false);
+    return deferred.timedOut();
+  }
+
+  private void unwatch(Transaction transaction) {
+    for (String key : transaction.watched().keySet()) {
+      (shards != null ? shards.storeOf(key) : store).unwatch(key);
+    }
+
+    transaction.watched().clear();
+  }
+
+  // The transaction commands reached without a client connection, as from handle(Request).
+  RESPDataType noClient(Request request) throws InvalidRequestException {
+    throw new InvalidRequestException("Transactions are only available to client connections");
+  }
+
+  // A write replayed from the append only file or streamed by the leader: neither the read only
+  // check of followers nor the wait for fsync apply. An EXEC arrives framed in MULTI and EXEC, the
+  // commands in between are held in the transaction and applied as one batch on EXEC.
+  public RESPDataType apply(Transaction transaction, Request request) {
+    Command command = CommandTable.lookup(request.name());
+
+    if (command != null && command.is(Command.Flag.TRANSACTION)) {
+      return switch (command.name()) {
+        case "MULTI" -> {
+          transaction.begin();
+          yield RESP.OK;
+        }
+        case "EXEC" ->
+            transaction.queuing() ? applyBatch(transaction) : RESP.error("EXEC without MULTI");
+        default -> RESP.error("Unexpected " + command.name() + " in a replicated stream");
+      };
+    }
+
+    if (transaction.queuing()) {
+      transaction.queue(command, request);
+      return RESP.QUEUED;
+    }
+
+    return execute(command, request);
+  }
+
+  private RESPDataType applyBatch(Transaction transaction) {
+    List<Transaction.Queued> queued = transaction.queued();
+    Set<String> keys = new HashSet<>();
+
+    for (Transaction.Queued command : queued) {
+      if (command.command() != null) {
+        keys.addAll(command.command().keys(command.request()));
+      }
+    }
+
+    RESPDataType reply =
+        store.atomically(
+            keys,
+            () -> {
+              for (Transaction.Queued command : queued) {
+                RESPDataType applied = execute(command.command(), command.request());
+
+                if (applied instanceof RESP.SimpleError error) {
+                  logger.warn("Applying {} failed: {}", command.request(), error.message());
+                }
+              }
+
+              return RESP.OK;
+            });
+
+    transaction.end();
+    return reply;
+  }
+
+  private RESPDataType execute(Command command, Request request) {
+    logger.debug("Handling request: {}", request);
+
+    if (command == null) {
+      return unknownCommand(request);
+    }
+
+    Command.Stats commandStats = stats[command.id()];
+
+    if (!command.acceptsArgCount(request.argCount())) {
+      commandStats.recordRejected();
+      return wrongArgCount(command);
+    }
+
+    long start = System.nanoTime();
+    try {
+      return command.handler().handle(this, request);
+    } catch (InvalidRequestException | IllegalArgumentException e) {
+      commandStats.recordFailed();
+      return RESP.error(e.getMessage());
+    } catch (RuntimeException e) {
+      // A bug in one command fails that command, not the connection or its event loop.
+      logger.error("Handling {} failed", request, e);
+      commandStats.recordFailed();
+      String name = command.name().toLowerCase();
+      return RESP.error("internal error in '" + name + "': " + e.getClass().getSimpleName());
+    } finally {
+      commandStats.recordCall(System.nanoTime() - start);
+    }
+  }
+
+  private static RESPDataType unknownCommand(Request request) {
+    return new RESP.SimpleError(
+        "ERR unknown command '" + new String(request.name(), StandardCharsets.UTF_8) + "'");
+  }
+
+  private static RESPDataType wrongArgCount(Command command) {
+    return new RESP.SimpleError(
+        "ERR wrong number of arguments for '" + command.name().toLowerCase() + "' command");
+  }
+
+  // Under appendfsync always a write is answered once the append only file has it on disk. The
+  // reply waits on the batch its record is in, without holding any lock or thread.
+  private RESPDataType afterSync(RESPDataType reply) {
+    if (reply instanceof RESP.SimpleError) {
+      return reply;
+    }
+
+    if (reply instanceof RESP.Deferred deferred) {
+      return new RESP.Deferred(deferred.reply().thenCompose(this::synced));
+    }
+
+    CompletableFuture<RESPDataType> synced = synced(reply);
+    return synced.isDone() ? synced.join() : new RESP.Deferred(synced);
+  }
+
+  private CompletableFuture<RESPDataType> synced(RESPDataType reply) {
+    return aof.sync()
+        .handle(
+            (_, error) ->
+                error == null
+                    ? reply
+                    : RESP.error("Writing the append only file failed: " + error.getMessage()));
+  }
+
+  RESPDataType bgrewriteaof(Request request) throws InvalidRequestException {
+    if (aof == null) {
+      throw new InvalidRequestException("Append only file is disabled");
+    }
+
+    if (!aof.rewrite(store)) {
+      throw new InvalidRequestException(
+          aof.rewriteInProgress()
+              ? "Background append only file rewriting already in progress"
+              : "A save or a full sync is in progress, try again later");
+    }
+
+    return new RESP.SimpleString("Background append only file rewriting started");
+  }
+
+  RESPDataType psync(Request request) throws InvalidRequestException {
+    return new Replication.Handoff(replication(), request);
+  }
+
+  // Followers send listening-port and capa, nothing to configure for them.
+  RESPDataType replconf(Request request) {
+    return RESP.OK;
+  }
+
+  // REPLICAOF host port | REPLICAOF NO ONE
+  RESPDataType replicaof(Request request) throws InvalidRequestException {
+    if (request.argEquals(0, "NO") && request.argEquals(1, "ONE")) {
+      replication().stopFollowing();
+      return RESP.OK;
+    }
+
+    long port = request.argAsLong(1);
+
+    if (port < 1 || port > 65535) {
+      throw new InvalidRequestException("Invalid master port");
+    }
+
+    replication().follow(request.argAsString(0), (int) port, this);
+    return RESP.OK;
+  }
+
+  // WAIT numreplicas timeout
+  RESPDataType waitForReplicas(Request request) throws InvalidRequestException {
+    long replicas = request.argAsLong(0);
+    long timeout = request.argAsLong(1);
+
+    if (timeout < 0) {
+      throw new InvalidRequestException("timeout is negative");
+    }
+
+    CompletableFuture<Long> acked =
+        replication().waitFor((int) Math.min(replicas, Integer.MAX_VALUE), timeout);
+
+    if (acked.isDone()) {
+      return new RESP.Int(acked.join());
+    }
+
+    CompletableFuture<RESPDataType> reply = acked.thenApply(count -> new RESP.Int(count));
+    reply.whenComplete((_, _) -> acked.cancel(false));
+
+    return new RESP.Deferred(reply, new RESP.Int(replication().acknowledged()));
+  }
+
+  private Saver saver() throws InvalidRequestException {
+    if (saver == null) {
+      throw new InvalidRequestException("Saving is not available with shards");
+    }
+
+    return saver;
+  }
+
+  private Replication replication() throws InvalidRequestException {
+    if (replication == null) {
+      throw new InvalidRequestException("Replication is not available");
+    }
+
+    return replication;
+  }
+
+  RESPDataType bgsave(Request request) throws InvalidRequestException {
+    try {
+      saver().backgroundSave();
+    } catch (IllegalStateException e) {
+      throw new InvalidRequestException(e.getMessage());
+    }
+
+    return new RESP.SimpleString("Background saving started");
+  }
+
+  RESPDataType echo(Request request) throws InvalidRequestException {
     return new RESP.BulkString(request.argAsString(0));
   }
 
-  private RESPDataType get() throws InvalidRequestException {
+  RESPDataType get(Request request) throws InvalidRequestException {
     String value = store.getString(request.argAsString(0));
 
-    if (value == null) return new RESP.BulkString(null);
+    if (value == null) return RESP.NULL_BULK;
 
     return new RESP.BulkString(value);
   }
 
-  private RESPDataType ping() {
-    return new RESP.SimpleString("PONG");
+  RESPDataType incr(Request request) throws InvalidRequestException {
+    return new RESP.Int(store.incrementBy(request.argAsString(0), 1));
+  }
+
+  RESPDataType decr(Request request) throws InvalidRequestException {
+    return new RESP.Int(store.incrementBy(request.argAsString(0), -1));
+  }
+
+  RESPDataType incrby(Request request) throws InvalidRequestException {
+    return new RESP.Int(store.incrementBy(request.argAsString(0), request.argAsLong(1)));
+  }
+
+  RESPDataType decrby(Request request) throws InvalidRequestException {
+    long decrement = request.argAsLong(1);
+
+    if (decrement == Long.MIN_VALUE) {
+      throw new InvalidRequestException("decrement would overflow");
+    }
+
+    return new RESP.Int(store.incrementBy(request.argAsString(0), -decrement));
+  }
+
+  RESPDataType incrbyfloat(Request request) throws InvalidRequestException {
+    double increment = request.argAsDouble(1);
+
+    if (Double.isNaN(increment) || Double.isInfinite(increment)) {
+      throw new InvalidRequestException("value is not a valid float");
+    }
+
+    return new RESP.BulkString(store.incrementByFloat(request.argAsString(0), increment));
+  }
+
+  // Here in front of shards, MGET, MSET, DEL, UNLINK and EXISTS have keys on several shards.
+  RESPDataType mget(Request request) {
+    List<String> keys = new ArrayList<>(request.args());
+
+    if (shards != null) {
+      return new RESP.Deferred(
+          shards.getStrings(keys).thenApply(values -> new RESP.BulkStrings(values)));
+    }
+
+    return new RESP.BulkStrings(store.getStrings(keys));
+  }
+
+  RESPDataType mset(Request request) throws InvalidRequestException {
+    List<String> keysAndValues = keysAndValues(request);
+
+    if (shards != null) {
+      return new RESP.Deferred(shards.setStrings(keysAndValues).thenApply(_ -> RESP.OK));
+    }
+
+    store.setStrings(keysAndValues);
+    return RESP.OK;
+  }
+
+  RESPDataType msetnx(Request request) throws InvalidRequestException {
+    return new RESP.Int(store.setStringsIfAbsent(keysAndValues(request)) ? 1 : 0);
+  }
+
+  private static List<String> keysAndValues(Request request) throws InvalidRequestException {
+    if (request.argCount() % 2 != 0) {
+      throw new InvalidRequestException(
+          "wrong number of arguments for '" + request.command().toLowerCase() + "' command");
+    }
+
+    return new ArrayList<>(request.args());
+  }
+
+  // DEL and UNLINK.
+  RESPDataType del(Request request) {
+    List<String> keys = new ArrayList<>(request.args());
+
+    if (shards != null) {
+      return new RESP.Deferred(shards.count(keys, Store::delete).thenApply(RESP.Int::new));
+    }
+
+    return new RESP.Int(store.delete(keys));
+  }
+
+  RESPDataType exists(Request request) {
+    List<String> keys = new ArrayList<>(request.args());
+
+    if (shards != null) {
+      return new RESP.Deferred(shards.count(keys, Store::exists).thenApply(RESP.Int::new));
+    }
+
+    return new RESP.Int(store.exists(keys));
+  }
+
+  RESPDataType ping(Request request) throws InvalidRequestException {
+    if (request.argCount() > 0) {
+      return new RESP.BulkString(request.argAsString(0));
+    }
+
+    return RESP.PONG;
+  }
+
+  RESPDataType info(Request request) {
+    StringBuilder info = new StringBuilder();
+
+    if (saver != null && wantsSection(request, "persistence")) {
+      info.append("# Persistence")
+          .append(RESP.CRLF)
+          .append("rdb_bgsave_in_progress:")
+          .append(saver.inProgress() ? 1 : 0)
+          .append(RESP.CRLF)
+          .append("rdb_last_save_time:")
+          .append(saver.lastSave())
+          .append(RESP.CRLF)
+          .append("rdb_last_bgsave_status:")
+          .append(saver.lastSaveFailed() ? "err" : "ok")
+          .append(RESP.CRLF)
+          .append("aof_enabled:")
+          .append(aof != null ? 1 : 0)
+          .append(RESP.CRLF)
+          .append("aof_rewrite_in_progress:")
+          .append(aof != null && aof.rewriteInProgress() ? 1 : 0)
+          .append(RESP.CRLF)
+          .append("aof_last_bgrewrite_status:")
+          .append(aof != null && aof.lastRewriteFailed() ? "err" : "ok")
+          .append(RESP.CRLF)
+          .append("aof_last_write_status:")
+          .append(aof != null && aof.lastWriteFailed() ? "err" : "ok")
+          .append(RESP.CRLF);
+    }
+
+    if (replication != null && wantsSection(request, "replication")) {
+      Follower follower = replication.follower();
+      List<Replication.FollowerInfo> followers = replication.followers();
+
+      info.append("# Replication")
+          .append(RESP.CRLF)
+          .append("role:")
+          .append(follower == null ? "master" : "slave")
+          .append(RESP.CRLF);
+
+      if (follower != null) {
+        info.append("master_host:")
+            .append(follower.host())
+            .append(RESP.CRLF)
+            .append("master_port:")
+            .append(follower.port())
+            .append(RESP.CRLF)
+            .append("master_link_status:")
+            .append(follower.linkUp() ? "up" : "down")
+            .append(RESP.CRLF)
+            .append("slave_repl_offset:")
+            .append(follower.offset())
+            .append(RESP.CRLF);
+      }
+
+      info.append("connected_slaves:").append(followers.size()).append(RESP.CRLF);
+
+      for (int i = 0; i < followers.size(); i++) {
+        info.append("slave")
+            .append(i)
+            .append(":address=")
+            .append(followers.get(i).address())
+            .append(",offset=")
+            .append(followers.get(i).acked())
+            .append(RESP.CRLF);
+      }
+
+      info.append("master_replid:")
+          .append(replication.id())
+          .append(RESP.CRLF)
+          .append("master_repl_offset:")
+          .append(replication.offset())
+          .append(RESP.CRLF)
+          .append("repl_backlog_size:")
+          .append(replication.backlog().size())
+          .append(RESP.CRLF)
+          .append("repl_backlog_first_byte_offset:")
+          .append(replication.backlog().start())
+          .append(RESP.CRLF);
+    }
+
+    if (wantsSection(request, "stats")) {
+      info.append("# Stats")
+          .append(RESP.CRLF)
+          .append("expired_keys:")
+          .append(sum(Store::expiredKeys))
+          .append(RESP.CRLF)
+          .append("expired_time_cap_reached_count:")
+          .append(sum(s -> s.activeExpiry().timeCapReached()))
+          .append(RESP.CRLF)
+          .append("expire_cycles:")
+          .append(sum(s -> s.activeExpiry().cycles()))
+          .append(RESP.CRLF)
+          .append("expire_cycle_cpu_milliseconds:")
+          .append(sum(s -> s.activeExpiry().cycleMillis()))
+          .append(RESP.CRLF);
+    }
+
+    if (wantsSection(request, "commandstats")) {
+      info.append("# Commandstats").append(RESP.CRLF);
+
+      for (Command command : CommandTable.all()) {
+        Command.Stats stats = this.stats[command.id()];
+
+        if (stats.calls() == 0 && stats.rejectedCalls() == 0) {
+          continue;
+        }
+
+        info.append("cmdstat_")
+            .append(command.name().toLowerCase())
+            .append(":calls=")
+            .append(stats.calls())
+            .append(",usec=")
+            .append(stats.micros())
+            .append(",usec_per_call=")
+            .append(String.format("%.2f", (double) stats.micros() / Math.max(1, stats.calls())))
+            .append(",rejected_calls=")
+            .append(stats.rejectedCalls())
+            .append(",failed_calls=")
+            .append(stats.failedCalls())
+            .append(RESP.CRLF);
+      }
+    }
+
+    return new RESP.BulkString(info.toString());
+  }
+
+  // A store metric, added up over the shards when there are some.
+  private long sum(ToLongFunction<Store> metric) {
+    return shards != null ? shards.sum(metric) : metric.applyAsLong(store);
+  }
+
+  private static boolean wantsSection(Request request, String section) {
+    return request.argCount() == 0
+        || request.argEquals(0, section)
+        || request.argEquals(0, "all")
+        || request.argEquals(0, "everything");
   }
 
-  private RESPDataType type() throws InvalidRequestException {
+  RESPDataType type(Request request) throws InvalidRequestException {
     String key = request.argAsString(0);
     return new RESP.SimpleString(store.type(key));
   }
 
-  private RESPDataType set() throws InvalidRequestException {
+  RESPDataType set(Request request) throws InvalidRequestException {
     String key = request.argAsString(0);
     String value = request.argAsString(1);
 
-    if (request.args().size() == 2) {
+    if (request.argCount() == 2) {
       store.setString(key, value);
-      return new RESP.SimpleString("OK");
+      return RESP.OK;
     }
 
     enum ExpiryType {
@@ -81,94 +790,528 @@ public class RequestHandler {
           case PX -> Duration.ofNanos((long) (expiryOffset * 1_000_000));
         });
 
-    return new RESP.SimpleString("OK");
+    return RESP.OK;
+  }
+
+  RESPDataType expire(Request request) throws InvalidRequestException {
+    return expire(request, 1000);
+  }
+
+  RESPDataType pexpire(Request request) throws InvalidRequestException {
+    return expire(request, 1);
+  }
+
+  // Absolute deadline in epoch millis, the append only file logs every TTL as one.
+  RESPDataType pexpireat(Request request) throws InvalidRequestException {
+    return new RESP.Int(store.expireAt(request.argAsString(0), request.argAsLong(1)) ? 1 : 0);
+  }
+
+  private RESPDataType expire(Request request, long unitMillis) throws InvalidRequestException {
+    String key = request.argAsString(0);
+
+    try {
+      long millis = Math.multiplyExact(request.argAsLong(1), unitMillis);
+      return new RESP.Int(store.expire(key, millis) ? 1 : 0);
+    } catch (ArithmeticException e) {
+      throw new InvalidRequestException(
+          "invalid expire time in '" + request.command().toLowerCase() + "' command");
+    }
+  }
+
+  RESPDataType ttl(Request request) throws InvalidRequestException {
+    long ttl = store.ttl(request.argAsString(0));
+
+    // Negative values are the -2 (no key) and -1 (no TTL) markers, not durations.
+    return new RESP.Int(ttl < 0 ? ttl : (ttl + 500) / 1000);
+  }
+
+  RESPDataType pttl(Request request) throws InvalidRequestException {
+    return new RESP.Int(store.ttl(request.argAsString(0)));
+  }
+
+  RESPDataType lastsave(Request request) throws InvalidRequestException {
+    return new RESP.Int(saver().lastSave());
   }
 
-  private RESPDataType xadd() throws InvalidRequestException {
+  RESPDataType save(Request request) throws InvalidRequestException {
     try {
-      String key = request.argAsString(0);
-      String id = request.argAsString(1);
+      saver().save();
+    } catch (IllegalStateException e) {
+      throw new InvalidRequestException(e.getMessage());
+    } catch (IOException e) {
+      throw new InvalidRequestException("Saving failed: " + e.getMessage());
+    }
+
+    return RESP.OK;
+  }
+
+  RESPDataType persist(Request request) throws InvalidRequestException {
+    return new RESP.Int(store.persist(request.argAsString(0)) ? 1 : 0);
+  }
+
+  // XADD key [MAXLEN|MINID [=|~] threshold] id field value [field value ...]
+  RESPDataType xadd(Request request) throws InvalidRequestException {
+    String key = request.argAsString(0);
+    StreamEntry.Trim trim = null;
+    int next = 1;
+
+    if (request.argEquals(next, "MAXLEN") || request.argEquals(next, "MINID")) {
+      trim = parseTrim(request, next);
+      next += trimArgCount(request, next);
+    }
+
+    String id = request.argAsString(next);
+    int fields = request.argCount() - next - 1;
+
+    if (fields < 2 || fields % 2 != 0) {
+      throw new InvalidRequestException("wrong number of arguments for 'xadd' command");
+    }
+
+    String generatedId =
+        store.setStreamEntry(key, id, request.args().subList(next + 1, request.argCount()), trim);
+
+    return new RESP.BulkString(generatedId);
+  }
+
+  // XTRIM key MAXLEN|MINID [=|~] threshold
+  RESPDataType xtrim(Request request) throws InvalidRequestException {
+    String key = request.argAsString(0);
 
-      String generatedId =
-          store.setStreamEntry(key, id, request.args().subList(2, request.args().size()));
+    if (request.argCount() != 1 + trimArgCount(request, 1)) {
+      throw new InvalidRequestException("syntax error");
+    }
+
+    return new RESP.Int(store.trimStream(key, parseTrim(request, 1)));
+  }
+
+  private static int trimArgCount(Request request, int index) {
+    return request.argEquals(index + 1, "~") || request.argEquals(index + 1, "=") ? 3 : 2;
+  }
+
+  // MAXLEN|MINID [=|~] threshold, starting at the given argument.
+  private static StreamEntry.Trim parseTrim(Request request, int index)
+      throws InvalidRequestException {
+    boolean approximate = request.argEquals(index + 1, "~");
+    int threshold = index + trimArgCount(request, index) - 1;
 
-      return new RESP.BulkString(generatedId);
-    } catch (IllegalArgumentException e) {
-      return new RESP.SimpleError(e.getMessage());
+    if (request.argEquals(index, "MAXLEN")) {
+      long maxLength = request.argAsLong(threshold);
+
+      if (maxLength < 0) {
+        throw new InvalidRequestException("The MAXLEN argument must be >= 0.");
+      }
+
+      return StreamEntry.Trim.maxLength(maxLength, approximate);
+    }
+
+    if (request.argEquals(index, "MINID")) {
+      StreamId minId = PartialStreamId.parse(request.argAsString(threshold)).from();
+      return StreamEntry.Trim.minId(minId, approximate);
     }
+
+    throw new InvalidRequestException("syntax error");
   }
 
-  private RESPDataType streamToRESP(Map.Entry<StreamId, Stream> entry) {
+  // Entries trimmed from the stream but still pending in a group have no values.
+  private RESPDataType streamToRESP(Stream stream) {
+    if (stream.values() == null) {
+      return new RESP.Array(List.of(new RESP.BulkString(stream.id().toString()), RESP.NULL_ARRAY));
+    }
+
     return new RESP.Array(
         List.of(
-            new RESP.BulkString(entry.getKey().toString()),
+            new RESP.BulkString(stream.id().toString()),
             new RESP.Array(
-                entry.getValue().values().stream()
+                stream.values().stream()
                     .map(RESP.BulkString::new)
                     .collect(Collectors.toList()))));
   }
 
-  private RESPDataType xrange() throws InvalidRequestException {
+  RESPDataType xrange(Request request) throws InvalidRequestException {
+    return xrange(request, false);
+  }
+
+  RESPDataType xrevrange(Request request) throws InvalidRequestException {
+    return xrange(request, true);
+  }
+
+  // XRANGE key start end [COUNT n], XREVRANGE takes end before start.
+  private RESPDataType xrange(Request request, boolean reverse) throws InvalidRequestException {
     String key = request.argAsString(0);
 
-    PartialStreamId from = PartialStreamId.parse(request.argAsString(1));
-    PartialStreamId to = PartialStreamId.parse(request.argAsString(2));
+    PartialStreamId from = PartialStreamId.parse(request.argAsString(reverse ? 2 : 1));
+    PartialStreamId to = PartialStreamId.parse(request.argAsString(reverse ? 1 : 2));
+    long count = Long.MAX_VALUE;
+
+    if (request.argCount() > 3) {
+      if (request.argCount() != 5 || !request.argEquals(3, "COUNT")) {
+        throw new InvalidRequestException("syntax error");
+      }
 
-    SortedMap<StreamId, Stream> filteredStreams = store.getRangeStreams(key, from, to);
+      count = Math.max(0, request.argAsLong(4));
+    }
+
+    StreamEntry.Range range = store.getStreamRange(key, from.from(), to.to(), count, reverse);
+
+    if (range == null) {
+      return RESP.EMPTY_ARRAY;
+    }
+
+    return new StreamRangeReply(range);
+  }
 
+  // XREAD [COUNT n] [BLOCK ms] STREAMS key [key ...] id [id ...]
+  RESPDataType xread(Request request) throws InvalidRequestException {
+    long count = Long.MAX_VALUE;
+    long block = -1;
+    int streams = 0;
+
+    while (!request.argEquals(streams, "STREAMS")) {
+      if (request.argEquals(streams, "COUNT") && streams + 1 < request.argCount()) {
+        long n = request.argAsLong(streams + 1);
+        count = n > 0 ? n : Long.MAX_VALUE;
+      } else if (request.argEquals(streams, "BLOCK") && streams + 1 < request.argCount()) {
+        block = request.argAsLong(streams + 1);
+        if (block < 0) {
+          throw new InvalidRequestException("timeout is negative");
+        }
+      } else {
+        throw new InvalidRequestException("syntax error");
+      }
+      streams += 2;
+    }
+
+    int remaining = request.argCount() - streams - 1;
+
+    if (remaining == 0 || remaining % 2 != 0) {
+      throw new InvalidRequestException(
+          "Unbalanced 'xread' list of streams: "
+              + "for each stream key an ID or '$' must be specified.");
+    }
+
+    int numberOfStreams = remaining / 2;
+    List<String> keys = new ArrayList<>(numberOfStreams);
+    List<StreamId> from = new ArrayList<>(numberOfStreams);
+
+    for (int i = 0; i < numberOfStreams; i++) {
+      String key = request.argAsString(streams + 1 + i);
+      String id = request.argAsString(streams + 1 + numberOfStreams + i);
+
+      keys.add(key);
+      from.add(id.equals("$") ? store.getLastStreamId(key) : PartialStreamId.parse(id).from());
+    }
+
+    long limit = count;
+    RESPDataType reply = readStreams(keys, from, limit);
+
+    if (reply != null || block < 0) {
+      return reply != null ? reply : RESP.NULL_ARRAY;
+    }
+
+    BlockedClients.Position position = new BlockedClients.Position(keys, from, limit);
+
+    return new RESP.Deferred(
+        store
+            .blockedClients()
+            .block(position, () -> readStreams(keys, from, limit), block, RESP.NULL_ARRAY),
+        RESP.NULL_ARRAY);
+  }
+
+  // One [key, entries] pair per stream that has entries after its ID, null when none has.
+  private RESPDataType readStreams(List<String> keys, List<StreamId> from, long count) {
+    List<RESPDataType> result = new ArrayList<>();
+
+    for (int i = 0; i < keys.size(); i++) {
+      StreamEntry.Range range = store.getStreamTail(keys.get(i), from.get(i), count);
+      List<Stream> entries = range != null ? range.all() : List.of();
+
+      if (!entries.isEmpty()) {
+        result.add(keyedEntries(keys.get(i), entries));
+      }
+    }
+
+    return result.isEmpty() ? null : new RESP.Array(result);
+  }
+
+  private RESPDataType keyedEntries(String key, List<Stream> entries) {
     return new RESP.Array(
-        filteredStreams.entrySet().stream().map(this::streamToRESP).collect(Collectors.toList()));
+        List.of(
+            new RESP.BulkString(key),
+            entries.isEmpty()
+                ? RESP.EMPTY_ARRAY
+                : new RESP.Array(
+                    entries.stream().map(this::streamToRESP).collect(Collectors.toList()))));
   }
 
-  private RESPDataType xread() throws InvalidRequestException {
-    if (request.argAsString(0).equalsIgnoreCase("BLOCK")) {
-      return xreadBlock();
+  // XGROUP CREATE key group id|$ [MKSTREAM]
+  RESPDataType xgroup(Request request) throws InvalidRequestException {
+    if (!request.argEquals(0, "CREATE")) {
+      throw new InvalidRequestException(
+          "unknown subcommand '" + request.argAsString(0) + "'. Try XGROUP HELP.");
     }
 
-    int numberOfStreams = (request.args().size() - 1) / 2;
+    boolean mkstream = request.argCount() == 5 && request.argEquals(4, "MKSTREAM");
 
-    logger.debug("Number of streams: {}", numberOfStreams);
+    if (request.argCount() != 4 && !mkstream) {
+      throw new InvalidRequestException("syntax error");
+    }
+
+    String id = request.argAsString(3);
+    StreamId lastDelivered = id.equals("$") ? null : PartialStreamId.parse(id).from();
+
+    if (!store.createGroup(
+        request.argAsString(1), request.argAsString(2), lastDelivered, mkstream)) {
+      throw new InvalidRequestException("BUSYGROUP Consumer Group name already exists");
+    }
+
+    return RESP.OK;
+  }
+
+  // XREADGROUP GROUP group consumer [COUNT n] [BLOCK ms] [NOACK] STREAMS key [key ...] id [id ...]
+  // where an ID of ">" reads new entries and any other ID the consumer's pending entries after it.
+  RESPDataType xreadgroup(Request request) throws InvalidRequestException {
+    if (!request.argEquals(0, "GROUP")) {
+      throw new InvalidRequestException("syntax error");
+    }
+
+    String group = request.argAsString(1);
+    String consumer = request.argAsString(2);
+    long count = Long.MAX_VALUE;
+    long block = -1;
+    boolean noAck = false;
+    int streams = 3;
+
+    while (!request.argEquals(streams, "STREAMS")) {
+      if (request.argEquals(streams, "NOACK")) {
+        noAck = true;
+        streams += 1;
+        continue;
+      }
+
+      if (request.argEquals(streams, "COUNT") && streams + 1 < request.argCount()) {
+        long n = request.argAsLong(streams + 1);
+        count = n > 0 ? n : Long.MAX_VALUE;
+      } else if (request.argEquals(streams, "BLOCK") && streams + 1 < request.argCount()) {
+        block = request.argAsLong(streams + 1);
+        if (block < 0) {
+          throw new InvalidRequestException("timeout is negative");
+        }
+      } else {
+        throw new InvalidRequestException("syntax error");
+      }
+      streams += 2;
+    }
+
+    int remaining = request.argCount() - streams - 1;
+
+    if (remaining == 0 || remaining % 2 != 0) {
+      throw new InvalidRequestException(
+          "Unbalanced 'xreadgroup' list of streams: "
+              + "for each stream key an ID or '>' must be specified.");
+    }
+
+    int numberOfStreams = remaining / 2;
+    List<String> keys = new ArrayList<>(numberOfStreams);
+    List<StreamId> from = new ArrayList<>(numberOfStreams);
+
+    for (int i = 0; i < numberOfStreams; i++) {
+      String id = request.argAsString(streams + 1 + numberOfStreams + i);
+
+      keys.add(request.argAsString(streams + 1 + i));
+      from.add(id.equals(">") ? null : PartialStreamId.parse(id).from());
+    }
+
+    long limit = count;
+    boolean acknowledged = noAck;
+    RESPDataType reply = readGroups(group, consumer, keys, from, limit, acknowledged);
+
+    if (reply != null || block < 0) {
+      return reply != null ? reply : RESP.NULL_ARRAY;
+    }
+
+    // Each waiter gets its own poll, what it reads is delivered to its consumer only.
+    return new RESP.Deferred(
+        store
+            .blockedClients()
+            .block(
+                keys,
+                () -> readGroups(group, consumer, keys, from, limit, acknowledged),
+                block,
+                RESP.NULL_ARRAY),
+        RESP.NULL_ARRAY);
+  }
 
+  // Streams read with ">" only appear when they have new entries, null when none has.
+  private RESPDataType readGroups(
+      String group,
+      String consumer,
+      List<String> keys,
+      List<StreamId> from,
+      long count,
+      boolean noAck) {
     List<RESPDataType> result = new ArrayList<>();
 
-    for (int i = 1; i <= numberOfStreams; i++) {
-      String key = request.argAsString(i);
+    for (int i = 0; i < keys.size(); i++) {
+      List<Stream> entries =
+          store.readGroup(keys.get(i), group, consumer, from.get(i), count, noAck);
 
-      PartialStreamId fromKey = PartialStreamId.parse(request.argAsString(i + numberOfStreams));
+      if (!entries.isEmpty() || from.get(i) != null) {
+        result.add(keyedEntries(keys.get(i), entries));
+      }
+    }
+
+    return result.isEmpty() ? null : new RESP.Array(result);
+  }
+
+  // XACK key group id [id ...]
+  RESPDataType xack(Request request) throws InvalidRequestException {
+    List<StreamId> ids = new ArrayList<>();
+
+    for (int i = 2; i < request.argCount(); i++) {
+      ids.add(PartialStreamId.parse(request.argAsString(i)).from());
+    }
+
+    return new RESP.Int(store.ackStream(request.argAsString(0), request.argAsString(1), ids));
+  }
+
+  // XPENDING key group [[IDLE min-idle] start end count [consumer]]
+  RESPDataType xpending(Request request) throws InvalidRequestException {
+    String key = request.argAsString(0);
+    String group = request.argAsString(1);
+
+    if (request.argCount() == 2) {
+      ConsumerGroup.Summary summary = store.pendingSummary(key, group);
+
+      if (summary.count() == 0) {
+        return new RESP.Array(
+            List.of(new RESP.Int(0), RESP.NULL_BULK, RESP.NULL_BULK, RESP.NULL_ARRAY));
+      }
 
-      SortedMap<StreamId, Stream> filteredStreams = store.getTailStreams(key, fromKey, false);
+      List<RESPDataType> consumers = new ArrayList<>();
+
+      for (Map.Entry<String, Integer> consumer : summary.consumers().entrySet()) {
+        consumers.add(new RESP.Array(consumer.getKey(), Integer.toString(consumer.getValue())));
+      }
+
+      return new RESP.Array(
+          List.of(
+              new RESP.Int(summary.count()),
+              new RESP.BulkString(summary.smallest().toString()),
+              new RESP.BulkString(summary.greatest().toString()),
+              new RESP.Array(consumers)));
+    }
+
+    long minIdle = 0;
+    int next = 2;
+
+    if (request.argEquals(next, "IDLE")) {
+      minIdle = request.argAsLong(next + 1);
+      next += 2;
+    }
+
+    int remaining = request.argCount() - next;
+
+    if (remaining != 3 && remaining != 4) {
+      throw new InvalidRequestException("syntax error");
+    }
+
+    List<ConsumerGroup.PendingEntry> entries =
+        store.pendingEntries(
+            key,
+            group,
+            PartialStreamId.parse(request.argAsString(next)).from(),
+            PartialStreamId.parse(request.argAsString(next + 1)).to(),
+            request.argAsLong(next + 2),
+            remaining == 4 ? request.argAsString(next + 3) : null,
+            minIdle);
+
+    if (entries.isEmpty()) {
+      return RESP.EMPTY_ARRAY;
+    }
 
+    List<RESPDataType> result = new ArrayList<>();
+
+    for (ConsumerGroup.PendingEntry entry : entries) {
       result.add(
           new RESP.Array(
               List.of(
-                  new RESP.BulkString(key),
-                  new RESP.Array(
-                      filteredStreams.entrySet().stream()
-                          .map(this::streamToRESP)
-                          .collect(Collectors.toList())))));
+                  new RESP.BulkString(entry.id().toString()),
+                  new RESP.BulkString(entry.consumer()),
+                  new RESP.Int(entry.idle()),
+                  new RESP.Int(entry.deliveries()))));
     }
+
     return new RESP.Array(result);
   }
 
-  private RESPDataType xreadBlock() throws InvalidRequestException {
-    Instant timeout = Instant.now().plusMillis(request.argAsLong(1));
-    String key = request.argAsString(3);
-    PartialStreamId fromKey = PartialStreamId.parse(request.argAsString(4));
+  // XCLAIM key group consumer min-idle-time id [id ...] [IDLE ms] [TIME ms] [RETRYCOUNT n] [JUSTID]
+  RESPDataType xclaim(Request request) throws InvalidRequestException {
+    long minIdle = request.argAsLong(3);
+    List<StreamId> ids = new ArrayList<>();
+    int next = 4;
+
+    while (next < request.argCount() && !isClaimOption(request, next)) {
+      ids.add(PartialStreamId.parse(request.argAsString(next++)).from());
+    }
+
+    long idle = -1;
+    long time = -1;
+    long retryCount = -1;
+    boolean justId = false;
 
-    SortedMap<StreamId, Stream> streams = store.awaitTailStreams(key, fromKey, false, timeout);
+    while (next < request.argCount()) {
+      if (request.argEquals(next, "JUSTID")) {
+        justId = true;
+        next += 1;
+        continue;
+      }
 
-    if (streams == null) {
-      return new RESP.Array();
+      if (next + 1 >= request.argCount()) {
+        throw new InvalidRequestException("syntax error");
+      } else if (request.argEquals(next, "IDLE")) {
+        idle = request.argAsLong(next + 1);
+      } else if (request.argEquals(next, "TIME")) {
+        time = request.argAsLong(next + 1);
+      } else if (request.argEquals(next, "RETRYCOUNT")) {
+        retryCount = request.argAsLong(next + 1);
+      } else {
+        throw new InvalidRequestException("syntax error");
+      }
+      next += 2;
     }
 
-    return new RESP.Array(
-        List.of(
-            new RESP.Array(
-                List.of(
-                    new RESP.BulkString(key),
-                    new RESP.Array(
-                        streams.entrySet().stream()
-                            .map(this::streamToRESP)
-                            .collect(Collectors.toList()))))));
+    if (ids.isEmpty()) {
+      throw new InvalidRequestException("syntax error");
+    }
+
+    List<Stream> claimed =
+        store.claimStream(
+            request.argAsString(0),
+            request.argAsString(1),
+            request.argAsString(2),
+            ids,
+            new ConsumerGroup.Claim(minIdle, idle, time, retryCount, justId));
+
+    if (claimed.isEmpty()) {
+      return RESP.EMPTY_ARRAY;
+    }
+
+    List<RESPDataType> result = new ArrayList<>();
+
+    for (Stream stream : claimed) {
+      result.add(justId ? new RESP.BulkString(stream.id().toString()) : streamToRESP(stream));
+    }
+
+    return new RESP.Array(result);
+  }
+
+  private static boolean isClaimOption(Request request, int index) {
+    for (String option : List.of("IDLE", "TIME", "RETRYCOUNT", "JUSTID", "FORCE", "LASTID")) {
+      if (request.argEquals(index, option)) {
+        return true;
+      }
+    }
+
+    return false;
   }
 }
@@ -1,56 +1,62 @@
 package be.julienpiron.redis;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 
+// Blocking front-end over RequestDecoder for the thread-per-connection modes.
 class RequestParser {
-  private final BufferedReader reader;
+  private static final int BUFFER_SIZE = 16 * 1024;
 
-  RequestParser(BufferedReader reader) {
-    this.reader = reader;
+  private final InputStream input;
+  private final RequestDecoder decoder = new RequestDecoder();
+  private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).flip();
+
+  RequestParser(InputStream input) {
+    this.input = input;
   }
 
   Request read() throws IOException {
-    int type = reader.read();
+    Request request;
 
-    if (type == -1) {
-      return null;
+    while ((request = decoder.decode(buffer)) == null) {
+      if (!fill()) {
+        return null;
+      }
     }
 
-    if (type != '*') {
-      throw new IllegalArgumentException("Unknown type: " + (char) type);
-    }
+    return request;
+  }
 
-    int lenght = Integer.parseInt(reader.readLine());
+  // Next request that is already fully buffered, or null when answering it would need a read.
+  Request poll() {
+    return decoder.decode(buffer);
+  }
 
-    String command = readString();
+  // Bytes read from the input but not consumed by a request yet.
+  int buffered() {
+    return buffer.remaining();
+  }
 
-    List<String> args = new ArrayList<>();
+  // Reads more input into the buffer, false at the end of the input.
+  boolean fill() throws IOException {
+    buffer.compact();
 
-    for (int i = 1; i < lenght; i++) {
-      args.add(readString());
+    int needed = decoder.bytesNeeded();
+    if (buffer.capacity() < needed) {
+      buffer = ByteBuffer.allocate(needed).put(buffer.flip());
+    } else if (!buffer.hasRemaining()) {
+      buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
     }
 
-    Request request = new Request(command, args);
+    int read = input.read(buffer.array(), buffer.position(), buffer.remaining());
 
-    return request;
-  }
-
-  private String readString() throws IOException {
-    int type = reader.read();
-
-    if (type != '$') {
-      throw new IllegalArgumentException("BulkString must start with an '$'");
+    if (read > 0) {
+      buffer.position(buffer.position() + read);
     }
 
-    int length = Integer.parseInt(reader.readLine());
-
-    char[] buffer = new char[length];
-    reader.read(buffer);
-    reader.readLine(); // read CRLF
+    buffer.flip();
 
-    return new String(buffer);
+    return read != -1;
   }
 }
@@ -0,0 +1,148 @@
+package be.julienpiron.redis;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// SAVE, BGSAVE and LASTSAVE. Both saves write a point in time view of the store, so clients keep
+// writing while a dump runs, to a temporary file renamed over the dump once complete. One save runs
+// at a time.
+public class Saver {
+  private final Store store;
+  private final Path path;
+  private final AtomicBoolean inProgress = new AtomicBoolean();
+  private final Logger logger = LoggerFactory.getLogger(Saver.class);
+  private volatile long lastSave;
+  private volatile boolean lastSaveFailed;
+
+  public Saver(Store store, Path path) {
+    this.store = store;
+    this.path = path;
+    this.lastSave = System.currentTimeMillis() / 1000;
+  }
+
+  public void save() throws IOException {
+    claim();
+
+    try {
+      write();
+    } finally {
+      release();
+    }
+  }
+
+  // The save is claimed before it starts, so a BGSAVE that cannot run is refused, not reported as
+  // started.
+  public void backgroundSave() {
+    claim();
+
+    Thread.ofPlatform()
+        .name("bgsave")
+        .daemon()
+        .start(
+            () -> {
+              try {
+                write();
+              } catch (IOException | RuntimeException e) {
+                logger.error("Background save failed", e);
+              } finally {
+                release();
+              }
+            });
+  }
+
+  // One save at a time, and none while a rewrite or a full sync has the store's view.
+  private void claim() {
+    if (!inProgress.compareAndSet(false, true)) {
+      throw new IllegalStateException("Background save already in progress");
+    }
+
+    if (!store.tryClaimView()) {
+      inProgress.set(false);
+      throw new IllegalStateException(
+          "An append only file rewrite or a full sync is in progress, try again later");
+    }
+  }
+
+  private void release() {
+    store.releaseView();
+    inProgress.set(false);
+  }
+
+  // Loads the dump when there is one and returns how many keys it held.
+  public long load() throws IOException {
+    if (!Files.exists(path)) {
+      return 0;
+    }
+
+    long start = System.nanoTime();
+    long keys = Dump.load(path, store);
+    long micros = Math.max(1, (System.nanoTime() - start) / 1_000);
+    long bytes = Files.size(path);
+
+    logger.info(
+        "Loaded {} keys ({} MB) from {} in {} ms: {} keys/s, {} MB/s",
+        keys,
+        bytes >> 20,
+        path,
+        micros / 1_000,
+        keys * 1_000_000 / micros,
+        (bytes * 1_000_000 / micros) >> 20);
+
+    return keys;
+  }
+
+  // Epoch seconds of the last successful save, or of startup before any.
+  public long lastSave() {
+    return lastSave;
+  }
+
+  public boolean inProgress() {
+    return inProgress.get();
+  }
+
+  public boolean lastSaveFailed() {
+    return lastSaveFailed;
+  }
+
+  private void write() throws IOException {
+    Path temp = path.resolveSibling("temp-" + path.getFileName());
+    PointInTimeView view = null;
+    boolean failed = true;
+
+    try {
+      long start = System.nanoTime();
+      view = store.openView();
+      long keys = Dump.write(store, view, temp);
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      lastSave = System.currentTimeMillis() / 1000;
+      failed = false;
+
+      logger.info(
+          "Saved {} keys to {} in {} ms", keys, path, (System.nanoTime() - start) / 1_000_000);
+    } finally {
+      if (view != null) {
+        store.closeView();
+      }
+
+      lastSaveFailed = failed;
+
+      if (failed) {
+        deleteTemp(temp);
+      }
+    }
+  }
+
+  // A failed save leaves no partial dump behind, without hiding why it failed.
+  private void deleteTemp(Path temp) {
+    try {
+      Files.deleteIfExists(temp);
+    } catch (IOException e) {
+      logger.warn("Deleting {} failed", temp, e);
+    }
+  }
+}
@@ -1,30 +1,124 @@
 package be.julienpiron.redis;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class Server {
+  private static final int BACKLOG = 511;
+  private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_IN_FLIGHT = 1024;
+
   protected final int port;
+  protected final Config config;
   protected final Logger logger = LoggerFactory.getLogger(Server.class);
-  protected boolean running;
+  protected volatile boolean running;
   protected ServerSocket serverSocket;
+  protected ServerSocketChannel serverChannel;
   protected Store store;
+  private RequestHandler handler;
+  private AppendOnlyFile aof;
+  private Replication replication;
+  private Shards shards;
+  private final List<EventLoop> eventLoops = new ArrayList<>();
+  private ScheduledExecutorService cron;
 
   public Server(int port) {
-    this.port = port;
-    this.store = new Store();
+    this(Config.defaults().withPort(port));
+  }
+
+  public Server(Config config) {
+    if (config.shards() > 0 && config.appendOnly()) {
+      throw new IllegalArgumentException("appendonly is not available with shards");
+    }
+
+    this.config = config;
+    this.port = config.port();
+    // Each shard has a store of its own.
+    this.store = config.shards() > 0 ? null : new Store();
   }
 
   public void start() {
+    if (config.shards() > 0) {
+      // Nothing is loaded or logged, each shard expires its own keys.
+      shards = new Shards(config.shards());
+      handler = new RequestHandler(shards);
+    } else {
+      openStore();
+    }
+
+    switch (config.ioMode()) {
+      case THREADS -> startThreads(Thread.ofPlatform().name("client-", 0));
+      case VIRTUAL_THREADS -> startThreads(Thread.ofVirtual().name("client-", 0));
+      case NIO -> startEventLoops();
+    }
+  }
+
+  private void openStore() {
+    Path dump = Path.of(config.dir(), config.dbFilename());
+    Saver saver = new Saver(store, dump);
+
+    if (config.appendOnly()) {
+      aof =
+          new AppendOnlyFile(
+              Path.of(config.dir(), config.appendFilename()), config.appendFsync());
+    }
+
+    replication = new Replication(store, Path.of(config.dir()), aof);
+    handler = new RequestHandler(store, saver, aof, replication);
+
+    try {
+      boolean fromLog = aof != null && aof.exists();
+      long loaded = fromLog ? aof.load(store, handler) : saver.load();
+
+      if (aof != null) {
+        // A new log starts from the dump, or the next restart would lose what the dump held. The
+        // dump is its base before any write is logged, a rewrite in the background could be
+        // stopped before it is done.
+        if (!fromLog && loaded > 0) {
+          aof.startFrom(dump);
+        }
+
+        aof.open();
+        store.attach(aof);
+      }
+
+      store.attach(replication);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not load the data", e);
+    }
+
+    cron =
+        Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("active-expire").daemon().factory());
+    cron.scheduleAtFixedRate(
+        store.activeExpiry(),
+        ActiveExpiry.PERIOD_MILLIS,
+        ActiveExpiry.PERIOD_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  private void startThreads(Thread.Builder threadBuilder) {
     try {
-      serverSocket = new ServerSocket(port);
+      serverSocket = new ServerSocket();
       serverSocket.setReuseAddress(true);
+      serverSocket.bind(new InetSocketAddress(port), BACKLOG);
 
       logger.debug("Server started");
       running = true;
@@ -32,39 +126,138 @@ public class Server {
       while (running) {
         Socket client = serverSocket.accept();
         logger.debug("New client connexion: " + client.getPort());
-        new Thread(() -> handleClient(client)).start();
+        threadBuilder.start(() -> handleClient(client));
       }
     } catch (IOException e) {
       logger.debug("IOException: " + e.getMessage());
     }
   }
 
+  private void startEventLoops() {
+    try {
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      serverChannel.bind(new InetSocketAddress(port), BACKLOG);
+
+      for (int i = 0; i < config.ioThreads(); i++) {
+        EventLoop loop = new EventLoop(handler);
+        eventLoops.add(loop);
+        new Thread(loop, "io-loop-" + i).start();
+      }
+
+      logger.debug("Server started with {} event loops", eventLoops.size());
+      running = true;
+
+      int next = 0;
+
+      while (running) {
+        SocketChannel client = serverChannel.accept();
+        client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        logger.debug("New client connexion: " + client.getRemoteAddress());
+        eventLoops.get(next++ % eventLoops.size()).register(client);
+      }
+    } catch (IOException e) {
+      logger.debug("IOException: " + e.getMessage());
+    } finally {
+      eventLoops.forEach(EventLoop::stop);
+    }
+  }
+
   private void handleClient(Socket client) {
+    Transaction transaction = new Transaction();
+
     try {
-      PrintWriter writer = new PrintWriter(client.getOutputStream());
-      RequestParser reader =
-          new RequestParser(new BufferedReader(new InputStreamReader(client.getInputStream())));
+      OutputStream output = client.getOutputStream();
+      RESPWriter writer = new RESPWriter(OUTPUT_BUFFER_SIZE);
+      RequestParser reader = new RequestParser(client.getInputStream());
+      // Replies of pipelined requests from the first one not known yet, as forwarded to a shard.
+      List<RESPDataType> inFlight = new ArrayList<>();
 
-      Request request;
+      Request request = reader.read();
 
-      while ((request = reader.read()) != null) {
+      while (request != null) {
         logger.debug("Request: {}", request);
-        try {
-          RequestHandler handler = new RequestHandler(request, store);
+        Command command = CommandTable.lookup(request.name());
+
+        if (command != null && command.is(Command.Flag.BLOCKING)) {
+          writer.writeTo(output);
+        }
+
+        RESPDataType response = handler.handle(transaction, command, request);
+        logger.debug("Response: {}", response);
+
+        if (response instanceof Replication.Handoff handoff) {
+          settle(inFlight, writer, output);
+          writer.writeTo(output);
+          handoff.serve(client.getRemoteSocketAddress().toString(), reader, output, client);
+          return;
+        }
 
-          RESPDataType response = handler.handle();
-          logger.debug("Response: {}", response);
+        boolean waits = command != null && command.waitsForReply();
 
-          writer.print(response.encode());
-          writer.flush();
-        } catch (InvalidRequestException e) {
-          logger.error("Invalid Request: " + e.getMessage());
+        // The next buffered request is handled while a shard works on this one.
+        if (!waits
+            && (!inFlight.isEmpty()
+                || response instanceof RESP.Deferred deferred && !deferred.reply().isDone())) {
+          inFlight.add(response);
+          request = reader.poll();
+
+          if (request == null || inFlight.size() >= MAX_IN_FLIGHT) {
+            settle(inFlight, writer, output);
+          }
+
+          if (request == null) {
+            writer.writeTo(output);
+            request = reader.read();
+          }
+
+          continue;
+        }
+
+        settle(inFlight, writer, output);
+        Thread watcher = null;
+
+        if (response instanceof RESP.Deferred deferred && !deferred.reply().isDone()) {
+          if (command.is(Command.Flag.BLOCKING)) {
+            writer.writeTo(output);
+            watcher = watchForClose(reader, deferred.reply());
+          }
+
+          try {
+            response = deferred.reply().join();
+          } catch (CancellationException e) {
+            logger.debug("Client left while blocked");
+            return;
+          }
+        }
+
+        write(response, writer, output);
+
+        // The watcher owns the parser until it sees the next bytes or the end of the input.
+        if (watcher != null) {
+          writer.writeTo(output);
+          watcher.join();
+        }
+
+        // Pipelined requests are answered in one write, or one per OUTPUT_BUFFER_SIZE of replies.
+        request = reader.poll();
+
+        if (request == null || writer.size() >= OUTPUT_BUFFER_SIZE) {
+          writer.writeTo(output);
+        }
+
+        if (request == null) {
+          request = reader.read();
         }
       }
 
     } catch (IOException e) {
       logger.error("IOException: " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     } finally {
+      handler.disconnected(transaction);
+
       try {
         if (client != null) {
           client.close();
@@ -75,7 +268,56 @@ public class Server {
     }
   }
 
+  // Writes the replies of the pipeline so far in order, waiting for each one still to come.
+  private static void settle(List<RESPDataType> inFlight, RESPWriter writer, OutputStream output)
+      throws IOException {
+    for (RESPDataType response : inFlight) {
+      RESPDataType reply = response instanceof RESP.Deferred deferred ? deferred.value() : response;
+      write(reply, writer, output);
+    }
+
+    inFlight.clear();
+  }
+
+  private static void write(RESPDataType response, RESPWriter writer, OutputStream output)
+      throws IOException {
+    if (response instanceof IncrementalReply incremental) {
+      while (incremental.writeSome(writer)) {
+        if (writer.size() >= OUTPUT_BUFFER_SIZE) {
+          writer.writeTo(output);
+        }
+      }
+    } else {
+      response.write(writer);
+    }
+
+    if (writer.size() >= OUTPUT_BUFFER_SIZE) {
+      writer.writeTo(output);
+    }
+  }
+
+  // While a client waits for a blocking reply, reads ahead so that a closed connection cancels the
+  // wait, as the event loop does. Pipelined bytes stay buffered in the parser.
+  private static Thread watchForClose(RequestParser reader, CompletableFuture<RESPDataType> reply) {
+    return Thread.ofVirtual()
+        .start(
+            () -> {
+              try {
+                while (!reply.isDone()) {
+                  if (!reader.fill()) {
+                    reply.cancel(false);
+                    return;
+                  }
+                }
+              } catch (IOException e) {
+                reply.cancel(false);
+              }
+            });
+  }
+
   public void stop() {
+    running = false;
+
     if (serverSocket != null && !serverSocket.isClosed()) {
       try {
         serverSocket.close();
@@ -83,7 +325,30 @@ public class Server {
         logger.debug("IOException: " + e.getMessage());
       }
     }
-    running = false;
+
+    if (serverChannel != null && serverChannel.isOpen()) {
+      try {
+        serverChannel.close();
+      } catch (IOException e) {
+        logger.debug("IOException: " + e.getMessage());
+      }
+    }
+
+    if (cron != null) {
+      cron.shutdownNow();
+    }
+
+    if (replication != null) {
+      replication.shutdown();
+    }
+
+    if (shards != null) {
+      shards.stop();
+    }
+
+    if (aof != null) {
+      aof.close();
+    }
   }
 
   public int getPort() {
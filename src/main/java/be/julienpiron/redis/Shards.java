@@ -0,0 +1,243 @@
+package be.julienpiron.redis;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+// Optional shared-nothing mode: the keyspace is split into shards by key hash. Each shard has a
+// store of its own, with its own map, expiry index and blocked clients and no locks, and a single
+// thread that runs every command on it as well as its active expiry. Connections forward a command
+// to the shard owning its keys and get the reply back as a deferred one.
+//
+// MGET, MSET, DEL, UNLINK and EXISTS on keys of several shards run on each shard with its own keys
+// and the replies are merged: each shard applies its part at once, the whole is not atomic. Other
+// commands whose keys span shards, EXEC and WATCH included, are refused with CROSSSLOT as in Redis
+// Cluster. Dumps, the append only file and replication are not available in this mode.
+public class Shards {
+  private static final Set<String> SPLIT = Set.of("DEL", "EXISTS", "MGET", "MSET", "UNLINK");
+  static final RESPDataType CROSSSLOT =
+      new RESP.SimpleError("CROSSSLOT Keys in request don't hash to the same slot");
+
+  private record Shard(Store store, RequestHandler handler, ScheduledExecutorService owner) {}
+
+  // The result of one shard and the positions of its keys in the arguments.
+  record Part<T>(List<Integer> positions, T result) {}
+
+  private final Shard[] shards;
+  private final Command.Stats[] stats = RequestHandler.newStats();
+
+  public Shards(int count) {
+    if (count < 1) {
+      throw new IllegalArgumentException("shards must be positive");
+    }
+
+    shards = new Shard[count];
+
+    for (int i = 0; i < count; i++) {
+      Store store = new Store(Clock.systemDefaultZone(), LockTable.unlocked());
+      ScheduledExecutorService owner =
+          Executors.newSingleThreadScheduledExecutor(
+              Thread.ofPlatform().name("shard-" + i).daemon().factory());
+      owner.scheduleAtFixedRate(
+          store.activeExpiry(),
+          ActiveExpiry.PERIOD_MILLIS,
+          ActiveExpiry.PERIOD_MILLIS,
+          TimeUnit.MILLISECONDS);
+
+      shards[i] = new Shard(store, new RequestHandler(store, stats), owner);
+    }
+  }
+
+  public int size() {
+    return shards.length;
+  }
+
+  public int shardOf(String key) {
+    int hash = key.hashCode();
+    return Math.floorMod(hash ^ (hash >>> 16), shards.length);
+  }
+
+  // The shard owning every key, -1 when they span several shards. The first shard for no keys.
+  public int ownerOf(Collection<String> keys) {
+    int owner = -1;
+
+    for (String key : keys) {
+      int shard = shardOf(key);
+
+      if (owner >= 0 && shard != owner) {
+        return -1;
+      }
+
+      owner = shard;
+    }
+
+    return Math.max(owner, 0);
+  }
+
+  // Reads from another thread only use the store's concurrent maps, as UNWATCH does.
+  Store storeOf(String key) {
+    return shards[shardOf(key)].store();
+  }
+
+  // Command counters shared by every handler, INFO reports them for the whole server.
+  Command.Stats[] stats() {
+    return stats;
+  }
+
+  long sum(ToLongFunction<Store> metric) {
+    return Arrays.stream(shards).map(Shard::store).mapToLong(metric).sum();
+  }
+
+  // The reply of the shard owning the command's keys. Null when the command runs on the
+  // connection instead: it has no keys, or it splits its keys across shards itself.
+  RESPDataType forward(Command command, Request request) {
+    List<String> keys = command.keys(request);
+
+    if (keys.isEmpty()) {
+      return null;
+    }
+
+    int shard = ownerOf(keys);
+
+    if (shard >= 0) {
+      return run(shard, handler -> handler.handle(command, request));
+    }
+
+    return SPLIT.contains(command.name()) ? null : CROSSSLOT;
+  }
+
+  // Runs the command on the shard's thread. A deferred reply is waited for, not nested, and
+  // cancelling the forwarded reply cancels it, so that a client leaving ends its blocking read.
+  RESPDataType run(int shard, Function<RequestHandler, RESPDataType> command) {
+    CompletableFuture<RESPDataType> reply = new CompletableFuture<>();
+
+    try {
+      shards[shard].owner().execute(() -> complete(reply, shards[shard].handler(), command));
+    } catch (RejectedExecutionException e) {
+      return RESP.error("shard " + shard + " is stopped");
+    }
+
+    return new RESP.Deferred(reply);
+  }
+
+  private static void complete(
+      CompletableFuture<RESPDataType> reply,
+      RequestHandler handler,
+      Function<RequestHandler, RESPDataType> command) {
+    if (reply.isDone()) {
+      return;
+    }
+
+    RESPDataType result;
+
+    try {
+      result = command.apply(handler);
+    } catch (RuntimeException e) {
+      reply.complete(RESP.error("internal error: " + e.getClass().getSimpleName()));
+      return;
+    }
+
+    if (result instanceof RESP.Deferred deferred) {
+      deferred.reply().whenComplete((value, error) -> reply.complete(settle(value, error)));
+      reply.whenComplete((_, _) -> deferred.reply().cancel(false));
+    } else {
+      reply.complete(result);
+    }
+  }
+
+  private static RESPDataType settle(RESPDataType value, Throwable error) {
+    return error == null ? value : RESP.failure(error);
+  }
+
+  // MGET across shards: the values of each shard are put back at the positions of its keys.
+  CompletableFuture<List<String>> getStrings(List<String> keys) {
+    String[] values = new String[keys.size()];
+
+    return onEach(keys, 1, Store::getStrings)
+        .thenApply(
+            parts -> {
+              for (Part<List<String>> part : parts) {
+                for (int i = 0; i < part.positions().size(); i++) {
+                  values[part.positions().get(i)] = part.result().get(i);
+                }
+              }
+
+              return Arrays.asList(values);
+            });
+  }
+
+  // MSET across shards, keys and values alternate.
+  CompletableFuture<Void> setStrings(List<String> keysAndValues) {
+    return onEach(
+            keysAndValues,
+            2,
+            (store, own) -> {
+              store.setStrings(own);
+              return null;
+            })
+        .thenApply(_ -> null);
+  }
+
+  // DEL and EXISTS across shards: the counts of every shard added up.
+  CompletableFuture<Long> count(List<String> keys, BiFunction<Store, List<String>, Long> count) {
+    return onEach(keys, 1, count)
+        .thenApply(parts -> parts.stream().mapToLong(part -> part.result()).sum());
+  }
+
+  // Runs the action on every shard owning some of the keys, on its thread, with its own keys each
+  // followed by step - 1 values, in the order of the arguments.
+  private <T> CompletableFuture<List<Part<T>>> onEach(
+      List<String> arguments, int step, BiFunction<Store, List<String>, T> action) {
+    List<List<Integer>> positions = new ArrayList<>(shards.length);
+
+    for (int i = 0; i < shards.length; i++) {
+      positions.add(new ArrayList<>());
+    }
+
+    for (int i = 0; i < arguments.size(); i += step) {
+      positions.get(shardOf(arguments.get(i))).add(i);
+    }
+
+    List<CompletableFuture<Part<T>>> parts = new ArrayList<>();
+
+    for (int shard = 0; shard < shards.length; shard++) {
+      List<Integer> at = positions.get(shard);
+
+      if (at.isEmpty()) {
+        continue;
+      }
+
+      List<String> own = new ArrayList<>(at.size() * step);
+
+      for (int i : at) {
+        own.addAll(arguments.subList(i, i + step));
+      }
+
+      Store store = shards[shard].store();
+      List<Integer> keyPositions = step == 1 ? at : at.stream().map(i -> i / step).toList();
+      parts.add(
+          CompletableFuture.supplyAsync(
+              () -> new Part<>(keyPositions, action.apply(store, own)), shards[shard].owner()));
+    }
+
+    return CompletableFuture.allOf(parts.toArray(CompletableFuture[]::new))
+        .thenApply(_ -> parts.stream().map(CompletableFuture::join).toList());
+  }
+
+  public void stop() {
+    for (Shard shard : shards) {
+      shard.owner().shutdownNow();
+    }
+  }
+}
@@ -1,47 +1,84 @@
 package be.julienpiron.redis;
 
+import java.lang.invoke.VarHandle;
+import java.math.BigDecimal;
 import java.time.Clock;
 import java.time.Duration;
-import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Optional;
-import java.util.SortedMap;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 class KeyLock {
-  private Lock lock = new ReentrantLock();
-  private Condition condition = lock.newCondition();
+  private ReentrantLock lock = new ReentrantLock();
+  // Bumped when a batch takes the lock and again when it lets go, so odd while a batch holds it.
+  // Only changed by the lock holder.
+  private volatile long batches;
 
   public void lock() {
     this.lock.lock();
   }
 
-  public boolean tryLock(long nanos) throws InterruptedException {
-    return lock.tryLock(nanos, TimeUnit.NANOSECONDS);
-  }
-
   public void unlock() {
     this.lock.unlock();
   }
 
-  public long awaitNanos(long nanosTimeout) throws InterruptedException {
-    return condition.awaitNanos(nanosTimeout);
+  void lockBatch() {
+    lock.lock();
+
+    if (lock.getHoldCount() == 1) {
+      batches++;
+    }
   }
 
-  public void signalAll() {
-    condition.signalAll();
+  void unlockBatch() {
+    if (lock.getHoldCount() == 1) {
+      batches++;
+    }
+
+    lock.unlock();
+  }
+
+  long batches() {
+    return batches;
   }
 }
 
 public class Store {
+  private static class Watch {
+    private final AtomicLong version = new AtomicLong();
+    // Guarded by the map's compute.
+    private int watchers;
+  }
+
   private final ConcurrentHashMap<String, StoreEntry> map;
-  private final ConcurrentHashMap<String, KeyLock> locks;
+  private final LockTable locks;
+  private final ExpiryIndex expiries = new ExpiryIndex();
+  private final LongAdder expiredKeys = new LongAdder();
+  private final ActiveExpiry activeExpiry;
+  private final BlockedClients blockedClients = new BlockedClients();
+  private volatile PointInTimeView view;
+  // Held by the one dump, rewrite or full sync reading a view, or by a full resync replacing the
+  // data set, claimed before the view is opened.
+  private final Semaphore viewClaim = new Semaphore(1);
+  private final List<CommandLog> logs = new CopyOnWriteArrayList<>();
+  // Version counters of the keys clients WATCH, bumped by every write to them and when they expire.
+  // Keys nobody watches have none, so a write only pays a lookup in a mostly empty map.
+  private final ConcurrentHashMap<String, Watch> watches = new ConcurrentHashMap<>();
+  // Keys written to streams by the batch this thread runs, woken once it released its locks.
+  private final ThreadLocal<Set<String>> batchSignals = new ThreadLocal<>();
+  // What the EXEC this thread runs wrote so far, logged as one block when it ends.
+  private final ThreadLocal<List<List<String>>> batchLog = new ThreadLocal<>();
   private final Logger logger = LoggerFactory.getLogger(Store.class);
   protected volatile Clock clock;
 
@@ -50,180 +87,1158 @@ public class Store {
   }
 
   protected Store(Clock clock) {
+    this(clock, LockTable.DEFAULT_STRIPES);
+  }
+
+  protected Store(Clock clock, int lockStripes) {
+    this(clock, new LockTable(lockStripes));
+  }
+
+  // ActiveExpiry only keeps the reference, it first runs once the server schedules it.
+  @SuppressWarnings("this-escape")
+  Store(Clock clock, LockTable locks) {
     map = new ConcurrentHashMap<>();
-    locks = new ConcurrentHashMap<>();
+    this.locks = locks;
     this.clock = clock;
+    activeExpiry = new ActiveExpiry(this);
   }
 
   protected KeyLock getKeyLock(String key) {
-    return locks.computeIfAbsent(key, (_) -> new KeyLock());
+    return locks.forKey(key);
   }
 
   public String getString(String key) {
     logger.debug(clock.instant().toString());
     logger.debug("Getting: {}", key);
 
-    StoreEntry entry = map.get(key);
+    StoreEntry entry = read(key, () -> lookup(key));
 
     logger.debug("Got: " + entry);
 
-    if (!(entry instanceof StringEntry stringEntry)) {
+    if (!(entry instanceof StringValue string)) {
       return null;
     }
 
-    if (stringEntry.isExpired(clock)) {
-      logger.debug("Entry " + key + " is expired");
-      map.remove(key);
-      return null;
-    }
-
-    return stringEntry.value();
+    return string.value();
   }
 
   public void setString(String key, String value) {
-    map.put(key, new StringEntry(value, Optional.empty()));
+    StringValue entry = StringValue.of(value);
+    KeyLock lock = getKeyLock(key);
+    lock.lock();
+    try {
+      beforeWrite(key);
+      map.compute(
+          key,
+          (k, _) -> {
+            expiries.remove(k);
+            return entry;
+          });
+      log("SET", key, value);
+    } finally {
+      lock.unlock();
+    }
   }
 
   public void setString(String key, String value, Duration expiry) {
-    map.put(key, new StringEntry(value, Optional.of(clock.instant().plus(expiry))));
+    long at = clock.millis() + expiry.toMillis();
+    StringValue entry = StringValue.of(value);
+    KeyLock lock = getKeyLock(key);
+    lock.lock();
+    try {
+      beforeWrite(key);
+      map.compute(
+          key,
+          (k, _) -> {
+            expiries.set(k, at);
+            return entry;
+          });
+      log("SET", key, value);
+      log("PEXPIREAT", key, Long.toString(at));
+    } finally {
+      lock.unlock();
+    }
   }
 
-  public SortedMap<StreamId, Stream> getStreams(String key) {
+  // The entry stored under the key, expiring it first when its TTL has passed.
+  private StoreEntry lookup(String key) {
+    if (expiries.isExpired(key, clock.millis())) {
+      expireIfNeeded(key);
+    }
+
+    return map.get(key);
+  }
+
+  // For use inside map.compute: drops the entry when its TTL has passed.
+  private StoreEntry live(String key, StoreEntry entry, long now) {
+    if (!expiries.isExpired(key, now)) {
+      return entry;
+    }
+
+    expiries.remove(key);
+
+    if (entry != null) {
+      expiredKeys.increment();
+      touch(key);
+    }
+
+    return null;
+  }
+
+  // Removes the key if its TTL has passed and returns whether it did.
+  boolean expireIfNeeded(String key) {
+    long now = clock.millis();
+
+    if (!expiries.isExpired(key, now)) {
+      return false;
+    }
+
+    boolean[] expired = {false};
+
+    map.compute(
+        key,
+        (k, entry) -> {
+          StoreEntry live = live(k, entry, now);
+          expired[0] = entry != null && live == null;
+          return live;
+        });
+
+    return expired[0];
+  }
+
+  // Sets an absolute deadline in epoch millis, one in the past deletes the key right away.
+  // Returns false when there is no such key.
+  public boolean expireAt(String key, long at) {
+    long now = clock.millis();
+    boolean[] exists = {false};
     KeyLock lock = getKeyLock(key);
     lock.lock();
     try {
-      StoreEntry entry = map.get(key);
+      beforeWrite(key);
+      map.computeIfPresent(
+          key,
+          (k, entry) -> {
+            if (live(k, entry, now) == null) {
+              return null;
+            }
 
-      if (!(entry instanceof StreamEntry streamEntry))
-        throw new IllegalArgumentException(key + " is not a stream");
+            exists[0] = true;
 
-      return streamEntry.getValues();
+            if (at <= now) {
+              expiries.remove(k);
+              return null;
+            }
+
+            expiries.set(k, at);
+            return entry;
+          });
+
+      if (exists[0]) {
+        log("PEXPIREAT", key, Long.toString(at));
+      }
     } finally {
       lock.unlock();
     }
+
+    return exists[0];
+  }
+
+  public boolean expire(String key, long millis) {
+    return expireAt(key, Math.addExact(clock.millis(), millis));
+  }
+
+  // Remaining time to live in millis, -2 when the key does not exist and -1 when it has no TTL.
+  public long ttl(String key) {
+    return read(
+        key,
+        () -> {
+          if (lookup(key) == null) {
+            return -2L;
+          }
+
+          long at = expiries.deadline(key);
+
+          if (at == ExpiryIndex.NO_DEADLINE) {
+            return -1L;
+          }
+
+          return Math.max(0, at - clock.millis());
+        });
   }
 
-  public SortedMap<StreamId, Stream> getTailStreams(
-      String key, PartialStreamId fromKey, boolean inclusive) {
+  public boolean persist(String key) {
+    long now = clock.millis();
+    boolean[] persisted = {false};
     KeyLock lock = getKeyLock(key);
     lock.lock();
     try {
-      StoreEntry entry = map.get(key);
+      beforeWrite(key);
+      map.computeIfPresent(
+          key,
+          (k, entry) -> {
+            if (live(k, entry, now) == null) {
+              return null;
+            }
 
-      if (!(entry instanceof StreamEntry streamEntry))
-        throw new IllegalArgumentException(key + " is not a stream");
+            persisted[0] = expiries.remove(k);
+            return entry;
+          });
 
-      return streamEntry.getValues().tailMap(fromKey.from(), inclusive);
+      if (persisted[0]) {
+        log("PERSIST", key);
+      }
     } finally {
       lock.unlock();
     }
+
+    return persisted[0];
   }
 
-  public SortedMap<StreamId, Stream> awaitTailStreams(
-      String key, PartialStreamId fromKey, boolean inclusive, Instant timeout) {
+  // INCR, DECR, INCRBY and DECRBY: returns the new value. The entry is replaced within one compute
+  // of the map under the key lock, so concurrent increments never lose one; an integer value is
+  // added to as a long and stored as one, without parsing or formatting a String.
+  public long incrementBy(String key, long delta) {
+    long now = clock.millis();
+    long[] result = {0};
     KeyLock lock = getKeyLock(key);
-    long remainingNanos = Duration.between(Instant.now(), timeout).toNanos();
+    lock.lock();
     try {
-      logger.error("Waiting for {}", key);
-      if (lock.tryLock(remainingNanos)) {
-        logger.error("Locked acquired");
-        remainingNanos = Duration.between(Instant.now(), timeout).toNanos();
-        logger.error("remainingNanos: {}", remainingNanos);
-        while (!map.containsKey(key)) {
-          logger.error("No entry at the moment");
-          remainingNanos = lock.awaitNanos(remainingNanos);
-          logger.error("remainingNanos: {}", remainingNanos);
-          if (remainingNanos < 0) {
-            return null;
+      beforeWrite(key);
+      map.compute(
+          key,
+          (k, entry) -> {
+            long value =
+                switch (live(k, entry, now)) {
+                  case null -> 0;
+                  case IntegerEntry integer -> integer.number();
+                  case StringEntry _ ->
+                      throw new IllegalArgumentException("value is not an integer or out of range");
+                  default -> throw new IllegalArgumentException(key + " is not a string");
+                };
+
+            try {
+              result[0] = Math.addExact(value, delta);
+            } catch (ArithmeticException e) {
+              throw new IllegalArgumentException("increment or decrement would overflow");
+            }
+
+            return IntegerEntry.of(result[0]);
+          });
+      logValue(key, Long.toString(result[0]));
+    } finally {
+      lock.unlock();
+    }
+
+    return result[0];
+  }
+
+  // INCRBYFLOAT: returns the new value as stored, without trailing zeros. A whole result that fits
+  // a long goes back to the integer encoding.
+  public String incrementByFloat(String key, double delta) {
+    long now = clock.millis();
+    String[] result = {null};
+    KeyLock lock = getKeyLock(key);
+    lock.lock();
+    try {
+      beforeWrite(key);
+      map.compute(
+          key,
+          (k, entry) -> {
+            double value =
+                switch (live(k, entry, now)) {
+                  case null -> 0;
+                  case IntegerEntry integer -> integer.number();
+                  case StringEntry string -> parseDouble(string.value());
+                  default -> throw new IllegalArgumentException(key + " is not a string");
+                };
+            double sum = value + delta;
+
+            if (Double.isNaN(sum) || Double.isInfinite(sum)) {
+              throw new IllegalArgumentException("increment would produce NaN or Infinity");
+            }
+
+            result[0] = BigDecimal.valueOf(sum).stripTrailingZeros().toPlainString();
+            return StringValue.of(result[0]);
+          });
+      logValue(key, result[0]);
+    } finally {
+      lock.unlock();
+    }
+
+    return result[0];
+  }
+
+  private static double parseDouble(String value) {
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("value is not a valid float");
+    }
+  }
+
+  // Logs the new value of a key whose TTL is kept, as SET then the deadline SET dropped.
+  private void logValue(String key, String value) {
+    if (!logging()) {
+      return;
+    }
+
+    log("SET", key, value);
+    long at = expiries.deadline(key);
+
+    if (at != ExpiryIndex.NO_DEADLINE) {
+      log("PEXPIREAT", key, Long.toString(at));
+    }
+  }
+
+  // MGET: the value of every key, null for a missing key or one that is no string. Read under the
+  // locks of every key, so an MSET in flight is seen whole or not at all.
+  public List<String> getStrings(List<String> keys) {
+    return locked(
+        keys,
+        () -> {
+          List<String> values = new ArrayList<>(keys.size());
+
+          for (String key : keys) {
+            values.add(lookup(key) instanceof StringValue string ? string.value() : null);
           }
-        }
-        StoreEntry entry = map.get(key);
 
-        if (!(entry instanceof StreamEntry streamEntry))
-          throw new IllegalArgumentException(key + " is not a stream");
+          return values;
+        });
+  }
 
-        SortedMap<StreamId, Stream> result =
-            streamEntry.getValues().tailMap(fromKey.from(), inclusive);
+  // MSET: keys and values alternate. Every key is set under one sorted acquisition of their locks,
+  // so no reader sees some keys set and not the others, and it is logged as one record.
+  public void setStrings(List<String> keysAndValues) {
+    locked(
+        evenPositions(keysAndValues),
+        () -> {
+          putStrings(keysAndValues);
+          return null;
+        });
+  }
 
-        while ((result = streamEntry.getValues().tailMap(fromKey.from(), inclusive)).isEmpty()) {
-          logger.error("No stream in the entry");
-          logger.error("remainingNanos: {}", remainingNanos);
-          remainingNanos = lock.awaitNanos(remainingNanos);
-          if (remainingNanos < 0) {
-            return null;
+  // MSETNX: sets every key only when none of them exists. Returns whether it did.
+  public boolean setStringsIfAbsent(List<String> keysAndValues) {
+    List<String> keys = evenPositions(keysAndValues);
+
+    return locked(
+        keys,
+        () -> {
+          for (String key : keys) {
+            if (lookup(key) != null) {
+              return false;
+            }
+          }
+
+          putStrings(keysAndValues);
+          return true;
+        });
+  }
+
+  private void putStrings(List<String> keysAndValues) {
+    for (int i = 0; i < keysAndValues.size(); i += 2) {
+      String key = keysAndValues.get(i);
+      StringValue entry = StringValue.of(keysAndValues.get(i + 1));
+
+      beforeWrite(key);
+      map.compute(
+          key,
+          (k, _) -> {
+            expiries.remove(k);
+            return entry;
+          });
+    }
+
+    if (logging()) {
+      List<String> command = new ArrayList<>(keysAndValues.size() + 1);
+      command.add("MSET");
+      command.addAll(keysAndValues);
+      log(command);
+    }
+  }
+
+  private static List<String> evenPositions(List<String> keysAndValues) {
+    List<String> keys = new ArrayList<>(keysAndValues.size() / 2);
+
+    for (int i = 0; i < keysAndValues.size(); i += 2) {
+      keys.add(keysAndValues.get(i));
+    }
+
+    return keys;
+  }
+
+  // DEL and UNLINK: removes the keys together and returns how many existed. The entries are left
+  // to the garbage collector either way, UNLINK has nothing to do in the background.
+  public long delete(List<String> keys) {
+    return locked(
+        keys,
+        () -> {
+          List<String> command = new ArrayList<>(keys.size() + 1);
+          command.add("DEL");
+
+          for (String key : keys) {
+            if (lookup(key) == null) {
+              continue;
+            }
+
+            beforeWrite(key);
+            map.remove(key);
+            expiries.remove(key);
+            command.add(key);
+          }
+
+          if (command.size() > 1) {
+            log(command);
+          }
+
+          return (long) command.size() - 1;
+        });
+  }
+
+  // EXISTS: how many of the keys exist, a key named twice counts twice. Locked like MGET.
+  public long exists(List<String> keys) {
+    return locked(
+        keys,
+        () -> {
+          long count = 0;
+
+          for (String key : keys) {
+            if (lookup(key) != null) {
+              count++;
+            }
+          }
+
+          return count;
+        });
+  }
+
+  // False when the view is taken.
+  boolean tryClaimView() {
+    return viewClaim.tryAcquire();
+  }
+
+  // Waits for the view to be free.
+  void claimView() throws InterruptedException {
+    viewClaim.acquire();
+  }
+
+  void releaseView() {
+    viewClaim.release();
+  }
+
+  PointInTimeView openView() {
+    return openView(() -> {});
+  }
+
+  // Opens the view dumps read from. Taking every stripe lock waits for the writes in flight, and
+  // every write after it sees the view and preserves what it changes. atCut runs with every lock
+  // held, between the last write the view sees and the first it does not.
+  PointInTimeView openView(Runnable atCut) {
+    for (int i = 0; i < locks.size(); i++) {
+      locks.stripe(i).lock();
+    }
+
+    try {
+      if (view != null) {
+        throw new IllegalStateException("A view is already open");
+      }
+
+      view = new PointInTimeView(clock.millis());
+      atCut.run();
+      return view;
+    } finally {
+      for (int i = 0; i < locks.size(); i++) {
+        locks.stripe(i).unlock();
+      }
+    }
+  }
+
+  // Writes are logged to it from now on.
+  void attach(CommandLog log) {
+    logs.add(log);
+  }
+
+  // Whether a log keeps what is appended, so that writes only build their records for one.
+  private boolean logging() {
+    for (CommandLog log : logs) {
+      if (log.recording()) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  // Records the effect of a write, called under the key lock after the write applied so that the
+  // records of a key are in the order the writes applied. Commands that depend on the time or on
+  // the current state are logged as their outcome: "*" IDs, relative TTLs and "$" become values.
+  private void log(String... command) {
+    if (logging()) {
+      log(List.of(command));
+    }
+  }
+
+  private void log(List<String> command) {
+    if (!logging()) {
+      return;
+    }
+
+    List<List<String>> batch = batchLog.get();
+
+    if (batch != null) {
+      batch.add(command);
+      return;
+    }
+
+    for (CommandLog log : logs) {
+      log.append(command);
+    }
+  }
+
+  void closeView() {
+    view = null;
+  }
+
+  // Drops every key, before a follower loads the leader's dump. Not logged, the follower holds the
+  // view claim and rewrites the append only file once the dump is loaded.
+  void clear() {
+    for (int i = 0; i < locks.size(); i++) {
+      locks.stripe(i).lock();
+    }
+
+    try {
+      for (String key : map.keySet()) {
+        map.remove(key);
+        expiries.remove(key);
+      }
+
+      for (String key : watches.keySet()) {
+        touch(key);
+      }
+    } finally {
+      for (int i = 0; i < locks.size(); i++) {
+        locks.stripe(i).unlock();
+      }
+    }
+  }
+
+  Iterable<String> keys() {
+    return map.keySet();
+  }
+
+  // The key as the view sees it, null when already read.
+  PointInTimeView.Image read(PointInTimeView view, String key) {
+    KeyLock lock = getKeyLock(key);
+    lock.lock();
+    try {
+      return view.visit(key, () -> image(key));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Adds a key loaded from a dump, unless it has expired since. Returns whether it was added.
+  boolean restore(String key, StoreEntry entry, long deadline) {
+    if (deadline != ExpiryIndex.NO_DEADLINE && clock.millis() > deadline) {
+      return false;
+    }
+
+    map.compute(
+        key,
+        (k, _) -> {
+          if (deadline == ExpiryIndex.NO_DEADLINE) {
+            expiries.remove(k);
+          } else {
+            expiries.set(k, deadline);
+          }
+          return entry;
+        });
+
+    return true;
+  }
+
+  // Runs the action holding the lock of every key, each stripe taken once and in stripe order so
+  // that two callers never wait on each other. Writes it makes take their key lock again.
+  <T> T locked(Collection<String> keys, Supplier<T> action) {
+    int[] stripes = keys.stream().mapToInt(locks::stripeOf).distinct().sorted().toArray();
+    boolean outermost = batchSignals.get() == null;
+
+    if (outermost) {
+      batchSignals.set(new LinkedHashSet<>());
+    }
+
+    for (int stripe : stripes) {
+      locks.stripe(stripe).lockBatch();
+    }
+
+    try {
+      return action.get();
+    } finally {
+      for (int i = stripes.length - 1; i >= 0; i--) {
+        locks.stripe(stripes[i]).unlockBatch();
+      }
+
+      if (outermost) {
+        Set<String> signalled = batchSignals.get();
+        batchSignals.remove();
+        signalled.forEach(blockedClients::signal);
+      }
+    }
+  }
+
+  // EXEC: locked, and the batch is logged as one MULTI ... EXEC block while its locks are still
+  // held, so that a replay or a follower applies it whole.
+  <T> T atomically(Collection<String> keys, Supplier<T> action) {
+    return locked(
+        keys,
+        () -> {
+          List<List<String>> batch = new ArrayList<>();
+          batchLog.set(batch);
+
+          try {
+            return action.get();
+          } finally {
+            batchLog.remove();
+
+            if (batch.size() == 1) {
+              log(batch.getFirst());
+            } else if (!batch.isEmpty()) {
+              batch.addFirst(List.of("MULTI"));
+              batch.add(List.of("EXEC"));
+
+              for (CommandLog log : logs) {
+                log.appendAll(batch);
+              }
+            }
           }
+        });
+  }
+
+  // Wakes the clients blocked on the key. Inside a batch it waits until the batch lets go of its
+  // locks: a woken XREADGROUP takes locks of its own, outside the batch's stripe order.
+  private void signal(String key) {
+    Set<String> signalled = batchSignals.get();
+
+    if (signalled != null) {
+      signalled.add(key);
+    } else {
+      blockedClients.signal(key);
+    }
+  }
+
+  // Runs a lock-free read of one key. A read that overlapped a batch holding the key, such as an
+  // EXEC writing it twice, may have seen the batch half applied and runs again under the key lock.
+  private <T> T read(String key, Supplier<T> read) {
+    KeyLock lock = getKeyLock(key);
+    long before = lock.batches();
+
+    if ((before & 1) == 0) {
+      try {
+        T result = read.get();
+        VarHandle.acquireFence();
+
+        if (lock.batches() == before) {
+          return result;
         }
+      } catch (IllegalArgumentException e) {
+        VarHandle.acquireFence();
 
-        logger.error("remainingNanos: {}", remainingNanos);
-        return result;
-      } else {
-        return null;
+        if (lock.batches() == before) {
+          throw e;
+        }
       }
-    } catch (InterruptedException e) {
-      return null;
+    }
+
+    lock.lock();
+    try {
+      return read.get();
     } finally {
       lock.unlock();
     }
   }
 
-  public SortedMap<StreamId, Stream> getRangeStreams(
-      String key, PartialStreamId fromKey, PartialStreamId toKey) {
+  // WATCH: counts one more watcher of the key and returns its version. Under the key lock, so a
+  // write in flight is either before it or bumps the version it returned.
+  long watch(String key) {
+    KeyLock lock = getKeyLock(key);
+    lock.lock();
+    try {
+      return watches
+          .compute(
+              key,
+              (_, existing) -> {
+                Watch watch = existing != null ? existing : new Watch();
+                watch.watchers++;
+                return watch;
+              })
+          .version
+          .get();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void unwatch(String key) {
+    watches.computeIfPresent(key, (_, watch) -> --watch.watchers > 0 ? watch : null);
+  }
+
+  // The version of a watched key, -1 when nobody watches it.
+  long version(String key) {
+    Watch watch = watches.get(key);
+    return watch != null ? watch.version.get() : -1;
+  }
+
+  private void touch(String key) {
+    Watch watch = watches.get(key);
+
+    if (watch != null) {
+      watch.version.incrementAndGet();
+    }
+  }
+
+  // Called under the key lock before every write.
+  private void beforeWrite(String key) {
+    preserve(key);
+    touch(key);
+  }
+
+  // Copy-on-write for an open view, called under the key lock before the key changes. Expiry does
+  // not preserve keys: one expiring while a dump runs may be left out, loading drops it anyway.
+  private void preserve(String key) {
+    PointInTimeView current = view;
+
+    if (current != null) {
+      current.preserve(key, () -> image(key));
+    }
+  }
+
+  private PointInTimeView.Image image(String key) {
+    StoreEntry entry = map.get(key);
+    StoreEntry frozen = entry instanceof StreamEntry stream ? stream.copy() : entry;
+    return new PointInTimeView.Image(frozen, expiries.deadline(key));
+  }
+
+  String firstExpiredKey() {
+    return expiries.firstExpired(clock.millis());
+  }
+
+  ExpiryIndex expiries() {
+    return expiries;
+  }
+
+  public BlockedClients blockedClients() {
+    return blockedClients;
+  }
+
+  public ActiveExpiry activeExpiry() {
+    return activeExpiry;
+  }
+
+  public long expiredKeys() {
+    return expiredKeys.sum();
+  }
+
+  // Stream reads take no lock, StreamEntry publishes immutable snapshots.
+  public List<Stream> getStreams(String key) {
+    return read(
+        key,
+        () -> {
+          StoreEntry entry = lookup(key);
+
+          if (!(entry instanceof StreamEntry streamEntry))
+            throw new IllegalArgumentException(key + " is not a stream");
+
+          return streamEntry.all();
+        });
+  }
+
+  // Entries after the given ID, null when there is no such key.
+  public StreamEntry.Range getStreamTail(String key, StreamId after, long count) {
+    return read(
+        key,
+        () -> {
+          StoreEntry entry = lookup(key);
+
+          if (entry == null) {
+            return null;
+          }
+
+          if (!(entry instanceof StreamEntry streamEntry))
+            throw new IllegalArgumentException(key + " is not a stream");
+
+          return streamEntry.after(after, count);
+        });
+  }
+
+  // What "$" stands for in XREAD, 0-0 when there is no such key yet.
+  public StreamId getLastStreamId(String key) {
+    return read(
+        key,
+        () -> {
+          StoreEntry entry = lookup(key);
+
+          if (entry == null) {
+            return StreamEntry.MIN_ID;
+          }
+
+          if (!(entry instanceof StreamEntry streamEntry))
+            throw new IllegalArgumentException(key + " is not a stream");
+
+          return streamEntry.lastId();
+        });
+  }
+
+  // Null when there is no such key.
+  public StreamEntry.Range getStreamRange(
+      String key, StreamId from, StreamId to, long count, boolean reverse) {
+    return read(
+        key,
+        () -> {
+          StoreEntry entry = lookup(key);
+
+          if (entry == null) {
+            return null;
+          }
+
+          if (!(entry instanceof StreamEntry streamEntry))
+            throw new IllegalArgumentException(key + " is not a stream");
+
+          return streamEntry.range(from, to, count, reverse);
+        });
+  }
+
+  public StreamEntry getStreamEntry(String key) {
+    logger.debug("Getting: {}", key);
+
+    StoreEntry entry = lookup(key);
+
+    logger.debug("Got: " + entry);
+
+    if (!(entry instanceof StreamEntry streamEntry))
+      throw new IllegalArgumentException(key + " is not a stream");
+
+    return streamEntry;
+  }
+
+  // Null lastDelivered stands for "$", the last ID of the stream when the group is created. False
+  // when the group already exists.
+  public boolean createGroup(String key, String group, StreamId lastDelivered, boolean mkstream) {
     KeyLock lock = getKeyLock(key);
     lock.lock();
     try {
-      StoreEntry entry = map.get(key);
+      beforeWrite(key);
+      long now = clock.millis();
+      StoreEntry entry =
+          map.compute(
+              key,
+              (k, existing) -> {
+                StoreEntry live = live(k, existing, now);
+                return live == null && mkstream ? new StreamEntry() : live;
+              });
+
+      if (entry == null) {
+        throw new IllegalArgumentException(
+            "The XGROUP subcommand requires the key to exist. Note that for CREATE you may want"
+                + " to use the MKSTREAM option to create an empty stream automatically.");
+      }
 
       if (!(entry instanceof StreamEntry streamEntry))
         throw new IllegalArgumentException(key + " is not a stream");
 
-      return streamEntry.getValues().subMap(fromKey.from(), true, toKey.to(), true);
+      StreamId id = lastDelivered != null ? lastDelivered : streamEntry.lastId();
+
+      if (!streamEntry.createGroup(group, id)) {
+        return false;
+      }
+
+      log("XGROUP", "CREATE", key, group, id.toString(), "MKSTREAM");
+      return true;
     } finally {
       lock.unlock();
     }
   }
 
-  public StreamEntry getStreamEntry(String key) {
+  // New entries for the consumer when from is null (">"), which become pending unless noAck.
+  // Otherwise the consumer's pending entries after from, with null values for those trimmed from
+  // the stream since they were delivered.
+  public List<Stream> readGroup(
+      String key, String group, String consumer, StreamId from, long count, boolean noAck) {
     KeyLock lock = getKeyLock(key);
     lock.lock();
     try {
-      logger.debug("Getting: {}", key);
+      StreamEntry stream = getStream(key);
+      ConsumerGroup consumerGroup =
+          getGroup(stream, key, group, " in XREADGROUP with GROUP option");
+      long now = clock.millis();
 
-      StoreEntry entry = map.get(key);
+      // What is delivered is found first: a read that delivers nothing, as a blocked one polling,
+      // changes no WATCH version and copies nothing into an open view.
+      if (from == null) {
+        List<Stream> entries = stream.after(consumerGroup.lastDelivered(), count).all();
 
-      logger.debug("Got: " + entry);
+        if (!entries.isEmpty()) {
+          beforeWrite(key);
+        }
 
-      if (!(entry instanceof StreamEntry streamEntry))
-        throw new IllegalArgumentException(key + " is not a stream");
+        consumerGroup.deliver(consumer, entries, now, noAck);
+        logRead(key, group, consumer, entries.size(), noAck, ">");
+        return entries;
+      }
 
-      return streamEntry;
+      List<StreamId> ids = consumerGroup.pendingAfter(consumer, from, count);
+
+      if (!ids.isEmpty()) {
+        beforeWrite(key);
+      }
+
+      consumerGroup.redeliver(consumer, ids, now);
+      List<Stream> entries = new ArrayList<>();
+
+      for (StreamId id : ids) {
+        List<Stream> found = stream.range(id, id);
+        entries.add(found.isEmpty() ? new Stream(id, null) : found.getFirst());
+      }
+
+      logRead(key, group, consumer, entries.size(), false, from.toString());
+      return entries;
     } finally {
       lock.unlock();
     }
   }
 
+  private void logRead(
+      String key, String group, String consumer, int count, boolean noAck, String from) {
+    if (count == 0 || !logging()) {
+      return;
+    }
+
+    List<String> command = new ArrayList<>(List.of("XREADGROUP", "GROUP", group, consumer));
+    command.addAll(List.of("COUNT", Integer.toString(count)));
+
+    if (noAck) {
+      command.add("NOACK");
+    }
+
+    command.addAll(List.of("STREAMS", key, from));
+    log(command);
+  }
+
+  // How many of the IDs were pending, 0 when there is no such key or group.
+  public long ackStream(String key, String group, List<StreamId> ids) {
+    KeyLock lock = getKeyLock(key);
+    lock.lock();
+    try {
+      beforeWrite(key);
+      StreamEntry stream = getStream(key);
+      ConsumerGroup consumerGroup = stream != null ? stream.group(group) : null;
+      long acked = 0;
+
+      if (consumerGroup == null) {
+        return 0;
+      }
+
+      List<String> command = new ArrayList<>(List.of("XACK", key, group));
+
+      for (StreamId id : ids) {
+        if (consumerGroup.ack(id)) {
+          command.add(id.toString());
+          acked++;
+        }
+      }
+
+      if (acked > 0) {
+        log(command);
+      }
+
+      return acked;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public ConsumerGroup.Summary pendingSummary(String key, String group) {
+    KeyLock lock = getKeyLock(key);
+    lock.lock();
+    try {
+      return getGroup(getStream(key), key, group, "").summary();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Pending entries idle for at least minIdle millis, of one consumer when it is not null.
+  public List<ConsumerGroup.PendingEntry> pendingEntries(
+      String key,
+      String group,
+      StreamId start,
+      StreamId end,
+      long count,
+      String consumer,
+      long minIdle) {
+    KeyLock lock = getKeyLock(key);
+    lock.lock();
+    try {
+      return getGroup(getStream(key), key, group, "")
+          .pending(start, end, count, consumer, minIdle, clock.millis());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // The claimed entries. Pending entries trimmed from the stream are acknowledged instead, so
+  // consumers stop retrying them.
+  public List<Stream> claimStream(
+      String key, String group, String consumer, List<StreamId> ids, ConsumerGroup.Claim claim) {
+    KeyLock lock = getKeyLock(key);
+    lock.lock();
+    try {
+      beforeWrite(key);
+      StreamEntry stream = getStream(key);
+      ConsumerGroup consumerGroup = getGroup(stream, key, group, "");
+      List<Stream> claimed = new ArrayList<>();
+      long now = clock.millis();
+
+      for (StreamId id : consumerGroup.claim(consumer, ids, claim, now)) {
+        List<Stream> found = stream.range(id, id);
+
+        if (found.isEmpty()) {
+          consumerGroup.ack(id);
+          log("XACK", key, group, id.toString());
+        } else {
+          claimed.add(found.getFirst());
+          logClaim(key, group, consumer, consumerGroup, id, now);
+        }
+      }
+
+      return claimed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Logged with the delivery time and count it ended with, which do not depend on when it replays.
+  private void logClaim(
+      String key, String group, String consumer, ConsumerGroup pel, StreamId id, long now) {
+    if (!logging()) {
+      return;
+    }
+
+    ConsumerGroup.PendingEntry entry =
+        pel.pending(id, id, 1, consumer, Long.MIN_VALUE, now).getFirst();
+    log(
+        "XCLAIM",
+        key,
+        group,
+        consumer,
+        "0",
+        id.toString(),
+        "TIME",
+        Long.toString(now - entry.idle()),
+        "RETRYCOUNT",
+        Long.toString(entry.deliveries()));
+  }
+
+  // Null when there is no such key.
+  private StreamEntry getStream(String key) {
+    StoreEntry entry = lookup(key);
+
+    if (entry == null) {
+      return null;
+    }
+
+    if (!(entry instanceof StreamEntry streamEntry))
+      throw new IllegalArgumentException(key + " is not a stream");
+
+    return streamEntry;
+  }
+
+  private ConsumerGroup getGroup(StreamEntry stream, String key, String group, String context) {
+    ConsumerGroup consumerGroup = stream != null ? stream.group(group) : null;
+
+    if (consumerGroup == null) {
+      throw new IllegalArgumentException(
+          "NOGROUP No such key '" + key + "' or consumer group '" + group + "'" + context);
+    }
+
+    return consumerGroup;
+  }
+
   public String setStreamEntry(String key, String id, List<String> values) {
+    return setStreamEntry(key, id, values, null);
+  }
+
+  // Adds the entry then trims the stream when a trim is given, both under the key lock.
+  public String setStreamEntry(String key, String id, List<String> values, StreamEntry.Trim trim) {
+    String generatedID;
     KeyLock lock = getKeyLock(key);
     lock.lock();
     try {
-      logger.error("Adding streams to {}", key);
-      StoreEntry entry = map.computeIfAbsent(key, (_) -> new StreamEntry());
+      beforeWrite(key);
+      logger.debug("Adding streams to {}", key);
+      long now = clock.millis();
+      StoreEntry entry =
+          map.compute(
+              key,
+              (k, existing) -> {
+                StoreEntry live = live(k, existing, now);
+                return live == null ? new StreamEntry() : live;
+              });
 
       if (!(entry instanceof StreamEntry streamEntry))
         throw new IllegalArgumentException(key + " is not a stream");
 
-      String generatedID = streamEntry.add(id, values, clock).toString();
+      generatedID = streamEntry.add(id, values, clock).toString();
 
-      lock.signalAll();
-      logger.error("Signaling new entries");
+      if (logging()) {
+        List<String> command = new ArrayList<>(List.of("XADD", key, generatedID));
+        command.addAll(values);
+        log(command);
+      }
 
-      return generatedID;
+      if (trim != null) {
+        logTrim(key, streamEntry, streamEntry.trim(trim));
+      }
     } finally {
       lock.unlock();
     }
+
+    // Only a successful add wakes the waiters, they read the new entry without the lock.
+    signal(key);
+    return generatedID;
+  }
+
+  // How many entries were removed, 0 when there is no such key.
+  public long trimStream(String key, StreamEntry.Trim trim) {
+    KeyLock lock = getKeyLock(key);
+    lock.lock();
+    try {
+      beforeWrite(key);
+      StoreEntry entry = lookup(key);
+
+      if (entry == null) {
+        return 0;
+      }
+
+      if (!(entry instanceof StreamEntry streamEntry))
+        throw new IllegalArgumentException(key + " is not a stream");
+
+      return logTrim(key, streamEntry, streamEntry.trim(trim));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Approximate trims depend on the chunk layout, the length left replays the same on any layout.
+  private long logTrim(String key, StreamEntry stream, long removed) {
+    if (removed > 0) {
+      log("XTRIM", key, "MAXLEN", Long.toString(stream.length()));
+    }
+
+    return removed;
   }
 
   public String type(String key) {
-    StoreEntry entry = map.get(key);
+    StoreEntry entry = read(key, () -> lookup(key));
 
     if (entry == null) return "none";
 
@@ -2,4 +2,4 @@ package be.julienpiron.redis;
 
 import java.util.List;
 
-public record Stream(List<String> values) {}
+public record Stream(StreamId id, List<String> values) {}
@@ -0,0 +1,325 @@
+package be.julienpiron.redis;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Up to MAX_ENTRIES consecutive stream entries packed in one byte array. IDs are varint deltas from
+// the previous entry and the field names of the first entry (master fields) are kept once, so an
+// entry with the same fields only stores its values.
+//
+// Entry layout: flags, ms delta, seq (delta when ms is unchanged, raw otherwise), then either the
+// values when SAME_FIELDS is set, or a pair count followed by field and value pairs. Strings are a
+// varint byte length followed by UTF-8 bytes.
+//
+// A chunk never changes once built: appending returns a new chunk that may share the byte array
+// but only writes past the end of the older one, so readers holding it see a fixed set of entries.
+// Appends to a given chunk must be serialized, Store does it under the key lock.
+//
+// Trimming the front of a chunk keeps the same bytes and only moves the offset to the new first
+// entry, whose deltas are ignored since its ID is kept in "first".
+public class StreamChunk {
+  static final int MAX_ENTRIES = 100;
+  static final int MAX_BYTES = 4096;
+
+  private static final int SAME_FIELDS = 1;
+
+  private final StreamId first;
+  private final String[] masterFields;
+  private final byte[] data;
+  private final int offset;
+  private final int size;
+  private final int count;
+  private final StreamId last;
+
+  private StreamChunk(
+      StreamId first,
+      String[] masterFields,
+      byte[] data,
+      int offset,
+      int size,
+      int count,
+      StreamId last) {
+    this.first = first;
+    this.masterFields = masterFields;
+    this.data = data;
+    this.offset = offset;
+    this.size = size;
+    this.count = count;
+    this.last = last;
+  }
+
+  static StreamChunk start(StreamId id, List<String> fieldsAndValues) {
+    String[] masterFields = new String[fieldsAndValues.size() / 2];
+
+    for (int i = 0; i < masterFields.length; i++) {
+      masterFields[i] = fieldsAndValues.get(i * 2);
+    }
+
+    return new StreamChunk(id, masterFields, new byte[64], 0, 0, 0, id).append(id, fieldsAndValues);
+  }
+
+  public StreamId first() {
+    return first;
+  }
+
+  public StreamId last() {
+    return last;
+  }
+
+  public int count() {
+    return count;
+  }
+
+  boolean isFull() {
+    return count >= MAX_ENTRIES || size - offset >= MAX_BYTES;
+  }
+
+  StreamChunk append(StreamId id, List<String> fieldsAndValues) {
+    Encoder encoder = new Encoder(data, size);
+    boolean sameFields = hasMasterFields(fieldsAndValues);
+    long msDelta = id.milliseconds() - last.milliseconds();
+
+    encoder.writeByte(sameFields ? SAME_FIELDS : 0);
+    encoder.writeVarLong(msDelta);
+    encoder.writeVarLong(msDelta == 0 ? id.sequence() - last.sequence() : id.sequence());
+
+    if (sameFields) {
+      for (int i = 1; i < fieldsAndValues.size(); i += 2) {
+        encoder.writeString(fieldsAndValues.get(i));
+      }
+    } else {
+      encoder.writeVarLong(fieldsAndValues.size() / 2);
+      for (String value : fieldsAndValues) {
+        encoder.writeString(value);
+      }
+    }
+
+    return new StreamChunk(
+        first, masterFields, encoder.data, offset, encoder.size, count + 1, id);
+  }
+
+  // The same entries without the spare capacity, once no more entries will be appended.
+  StreamChunk seal() {
+    byte[] trimmed = Arrays.copyOfRange(data, offset, size);
+    return new StreamChunk(first, masterFields, trimmed, 0, trimmed.length, count, last);
+  }
+
+  // The same chunk without its first "n" entries nor any entry with an ID below "below". At least
+  // one entry must be left, callers drop whole chunks instead.
+  StreamChunk dropFirst(int n, StreamId below) {
+    long milliseconds = first.milliseconds();
+    long sequence = first.sequence();
+    int[] cursor = {offset};
+
+    for (int i = 0; i < count; i++) {
+      int start = cursor[0];
+      int flags = data[cursor[0]++];
+      long msDelta = readVarLong(cursor);
+      long seq = readVarLong(cursor);
+
+      if (i > 0) {
+        milliseconds += msDelta;
+        sequence = msDelta == 0 ? sequence + seq : seq;
+      }
+
+      StreamId id = new StreamId(milliseconds, sequence);
+
+      if (i >= n && id.compareTo(below) >= 0) {
+        return i == 0
+            ? this
+            : new StreamChunk(id, masterFields, data, start, size, count - i, last);
+      }
+
+      int strings =
+          (flags & SAME_FIELDS) != 0 ? masterFields.length : 2 * (int) readVarLong(cursor);
+      for (int v = 0; v < strings; v++) {
+        readString(cursor, false);
+      }
+    }
+
+    throw new IllegalStateException("cannot drop every entry of a chunk");
+  }
+
+  // Dumps keep the encoded bytes as they are, so loading a chunk decodes nothing.
+  void write(DataOutput out) throws IOException {
+    Dump.writeId(out, first);
+    Dump.writeId(out, last);
+    out.writeInt(count);
+    out.writeInt(masterFields.length);
+
+    for (String field : masterFields) {
+      Dump.writeString(out, field);
+    }
+
+    out.writeInt(size - offset);
+    out.write(data, offset, size - offset);
+  }
+
+  static StreamChunk read(DataInput in) throws IOException {
+    StreamId first = Dump.readId(in);
+    StreamId last = Dump.readId(in);
+    int count = in.readInt();
+    String[] masterFields = new String[in.readInt()];
+
+    for (int i = 0; i < masterFields.length; i++) {
+      masterFields[i] = Dump.readString(in);
+    }
+
+    byte[] data = new byte[in.readInt()];
+    in.readFully(data);
+
+    return new StreamChunk(first, masterFields, data, 0, data.length, count, last);
+  }
+
+  // Decodes the entries with from <= id <= to, in order, into the result.
+  void collect(StreamId from, StreamId to, List<Stream> result) {
+    decode(from, to, result);
+  }
+
+  int countBetween(StreamId from, StreamId to) {
+    if (first.compareTo(from) >= 0 && last.compareTo(to) <= 0) {
+      return count;
+    }
+
+    return decode(from, to, null);
+  }
+
+  // Walks the entries up to "to" and returns how many are in range. Values are only decoded when
+  // there is a result to add them to.
+  private int decode(StreamId from, StreamId to, List<Stream> result) {
+    long milliseconds = first.milliseconds();
+    long sequence = first.sequence();
+    int[] cursor = {offset};
+    int matches = 0;
+
+    for (int i = 0; i < count; i++) {
+      int flags = data[cursor[0]++];
+      long msDelta = readVarLong(cursor);
+      long seq = readVarLong(cursor);
+
+      if (i > 0) {
+        milliseconds += msDelta;
+        sequence = msDelta == 0 ? sequence + seq : seq;
+      }
+
+      StreamId id = new StreamId(milliseconds, sequence);
+
+      if (id.compareTo(to) > 0) {
+        break;
+      }
+
+      boolean inRange = id.compareTo(from) >= 0;
+      boolean wanted = inRange && result != null;
+      List<String> values = wanted ? new ArrayList<>() : null;
+
+      if ((flags & SAME_FIELDS) != 0) {
+        for (String field : masterFields) {
+          String value = readString(cursor, wanted);
+          if (wanted) {
+            values.add(field);
+            values.add(value);
+          }
+        }
+      } else {
+        int pairs = (int) readVarLong(cursor);
+        for (int p = 0; p < pairs * 2; p++) {
+          String value = readString(cursor, wanted);
+          if (wanted) {
+            values.add(value);
+          }
+        }
+      }
+
+      if (inRange) {
+        matches++;
+      }
+
+      if (wanted) {
+        result.add(new Stream(id, values));
+      }
+    }
+
+    return matches;
+  }
+
+  private boolean hasMasterFields(List<String> fieldsAndValues) {
+    if (fieldsAndValues.size() != masterFields.length * 2) {
+      return false;
+    }
+
+    for (int i = 0; i < masterFields.length; i++) {
+      if (!masterFields[i].equals(fieldsAndValues.get(i * 2))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private String readString(int[] cursor, boolean decode) {
+    int length = (int) readVarLong(cursor);
+    int offset = cursor[0];
+    cursor[0] += length;
+    return decode ? new String(data, offset, length, StandardCharsets.UTF_8) : null;
+  }
+
+  private long readVarLong(int[] cursor) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+
+    do {
+      b = data[cursor[0]++];
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+
+    return value;
+  }
+
+  private static class Encoder {
+    private byte[] data;
+    private int size;
+
+    Encoder(byte[] data, int size) {
+      this.data = data;
+      this.size = size;
+    }
+
+    void writeString(String value) {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeVarLong(bytes.length);
+      ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, data, size, bytes.length);
+      size += bytes.length;
+    }
+
+    void writeByte(int value) {
+      ensureCapacity(1);
+      data[size++] = (byte) value;
+    }
+
+    // Unsigned LEB128, IDs only grow inside a chunk so deltas are never negative.
+    void writeVarLong(long value) {
+      ensureCapacity(10);
+
+      while ((value & ~0x7FL) != 0) {
+        data[size++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+
+      data[size++] = (byte) value;
+    }
+
+    private void ensureCapacity(int extra) {
+      if (size + extra > data.length) {
+        data = Arrays.copyOf(data, Math.max(data.length * 2, size + extra));
+      }
+    }
+  }
+}
@@ -1,41 +1,404 @@
 package be.julienpiron.redis;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.Map;
 import java.util.Optional;
-import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+// Entries are appended to StreamChunks, the chunk list is ordered by first ID and binary searched.
+// Every append publishes a new immutable Snapshot, so readers need no lock and always see a whole
+// number of entries. Appends must be serialized by the caller, Store holds the key lock.
 public class StreamEntry implements StoreEntry {
-  private TreeMap<StreamId, Stream> streams = new TreeMap<>();
+  public static final StreamId MIN_ID = new StreamId(0, 0);
+  public static final StreamId MAX_ID = new StreamId(Long.MAX_VALUE, Long.MAX_VALUE);
+
+  // Live sealed chunks are sealed[head] to sealed[sealedCount - 1]. Slots are never rewritten once
+  // filled, so appending a chunk to the shared array does not affect older snapshots. Trimming only
+  // moves head, and a partly trimmed first chunk is kept in front rather than in the array. Last is
+  // the highest ID ever added, which trimming does not lower.
+  private record Snapshot(
+      StreamChunk[] sealed,
+      int head,
+      StreamChunk front,
+      int sealedCount,
+      StreamChunk tail,
+      long length,
+      StreamId last) {
+    int chunkCount() {
+      return sealedCount - head + (tail == null ? 0 : 1);
+    }
+
+    StreamChunk chunk(int index) {
+      if (head + index >= sealedCount) {
+        return tail;
+      }
+
+      return index == 0 && front != null ? front : sealed[head + index];
+    }
+  }
+
+  private static final Snapshot EMPTY =
+      new Snapshot(new StreamChunk[0], 0, null, 0, null, 0, MIN_ID);
+
+  // XADD and XTRIM trimming: entries are removed from the front while the stream is longer than
+  // maxLength or their ID is below minId. In approximate mode only whole chunks are removed, so
+  // the stream may keep up to a chunk more than asked but no entry is ever decoded to trim it.
+  public record Trim(long maxLength, StreamId minId, boolean approximate) {
+    public static Trim maxLength(long maxLength, boolean approximate) {
+      return new Trim(maxLength, MIN_ID, approximate);
+    }
+
+    public static Trim minId(StreamId minId, boolean approximate) {
+      return new Trim(Long.MAX_VALUE, minId, approximate);
+    }
+
+    // Whether every entry of the chunk goes, "length" being the stream length before it is dropped.
+    private boolean dropsAll(StreamChunk chunk, long length) {
+      return length - chunk.count() >= maxLength || chunk.last().compareTo(minId) < 0;
+    }
+
+    private StreamChunk dropSome(StreamChunk chunk, long length) {
+      return chunk.dropFirst((int) Math.max(0, length - maxLength), minId);
+    }
+  }
+
+  private volatile Snapshot snapshot = EMPTY;
+
+  // Only used under the key lock, unlike the snapshot.
+  private final Map<String, ConsumerGroup> groups = new HashMap<>();
 
   @Override
   public String type() {
     return "stream";
   }
 
+  // False when the group already exists.
+  public boolean createGroup(String name, StreamId lastDelivered) {
+    return groups.putIfAbsent(name, new ConsumerGroup(lastDelivered)) == null;
+  }
+
+  public ConsumerGroup group(String name) {
+    return groups.get(name);
+  }
+
+  // Shares the immutable snapshot, only the consumer groups are copied.
+  StreamEntry copy() {
+    StreamEntry copy = new StreamEntry();
+    copy.snapshot = snapshot;
+
+    for (Map.Entry<String, ConsumerGroup> group : groups.entrySet()) {
+      copy.groups.put(group.getKey(), group.getValue().copy());
+    }
+
+    return copy;
+  }
+
+  void write(DataOutput out) throws IOException {
+    Snapshot current = snapshot;
+
+    Dump.writeId(out, current.last());
+    out.writeInt(current.chunkCount());
+
+    for (int i = 0; i < current.chunkCount(); i++) {
+      current.chunk(i).write(out);
+    }
+
+    out.writeInt(groups.size());
+
+    for (Map.Entry<String, ConsumerGroup> group : groups.entrySet()) {
+      Dump.writeString(out, group.getKey());
+      group.getValue().write(out);
+    }
+  }
+
+  // Every chunk but the last is sealed, the last one takes new entries.
+  static StreamEntry read(DataInput in) throws IOException {
+    StreamEntry stream = new StreamEntry();
+    StreamId last = Dump.readId(in);
+    int chunks = in.readInt();
+    StreamChunk[] sealed = new StreamChunk[Math.max(0, chunks - 1)];
+    StreamChunk tail = null;
+    long length = 0;
+
+    for (int i = 0; i < chunks; i++) {
+      StreamChunk chunk = StreamChunk.read(in);
+      length += chunk.count();
+
+      if (i < sealed.length) {
+        sealed[i] = chunk;
+      } else {
+        tail = chunk;
+      }
+    }
+
+    stream.snapshot = new Snapshot(sealed, 0, null, sealed.length, tail, length, last);
+
+    for (int i = in.readInt(); i > 0; i--) {
+      stream.groups.put(Dump.readString(in), ConsumerGroup.read(in));
+    }
+
+    return stream;
+  }
+
   public StreamId add(String stringId, List<String> data, Clock clock) {
     StreamId id = parseID(stringId, clock);
 
     validateID(id);
 
-    streams.put(id, new Stream(data));
+    Snapshot current = snapshot;
+    StreamChunk tail = current.tail();
+    StreamChunk[] sealed = current.sealed();
+    int head = current.head();
+    int sealedCount = current.sealedCount();
+
+    if (tail == null) {
+      tail = StreamChunk.start(id, data);
+    } else if (tail.isFull()) {
+      // Growing also leaves the trimmed slots behind, so a capped stream does not keep them alive.
+      if (sealedCount == sealed.length) {
+        int live = sealedCount - head;
+        sealed = Arrays.copyOfRange(sealed, head, head + Math.max(8, live * 2));
+        head = 0;
+        sealedCount = live;
+      }
+      sealed[sealedCount++] = tail.seal();
+      tail = StreamChunk.start(id, data);
+    } else {
+      tail = tail.append(id, data);
+    }
+
+    snapshot =
+        new Snapshot(
+            sealed, head, current.front(), sealedCount, tail, current.length() + 1, id);
 
     return id;
   }
 
-  public TreeMap<StreamId, Stream> getValues() {
-    return streams;
+  // Removes entries from the front of the stream and returns how many. Whole chunks are dropped
+  // without decoding them, at most one chunk is cut in exact mode, so capping the stream on every
+  // XADD costs O(1) amortized. Must be serialized with add, Store holds the key lock.
+  public long trim(Trim trim) {
+    Snapshot current = snapshot;
+    StreamChunk[] sealed = current.sealed();
+    int head = current.head();
+    int sealedCount = current.sealedCount();
+    StreamChunk front = current.front();
+    StreamChunk tail = current.tail();
+    long length = current.length();
+
+    while (head < sealedCount) {
+      StreamChunk chunk = front != null ? front : sealed[head];
+
+      if (!trim.dropsAll(chunk, length)) {
+        break;
+      }
+
+      length -= chunk.count();
+      front = null;
+      head++;
+    }
+
+    if (head == sealedCount && tail != null && trim.dropsAll(tail, length)) {
+      length -= tail.count();
+      tail = null;
+    }
+
+    if (!trim.approximate() && head < sealedCount) {
+      StreamChunk chunk = front != null ? front : sealed[head];
+      front = trim.dropSome(chunk, length);
+      length -= chunk.count() - front.count();
+    } else if (!trim.approximate() && tail != null) {
+      StreamChunk trimmed = trim.dropSome(tail, length);
+      length -= tail.count() - trimmed.count();
+      tail = trimmed;
+    }
+
+    long removed = current.length() - length;
+
+    if (removed == 0) {
+      return 0;
+    }
+
+    if (head == sealedCount) {
+      sealed = EMPTY.sealed();
+      head = 0;
+      sealedCount = 0;
+    }
+
+    snapshot = new Snapshot(sealed, head, front, sealedCount, tail, length, current.last());
+
+    return removed;
+  }
+
+  // Entries with from <= id <= to.
+  public List<Stream> range(StreamId from, StreamId to) {
+    return range(from, to, Long.MAX_VALUE, false).all();
   }
 
-  private Optional<StreamId> getLastID() {
-    try {
-      return Optional.of(streams.lastKey());
-    } catch (NoSuchElementException _) {
-      return Optional.empty();
+  // At most "limit" entries with from <= id <= to, read lazily from the current snapshot.
+  public Range range(StreamId from, StreamId to, long limit, boolean reverse) {
+    return new Range(snapshot, from, to, limit, reverse);
+  }
+
+  public List<Stream> tail(StreamId from, boolean inclusive) {
+    return inclusive ? range(from, MAX_ID) : after(from, Long.MAX_VALUE).all();
+  }
+
+  // At most "limit" entries with an ID strictly greater than the given one.
+  public Range after(StreamId id, long limit) {
+    if (id.equals(MAX_ID)) {
+      return range(MAX_ID, MIN_ID, 0, false);
+    }
+
+    StreamId next =
+        id.sequence() == Long.MAX_VALUE
+            ? new StreamId(id.milliseconds() + 1, 0)
+            : new StreamId(id.milliseconds(), id.sequence() + 1);
+
+    return range(next, MAX_ID, limit, false);
+  }
+
+  public List<Stream> all() {
+    return range(MIN_ID, MAX_ID);
+  }
+
+  public StreamId lastId() {
+    return getLastID().orElse(MIN_ID);
+  }
+
+  public long length() {
+    return snapshot.length();
+  }
+
+  // Index of the last chunk starting at or before the ID, 0 when the ID precedes every chunk.
+  private static int chunkFor(Snapshot snapshot, StreamId id) {
+    int low = 0;
+    int high = snapshot.chunkCount() - 1;
+    int found = 0;
+
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+
+      if (snapshot.chunk(middle).first().compareTo(id) <= 0) {
+        found = middle;
+        low = middle + 1;
+      } else {
+        high = middle - 1;
+      }
+    }
+
+    return found;
+  }
+
+  // Walks one snapshot chunk by chunk, in either direction, so a large range can be encoded in
+  // bounded batches. The snapshot never changes, so size() always matches what the batches yield.
+  public static class Range {
+    private final Snapshot snapshot;
+    private final StreamId from;
+    private final StreamId to;
+    private final long limit;
+    private final boolean reverse;
+    private final int start;
+    private int index;
+    private long remaining;
+
+    private Range(Snapshot snapshot, StreamId from, StreamId to, long limit, boolean reverse) {
+      this.snapshot = snapshot;
+      this.from = from;
+      this.to = to;
+      this.limit = limit;
+      this.reverse = reverse;
+      this.start = chunkFor(snapshot, reverse ? to : from);
+      this.index = start;
+      this.remaining = limit;
     }
+
+    // Counts the IDs in range, only decoding the chunks at either end of it.
+    public long size() {
+      long size = 0;
+
+      for (int i = start; inBounds(i) && size < limit; i = step(i)) {
+        StreamChunk chunk = snapshot.chunk(i);
+
+        if (isPastEnd(chunk)) {
+          break;
+        }
+
+        size += chunk.countBetween(from, to);
+      }
+
+      return Math.min(size, limit);
+    }
+
+    // Whatever is left, in one list.
+    public List<Stream> all() {
+      List<Stream> result = new ArrayList<>();
+      List<Stream> batch;
+
+      while (!(batch = next()).isEmpty()) {
+        result.addAll(batch);
+      }
+
+      return result;
+    }
+
+    public boolean hasNext() {
+      return remaining > 0 && inBounds(index) && !isPastEnd(snapshot.chunk(index));
+    }
+
+    // The entries of the next chunk that has any in range, or an empty list once done.
+    public List<Stream> next() {
+      List<Stream> batch = new ArrayList<>();
+
+      while (batch.isEmpty() && remaining > 0 && inBounds(index)) {
+        StreamChunk chunk = snapshot.chunk(index);
+
+        if (isPastEnd(chunk)) {
+          remaining = 0;
+          break;
+        }
+
+        index = step(index);
+        chunk.collect(from, to, batch);
+
+        if (reverse) {
+          Collections.reverse(batch);
+        }
+
+        if (batch.size() > remaining) {
+          batch = batch.subList(0, (int) remaining);
+        }
+      }
+
+      remaining -= batch.size();
+      return batch;
+    }
+
+    private boolean isPastEnd(StreamChunk chunk) {
+      return reverse ? chunk.last().compareTo(from) < 0 : chunk.first().compareTo(to) > 0;
+    }
+
+    private boolean inBounds(int index) {
+      return index >= 0 && index < snapshot.chunkCount();
+    }
+
+    private int step(int index) {
+      return reverse ? index - 1 : index + 1;
+    }
+  }
+
+  private Optional<StreamId> getLastID() {
+    StreamId last = snapshot.last();
+    return last.equals(MIN_ID) ? Optional.empty() : Optional.of(last);
   }
 
   public StreamId parseID(String input, Clock clock) {
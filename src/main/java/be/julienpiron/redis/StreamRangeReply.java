@@ -0,0 +1,32 @@
+package be.julienpiron.redis;
+
+// XRANGE and XREVRANGE reply, encoded one chunk of entries at a time so a large range is never
+// materialized whole before reaching the socket.
+class StreamRangeReply implements IncrementalReply {
+  private final StreamEntry.Range range;
+  private boolean started;
+
+  StreamRangeReply(StreamEntry.Range range) {
+    this.range = range;
+  }
+
+  @Override
+  public boolean writeSome(RESPWriter writer) {
+    if (!started) {
+      writer.writeHeader((byte) '*', range.size());
+      started = true;
+    }
+
+    for (Stream stream : range.next()) {
+      writer.writeHeader((byte) '*', 2);
+      RESP.writeBulkString(writer, stream.id().toString());
+      writer.writeHeader((byte) '*', stream.values().size());
+
+      for (String value : stream.values()) {
+        RESP.writeBulkString(writer, value);
+      }
+    }
+
+    return range.hasNext();
+  }
+}
@@ -0,0 +1,17 @@
+package be.julienpiron.redis;
+
+// The value of a string key. One that is the canonical form of a long is kept as the number, so
+// INCR and friends neither parse nor allocate a String.
+public sealed interface StringValue extends StoreEntry permits StringEntry, IntegerEntry {
+  String value();
+
+  @Override
+  default String type() {
+    return "string";
+  }
+
+  static StringValue of(String value) {
+    IntegerEntry integer = IntegerEntry.parse(value);
+    return integer != null ? integer : new StringEntry(value);
+  }
+}
@@ -0,0 +1,63 @@
+package be.julienpiron.redis;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// MULTI/EXEC state of one client connection: the requests queued since MULTI and the versions the
+// watched keys had when WATCH was called. Touched by the thread serving the connection, except
+// that with shards WATCH and EXEC run on the owning shard's thread. The connection reads nothing
+// further until their deferred reply is known, and handing the command over and completing the
+// reply order the shard's accesses between the connection's.
+public class Transaction {
+  private final Map<String, Long> watched = new LinkedHashMap<>();
+  // Null outside MULTI.
+  private List<Queued> queued;
+  private boolean aborted;
+
+  record Queued(Command command, Request request) {}
+
+  boolean queuing() {
+    return queued != null;
+  }
+
+  boolean aborted() {
+    return aborted;
+  }
+
+  void begin() {
+    queued = new ArrayList<>();
+    aborted = false;
+  }
+
+  void queue(Command command, Request request) {
+    queued.add(new Queued(command, request));
+  }
+
+  // A queued command could never run, EXEC discards the whole transaction.
+  void abort() {
+    aborted = true;
+  }
+
+  List<Queued> queued() {
+    return queued;
+  }
+
+  void end() {
+    queued = null;
+    aborted = false;
+  }
+
+  boolean isWatching(String key) {
+    return watched.containsKey(key);
+  }
+
+  void watch(String key, long version) {
+    watched.put(key, version);
+  }
+
+  Map<String, Long> watched() {
+    return watched;
+  }
+}
@@ -0,0 +1,70 @@
+package be.julienpiron.redis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class ActiveExpiryTest {
+  private TestStore store;
+
+  @BeforeEach
+  void setUp() {
+    store = new TestStore();
+  }
+
+  @Test
+  void shouldReclaimExpiredKeysThatAreNeverRead() {
+    for (int i = 0; i < 100; i++) {
+      store.setString("volatile:" + i, "value", Duration.ofSeconds(1));
+    }
+    for (int i = 0; i < 10; i++) {
+      store.setString("persistent:" + i, "value");
+    }
+
+    store.advanceClock(Duration.ofSeconds(2));
+
+    assertEquals(100, store.activeExpiry().runCycle(Long.MAX_VALUE));
+    assertEquals(100, store.expiredKeys());
+    assertEquals("none", store.type("volatile:42"));
+    assertEquals("string", store.type("persistent:4"));
+    assertEquals(0, store.expiries().size());
+  }
+
+  @Test
+  void shouldKeepKeysThatAreNotExpiredYet() {
+    store.setString("short", "value", Duration.ofSeconds(1));
+    store.setString("long", "value", Duration.ofSeconds(10));
+
+    store.advanceClock(Duration.ofSeconds(2));
+
+    assertEquals(1, store.activeExpiry().runCycle(Long.MAX_VALUE));
+    assertEquals("none", store.type("short"));
+    assertEquals("string", store.type("long"));
+  }
+
+  @Test
+  void shouldStopWhenTheTimeBudgetIsSpent() {
+    for (int i = 0; i < 100; i++) {
+      store.setString("volatile:" + i, "value", Duration.ofSeconds(1));
+    }
+
+    store.advanceClock(Duration.ofSeconds(2));
+
+    assertEquals(20, store.activeExpiry().runCycle(0));
+    assertEquals(1, store.activeExpiry().timeCapReached());
+  }
+
+  @Test
+  void shouldForgetKeysOverwrittenWithoutTTL() {
+    store.setString("key", "value", Duration.ofSeconds(1));
+    store.setString("key", "value");
+
+    store.advanceClock(Duration.ofSeconds(2));
+
+    assertEquals(0, store.activeExpiry().runCycle(Long.MAX_VALUE));
+    assertEquals("string", store.type("key"));
+    assertEquals(0, store.expiries().size());
+  }
+}
@@ -0,0 +1,249 @@
+package be.julienpiron.redis;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class AppendOnlyFileTest {
+  private TestStore store;
+  private Path path;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    store = new TestStore();
+    path = Files.createTempDirectory("aof-test").resolve("appendonly.aof");
+  }
+
+  private AppendOnlyFile open(FsyncPolicy policy) throws IOException {
+    AppendOnlyFile aof = new AppendOnlyFile(path, policy);
+    aof.open();
+    store.attach(aof);
+    return aof;
+  }
+
+  private TestStore replay() throws IOException {
+    TestStore loaded = new TestStore();
+    Saver saver = new Saver(loaded, path.resolveSibling("dump.db"));
+    new AppendOnlyFile(path, FsyncPolicy.EVERYSEC).load(loaded, new RequestHandler(loaded, saver));
+    return loaded;
+  }
+
+  private static Request request(String command, String... args) {
+    return new Request(
+        command.getBytes(StandardCharsets.UTF_8),
+        Arrays.stream(args).map(arg -> arg.getBytes(StandardCharsets.UTF_8)).toList());
+  }
+
+  @Test
+  void shouldReplayWhatWasLogged() throws IOException {
+    AppendOnlyFile aof = open(FsyncPolicy.EVERYSEC);
+
+    store.setString("owl", "Hedwig");
+    store.setString("letter", "Hogwarts", Duration.ofSeconds(10));
+    store.setString("cat", "Crookshanks", Duration.ofSeconds(10));
+    store.persist("cat");
+    store.setString("galleons", "9", Duration.ofSeconds(10));
+    store.incrementBy("galleons", 2);
+    store.setStrings(List.of("toad", "Trevor", "rat", "Scabbers"));
+    store.delete(List.of("rat", "dog"));
+
+    for (int i = 0; i < 200; i++) {
+      store.setStreamEntry("post", "*", List.of("n", Integer.toString(i)));
+    }
+
+    store.trimStream("post", StreamEntry.Trim.maxLength(150, true));
+    store.createGroup("post", "owlery", null, false);
+    store.setStreamEntry("post", "*", List.of("n", "last"), StreamEntry.Trim.maxLength(120, false));
+    store.createGroup("post", "hogsmeade", StreamEntry.MIN_ID, false);
+    List<Stream> read = store.readGroup("post", "hogsmeade", "errol", null, 3, false);
+    store.readGroup("post", "hogsmeade", "errol", StreamEntry.MIN_ID, 1, false);
+    store.ackStream("post", "hogsmeade", List.of(read.get(0).id()));
+    store.advanceClock(Duration.ofSeconds(5));
+    store.claimStream(
+        "post",
+        "hogsmeade",
+        "pigwidgeon",
+        List.of(read.get(2).id()),
+        new ConsumerGroup.Claim(0, -1, -1, -1, false));
+    aof.close();
+
+    TestStore loaded = replay();
+    loaded.advanceClock(Duration.ofSeconds(5));
+
+    assertEquals("Hedwig", loaded.getString("owl"));
+    assertEquals(5_000, loaded.ttl("letter"));
+    assertEquals(-1, loaded.ttl("cat"));
+    assertEquals("11", loaded.getString("galleons"));
+    assertEquals(5_000, loaded.ttl("galleons"));
+    assertEquals(Arrays.asList("Trevor", null), loaded.getStrings(List.of("toad", "rat")));
+    assertEquals(store.getStreams("post"), loaded.getStreams("post"));
+    assertEquals(
+        store.pendingSummary("post", "hogsmeade"), loaded.pendingSummary("post", "hogsmeade"));
+    assertEquals(
+        store.pendingEntries(
+            "post", "hogsmeade", StreamEntry.MIN_ID, StreamEntry.MAX_ID, 10, null, 0),
+        loaded.pendingEntries(
+            "post", "hogsmeade", StreamEntry.MIN_ID, StreamEntry.MAX_ID, 10, null, 0));
+    assertEquals(
+        store.pendingSummary("post", "owlery"), loaded.pendingSummary("post", "owlery"));
+  }
+
+  @Test
+  void shouldTruncateACommandCutShort() throws IOException {
+    AppendOnlyFile aof = open(FsyncPolicy.NO);
+    store.setString("owl", "Hedwig");
+    aof.close();
+
+    long complete = Files.size(path);
+    byte[] cut = "*3\r\n$3\r\nSET\r\n$3\r\nowl".getBytes(StandardCharsets.UTF_8);
+    Files.write(path, cut, StandardOpenOption.APPEND);
+
+    assertEquals("Hedwig", replay().getString("owl"));
+    assertEquals(complete, Files.size(path));
+  }
+
+  @Test
+  void shouldLogAnEXECAsOneBlock() throws IOException {
+    AppendOnlyFile aof = open(FsyncPolicy.NO);
+    store.atomically(
+        List.of("owl", "cat"),
+        () -> {
+          store.setString("owl", "Hedwig");
+          store.setString("cat", "Crookshanks");
+          return null;
+        });
+    aof.close();
+
+    String log = Files.readString(path);
+    assertTrue(log.startsWith("*1\r\n$5\r\nMULTI\r\n"));
+    assertTrue(log.endsWith("*1\r\n$4\r\nEXEC\r\n"));
+
+    TestStore loaded = replay();
+    assertEquals(Arrays.asList("Hedwig", "Crookshanks"), loaded.getStrings(List.of("owl", "cat")));
+  }
+
+  @Test
+  void shouldTruncateAnEXECCutShort() throws IOException {
+    AppendOnlyFile aof = open(FsyncPolicy.NO);
+    store.setString("owl", "Hedwig");
+    aof.close();
+
+    long complete = Files.size(path);
+    byte[] cut =
+        "*1\r\n$5\r\nMULTI\r\n*3\r\n$3\r\nSET\r\n$3\r\ncat\r\n$3\r\nMrs\r\n"
+            .getBytes(StandardCharsets.UTF_8);
+    Files.write(path, cut, StandardOpenOption.APPEND);
+
+    TestStore loaded = replay();
+    assertEquals("Hedwig", loaded.getString("owl"));
+    assertEquals(null, loaded.getString("cat"));
+    assertEquals(complete, Files.size(path));
+  }
+
+  @Test
+  void shouldAnswerOnceTheRecordIsOnDiskWithAlways() throws Exception {
+    AppendOnlyFile aof = open(FsyncPolicy.ALWAYS);
+    RequestHandler handler = new RequestHandler(store, null, aof);
+
+    RESPDataType reply = handler.handle(request("SET", "owl", "Hedwig"));
+
+    if (reply instanceof RESP.Deferred deferred) {
+      reply = deferred.reply().get(1, TimeUnit.SECONDS);
+    }
+
+    assertEquals(RESP.OK, reply);
+    assertTrue(Files.size(path) > 0);
+    aof.close();
+  }
+
+  @Test
+  void shouldKeepWritesMadeDuringARewrite() throws IOException {
+    AppendOnlyFile aof = open(FsyncPolicy.EVERYSEC);
+
+    for (int i = 0; i < 1000; i++) {
+      store.setString("owl", "Hedwig" + i);
+    }
+
+    assertTrue(aof.rewrite(store));
+
+    for (int i = 0; i < 100; i++) {
+      store.setStreamEntry("post", "1-" + (i + 1), List.of("n", Integer.toString(i)));
+    }
+
+    await().atMost(2000, MILLISECONDS).until(() -> !aof.rewriteInProgress());
+    store.setString("cat", "Crookshanks");
+    aof.close();
+
+    TestStore loaded = replay();
+
+    // Well below the thousand SET records the rewrite replaced.
+    assertTrue(Files.size(path) < 1000 * "SET owl Hedwig999".length());
+    assertEquals("Hedwig999", loaded.getString("owl"));
+    assertEquals("Crookshanks", loaded.getString("cat"));
+    assertEquals(store.getStreams("post"), loaded.getStreams("post"));
+  }
+
+  @Test
+  void shouldStartANewLogFromTheDump() throws IOException {
+    Path dump = path.resolveSibling("dump.db");
+    store.setString("owl", "Hedwig");
+    new Saver(store, dump).save();
+
+    AppendOnlyFile aof = new AppendOnlyFile(path, FsyncPolicy.EVERYSEC);
+    aof.startFrom(dump);
+    aof.open();
+    store.attach(aof);
+    store.setString("cat", "Crookshanks");
+    aof.close();
+
+    TestStore loaded = replay();
+
+    assertEquals("Hedwig", loaded.getString("owl"));
+    assertEquals("Crookshanks", loaded.getString("cat"));
+    assertTrue(Files.notExists(path.resolveSibling("temp-rewrite-appendonly.aof")));
+  }
+
+  @Test
+  void shouldRewriteOnlyOnceNothingElseReadsTheView() throws Exception {
+    AppendOnlyFile aof = open(FsyncPolicy.EVERYSEC);
+    store.setString("owl", "Hedwig");
+    assertTrue(store.tryClaimView());
+
+    assertFalse(aof.rewrite(store));
+
+    CompletableFuture<Boolean> rewritten =
+        CompletableFuture.supplyAsync(
+            () -> {
+              try {
+                return aof.rewriteNow(store);
+              } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+              }
+            });
+
+    Thread.sleep(100);
+    assertFalse(rewritten.isDone());
+    store.releaseView();
+
+    assertTrue(rewritten.get(2000, MILLISECONDS));
+    assertTrue(store.tryClaimView());
+    aof.close();
+
+    assertEquals("Hedwig", replay().getString("owl"));
+  }
+}
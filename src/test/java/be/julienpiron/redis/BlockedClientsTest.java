@@ -0,0 +1,135 @@
+package be.julienpiron.redis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class BlockedClientsTest {
+  private final BlockedClients blockedClients = new BlockedClients();
+  private final AtomicInteger polls = new AtomicInteger();
+  private volatile RESPDataType available;
+
+  private RESPDataType poll() {
+    polls.incrementAndGet();
+    return available;
+  }
+
+  private static BlockedClients.Position position(String key, long milliseconds) {
+    return new BlockedClients.Position(
+        List.of(key), List.of(new StreamId(milliseconds, 0)), Long.MAX_VALUE);
+  }
+
+  @Test
+  void shouldEncodeOnceForClientsAtTheSamePosition() {
+    List<CompletableFuture<RESPDataType>> clients =
+        List.of(
+            blockedClients.block(position("owls", 1), this::poll, 0, RESP.NULL_ARRAY),
+            blockedClients.block(position("owls", 1), this::poll, 0, RESP.NULL_ARRAY),
+            blockedClients.block(position("owls", 1), this::poll, 0, RESP.NULL_ARRAY));
+
+    assertEquals(3, blockedClients.size());
+    assertEquals(1, blockedClients.groups());
+
+    polls.set(0);
+    available = new RESP.BulkString("Hedwig");
+    blockedClients.signal("owls");
+
+    assertEquals(1, polls.get());
+    assertEquals("$6\r\nHedwig\r\n", clients.get(0).join().encode());
+    assertSame(clients.get(0).join(), clients.get(1).join());
+    assertSame(clients.get(0).join(), clients.get(2).join());
+    assertEquals(0, blockedClients.size());
+    assertEquals(0, blockedClients.groups());
+  }
+
+  @Test
+  void shouldKeepDifferentPositionsApart() {
+    CompletableFuture<RESPDataType> owls =
+        blockedClients.block(position("owls", 1), this::poll, 0, RESP.NULL_ARRAY);
+    CompletableFuture<RESPDataType> cats =
+        blockedClients.block(position("cats", 1), this::poll, 0, RESP.NULL_ARRAY);
+
+    available = new RESP.BulkString("Crookshanks");
+    blockedClients.signal("cats");
+
+    assertTrue(cats.isDone());
+    assertFalse(owls.isDone());
+    assertEquals(1, blockedClients.groups());
+  }
+
+  @Test
+  void shouldLeaveTheGroupWhenOneClientGoesAway() {
+    CompletableFuture<RESPDataType> first =
+        blockedClients.block(position("owls", 1), this::poll, 0, RESP.NULL_ARRAY);
+    CompletableFuture<RESPDataType> second =
+        blockedClients.block(position("owls", 1), this::poll, 0, RESP.NULL_ARRAY);
+
+    first.cancel(false);
+
+    assertEquals(1, blockedClients.size());
+    assertEquals(1, blockedClients.groups());
+
+    available = new RESP.BulkString("Hedwig");
+    blockedClients.signal("owls");
+
+    assertEquals("$6\r\nHedwig\r\n", second.join().encode());
+    assertEquals(0, blockedClients.groups());
+  }
+
+  @Test
+  void shouldFailOnlyTheGroupWhosePollFails() {
+    CompletableFuture<RESPDataType> broken =
+        blockedClients.block(
+            List.of("owls"),
+            () -> {
+              if (available != null) {
+                throw new IllegalStateException("broken poll");
+              }
+              return null;
+            },
+            0,
+            RESP.NULL_ARRAY);
+    CompletableFuture<RESPDataType> other =
+        blockedClients.block(position("owls", 1), this::poll, 0, RESP.NULL_ARRAY);
+
+    available = new RESP.BulkString("Hedwig");
+    blockedClients.signal("owls");
+
+    assertTrue(broken.join().encode().startsWith("-ERR internal error"));
+    assertEquals("$6\r\nHedwig\r\n", other.join().encode());
+  }
+
+  @Test
+  void shouldNotTimeOutAClientWhoseEntriesAreBeingDelivered() throws Exception {
+    CompletableFuture<RESPDataType> client =
+        blockedClients.block(
+            List.of("owls"),
+            () -> {
+              if (available == null) {
+                return null;
+              }
+
+              try {
+                // The timeout fires while the entries are handed to this client.
+                Thread.sleep(200);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              return available;
+            },
+            50,
+            RESP.NULL_ARRAY);
+
+    available = new RESP.BulkString("Hedwig");
+    blockedClients.signal("owls");
+
+    assertEquals("$6\r\nHedwig\r\n", client.join().encode());
+    assertEquals(0, blockedClients.size());
+  }
+}
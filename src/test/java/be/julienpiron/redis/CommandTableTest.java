@@ -0,0 +1,46 @@
+package be.julienpiron.redis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class CommandTableTest {
+  @Test
+  void shouldLookUpCommandsIgnoringCase() {
+    assertEquals("XRANGE", CommandTable.lookup(bytes("xRange")).name());
+    assertEquals("GET", CommandTable.lookup(bytes("get")).name());
+    assertNull(CommandTable.lookup(bytes("GETT")));
+  }
+
+  @Test
+  void shouldValidateArity() {
+    Command get = CommandTable.lookup(bytes("GET"));
+    Command xadd = CommandTable.lookup(bytes("XADD"));
+
+    assertTrue(get.acceptsArgCount(1));
+    assertFalse(get.acceptsArgCount(2));
+    assertFalse(xadd.acceptsArgCount(3));
+    assertTrue(xadd.acceptsArgCount(6));
+  }
+
+  @Test
+  void shouldFindXREADKeysAfterSTREAMS() {
+    Request request = request("XREAD", "BLOCK", "0", "streams", "a", "b", "0-0", "0-1");
+
+    assertEquals(List.of("a", "b"), CommandTable.lookup(request.name()).keys(request));
+  }
+
+  private static Request request(String command, String... args) {
+    return new Request(bytes(command), Arrays.stream(args).map(CommandTableTest::bytes).toList());
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
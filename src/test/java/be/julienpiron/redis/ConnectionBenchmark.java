@@ -0,0 +1,96 @@
+package be.julienpiron.redis;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Opens many idle connections against a running server, then has every connection issue PINGs
+// round-trip by round-trip and reports throughput and latency percentiles.
+//
+// Usage: ConnectionBenchmark <host> <port> <connections> <requests per connection> [pipeline]
+public class ConnectionBenchmark {
+  private static final byte[] PING = "*1\r\n$4\r\nPING\r\n".getBytes(StandardCharsets.US_ASCII);
+  private static final int PONG_LENGTH = "+PONG\r\n".length();
+
+  public static void main(String[] args) throws Exception {
+    String host = args.length > 0 ? args[0] : "localhost";
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : 6379;
+    int connections = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+    int requests = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+    int pipeline = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+    byte[] batch = new byte[PING.length * pipeline];
+    for (int i = 0; i < pipeline; i++) {
+      System.arraycopy(PING, 0, batch, i * PING.length, PING.length);
+    }
+
+    List<Socket> sockets = new ArrayList<>(connections);
+
+    for (int c = 0; c < connections; c++) {
+      Socket socket = new Socket(host, port);
+      socket.setTcpNoDelay(true);
+      sockets.add(socket);
+    }
+
+    System.out.printf("%d connections open%n", sockets.size());
+
+    long[] latencies = new long[connections * requests];
+    CountDownLatch go = new CountDownLatch(1);
+    long start;
+
+    try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int c = 0; c < connections; c++) {
+        Socket socket = sockets.get(c);
+        int offset = c * requests;
+
+        clients.execute(
+            () -> {
+              try (socket) {
+                OutputStream out = socket.getOutputStream();
+                InputStream in = socket.getInputStream();
+                byte[] response = new byte[PONG_LENGTH * pipeline];
+
+                go.await();
+
+                for (int r = 0; r < requests; r++) {
+                  long requestStart = System.nanoTime();
+                  out.write(batch);
+                  out.flush();
+                  in.readNBytes(response, 0, response.length);
+                  latencies[offset + r] = System.nanoTime() - requestStart;
+                }
+              } catch (Exception e) {
+                System.err.println("Connection failed: " + e.getMessage());
+              }
+            });
+      }
+
+      start = System.nanoTime();
+      go.countDown();
+    }
+
+    long elapsed = System.nanoTime() - start;
+    long[] sorted = Arrays.stream(latencies).filter(l -> l > 0).sorted().toArray();
+    long total = (long) sorted.length * pipeline;
+
+    System.out.printf(
+        "%d requests in %d ms: %.0f req/s%n", total, elapsed / 1_000_000, total / (elapsed / 1e9));
+    System.out.printf(
+        "latency p50=%dus p99=%dus p999=%dus max=%dus%n",
+        percentile(sorted, 0.50),
+        percentile(sorted, 0.99),
+        percentile(sorted, 0.999),
+        percentile(sorted, 1.0));
+  }
+
+  private static long percentile(long[] sorted, double percentile) {
+    if (sorted.length == 0) return 0;
+    return sorted[(int) Math.min(sorted.length - 1, sorted.length * percentile)] / 1000;
+  }
+}
@@ -0,0 +1,94 @@
+package be.julienpiron.redis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class ConsumerGroupTest {
+  private ConsumerGroup group;
+
+  @BeforeEach
+  void setUp() {
+    group = new ConsumerGroup(StreamEntry.MIN_ID);
+  }
+
+  private static List<Stream> entries(int from, int to) {
+    List<Stream> entries = new ArrayList<>();
+
+    for (int i = from; i <= to; i++) {
+      entries.add(new Stream(new StreamId(1, i), List.of("n", Integer.toString(i))));
+    }
+
+    return entries;
+  }
+
+  @Test
+  void shouldTrackPendingEntriesPerConsumer() {
+    group.deliver("alice", entries(1, 3), 1000, false);
+    group.deliver("bob", entries(4, 5), 1000, false);
+
+    assertEquals(new StreamId(1, 5), group.lastDelivered());
+    assertEquals(
+        new ConsumerGroup.Summary(
+            5, new StreamId(1, 1), new StreamId(1, 5), Map.of("alice", 3, "bob", 2)),
+        group.summary());
+    assertEquals(
+        List.of(new StreamId(1, 4), new StreamId(1, 5)),
+        group.pending(StreamEntry.MIN_ID, StreamEntry.MAX_ID, 10, "bob", 0, 1000).stream()
+            .map(ConsumerGroup.PendingEntry::id)
+            .toList());
+  }
+
+  @Test
+  void shouldForgetAcknowledgedEntries() {
+    group.deliver("alice", entries(1, 3), 1000, false);
+
+    assertEquals(true, group.ack(new StreamId(1, 2)));
+    assertEquals(false, group.ack(new StreamId(1, 2)));
+    assertEquals(
+        List.of(new StreamId(1, 1), new StreamId(1, 3)),
+        group.history("alice", StreamEntry.MIN_ID, 10, 2000));
+    assertEquals(Map.of("alice", 2), group.summary().consumers());
+  }
+
+  @Test
+  void shouldNotKeepEntriesDeliveredWithoutAck() {
+    group.deliver("alice", entries(1, 3), 1000, true);
+
+    assertEquals(new StreamId(1, 3), group.lastDelivered());
+    assertEquals(0, group.summary().count());
+  }
+
+  @Test
+  void shouldCountDeliveriesOfHistoryReads() {
+    group.deliver("alice", entries(1, 2), 1000, false);
+    group.history("alice", new StreamId(1, 1), 10, 1500);
+
+    assertEquals(
+        List.of(
+            new ConsumerGroup.PendingEntry(new StreamId(1, 1), "alice", 1000, 1),
+            new ConsumerGroup.PendingEntry(new StreamId(1, 2), "alice", 500, 2)),
+        group.pending(StreamEntry.MIN_ID, StreamEntry.MAX_ID, 10, null, 0, 2000));
+  }
+
+  @Test
+  void shouldOnlyClaimEntriesIdleLongEnough() {
+    group.deliver("alice", entries(1, 1), 1000, false);
+    group.deliver("alice", entries(2, 2), 5000, false);
+
+    ConsumerGroup.Claim claim = new ConsumerGroup.Claim(3000, -1, -1, -1, false);
+    List<StreamId> claimed =
+        group.claim("bob", List.of(new StreamId(1, 1), new StreamId(1, 2)), claim, 6000);
+
+    assertEquals(List.of(new StreamId(1, 1)), claimed);
+    assertEquals(Map.of("alice", 1, "bob", 1), group.summary().consumers());
+    assertEquals(
+        List.of(new ConsumerGroup.PendingEntry(new StreamId(1, 1), "bob", 0, 2)),
+        group.pending(StreamEntry.MIN_ID, StreamEntry.MAX_ID, 10, "bob", 0, 6000));
+    assertEquals(List.of(new StreamId(1, 2)), group.history("alice", StreamEntry.MIN_ID, 10, 6000));
+  }
+}
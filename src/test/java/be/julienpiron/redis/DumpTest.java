@@ -0,0 +1,178 @@
+package be.julienpiron.redis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class DumpTest {
+  private TestStore store;
+  private Path path;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    store = new TestStore();
+    path = Files.createTempDirectory("dump-test").resolve("dump.db");
+  }
+
+  private TestStore reload() throws IOException {
+    TestStore loaded = new TestStore();
+    new Saver(loaded, path).load();
+    return loaded;
+  }
+
+  @Test
+  void shouldLoadWhatWasSaved() throws IOException {
+    store.setString("owl", "Hedwig");
+    store.setString("letter", "Hogwarts", Duration.ofSeconds(10));
+
+    for (int i = 1; i <= 1000; i++) {
+      store.setStreamEntry("post", "1-" + i, List.of("n", Integer.toString(i)));
+    }
+
+    store.trimStream("post", StreamEntry.Trim.maxLength(950, false));
+    store.createGroup("post", "owlery", StreamEntry.MIN_ID, false);
+    store.readGroup("post", "owlery", "errol", null, 3, false);
+    store.ackStream("post", "owlery", List.of(new StreamId(1, 52)));
+
+    new Saver(store, path).save();
+    TestStore loaded = reload();
+
+    assertEquals("Hedwig", loaded.getString("owl"));
+    assertEquals("Hogwarts", loaded.getString("letter"));
+    assertEquals(10_000, loaded.ttl("letter"));
+    assertEquals(-1, loaded.ttl("owl"));
+    assertEquals(store.getStreams("post"), loaded.getStreams("post"));
+    assertEquals(new StreamId(1, 1000), loaded.getLastStreamId("post"));
+    assertEquals(
+        store.pendingSummary("post", "owlery"), loaded.pendingSummary("post", "owlery"));
+    assertEquals(
+        List.of(new StreamId(1, 54)),
+        loaded.readGroup("post", "owlery", "errol", null, 1, false).stream()
+            .map(Stream::id)
+            .toList());
+  }
+
+  @Test
+  void shouldWriteTheKeysAsTheyWereWhenTheViewWasOpened() throws IOException {
+    store.setString("owl", "Hedwig");
+    store.setString("cat", "Crookshanks");
+    store.setStreamEntry("post", "1-1", List.of("to", "Harry"));
+    store.createGroup("post", "owlery", StreamEntry.MIN_ID, false);
+
+    PointInTimeView view = store.openView();
+
+    store.setString("owl", "Errol");
+    store.setString("rat", "Scabbers");
+    store.expire("cat", 0);
+    store.setStreamEntry("post", "1-2", List.of("to", "Ron"));
+    store.readGroup("post", "owlery", "errol", null, 10, false);
+
+    try {
+      assertEquals(3, Dump.write(store, view, path));
+    } finally {
+      store.closeView();
+    }
+
+    TestStore loaded = reload();
+
+    assertEquals("Hedwig", loaded.getString("owl"));
+    assertEquals("Crookshanks", loaded.getString("cat"));
+    assertNull(loaded.getString("rat"));
+    assertEquals(1, loaded.getStreams("post").size());
+    assertEquals(0, loaded.pendingSummary("post", "owlery").count());
+  }
+
+  @Test
+  void shouldSkipKeysExpiredSinceTheSave() throws IOException {
+    store.setString("letter", "Hogwarts", Duration.ofSeconds(1));
+    new Saver(store, path).save();
+
+    TestStore loaded = new TestStore();
+    loaded.advanceClock(Duration.ofSeconds(2));
+    new Saver(loaded, path).load();
+
+    assertEquals("none", loaded.type("letter"));
+  }
+
+  @Test
+  void shouldRejectACorruptedDump() throws IOException {
+    store.setString("owl", "Hedwig");
+    new Saver(store, path).save();
+
+    byte[] bytes = Files.readAllBytes(path);
+    bytes[bytes.length - 12] ^= 1;
+    Files.write(path, bytes);
+
+    assertThrows(IOException.class, this::reload);
+  }
+
+  @Test
+  void shouldLoadADumpOfSeveralSections() throws IOException {
+    String value = "x".repeat(1000);
+
+    for (int i = 0; i < 10_000; i++) {
+      store.setString("owl:" + i, value + i);
+    }
+
+    for (int i = 1; i <= 1000; i++) {
+      store.setStreamEntry("post", "1-" + i, List.of("n", Integer.toString(i)));
+    }
+
+    new Saver(store, path).save();
+    TestStore loaded = reload();
+
+    for (int i = 0; i < 10_000; i++) {
+      assertEquals(value + i, loaded.getString("owl:" + i));
+    }
+
+    assertEquals(store.getStreams("post"), loaded.getStreams("post"));
+  }
+
+  @Test
+  void shouldRejectACorruptedSection() throws IOException {
+    for (int i = 0; i < 10_000; i++) {
+      store.setString("owl:" + i, "x".repeat(1000));
+    }
+
+    new Saver(store, path).save();
+
+    byte[] bytes = Files.readAllBytes(path);
+    bytes[bytes.length / 2] ^= 1;
+    Files.write(path, bytes);
+
+    assertThrows(IOException.class, this::reload);
+  }
+
+  @Test
+  void shouldRemoveTheTemporaryFileOfAFailedSave() throws IOException {
+    store.setString("owl", "Hedwig");
+    // The dump cannot replace a directory that is not empty.
+    Files.createDirectories(path.resolve("occupied"));
+
+    assertThrows(IOException.class, () -> new Saver(store, path).save());
+    assertFalse(Files.exists(path.resolveSibling("temp-" + path.getFileName())));
+  }
+
+  @Test
+  void shouldRefuseABackgroundSaveWhileTheViewIsTaken() throws IOException {
+    Saver saver = new Saver(store, path);
+    assertTrue(store.tryClaimView());
+
+    assertThrows(IllegalStateException.class, saver::backgroundSave);
+    assertFalse(saver.inProgress());
+
+    store.releaseView();
+    saver.save();
+    assertFalse(saver.lastSaveFailed());
+  }
+}
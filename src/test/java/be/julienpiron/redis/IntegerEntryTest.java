@@ -0,0 +1,30 @@
+package be.julienpiron.redis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class IntegerEntryTest {
+  @Test
+  void shouldOnlyEncodeCanonicalIntegers() {
+    assertEquals(new IntegerEntry(-42), StringValue.of("-42"));
+    assertEquals(new IntegerEntry(Long.MIN_VALUE), StringValue.of("-9223372036854775808"));
+
+    for (String value : new String[] {"042", "+42", "-0", " 42", "", "-", "9223372036854775808"}) {
+      assertTrue(StringValue.of(value) instanceof StringEntry);
+      assertEquals(value, StringValue.of(value).value());
+    }
+  }
+
+  @Test
+  void shouldShareSmallIntegers() {
+    int unshared = IntegerEntry.SHARED_INTEGERS;
+
+    assertSame(IntegerEntry.of(42), StringValue.of("42"));
+    assertSame(IntegerEntry.of(0), IntegerEntry.of(0));
+    assertFalse(IntegerEntry.of(unshared) == IntegerEntry.of(unshared));
+  }
+}
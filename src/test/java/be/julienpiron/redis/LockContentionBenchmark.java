@@ -0,0 +1,71 @@
+package be.julienpiron.redis;
+
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Has many writers XADD to distinct stream keys straight into a Store and reports throughput for
+// several lock table sizes, one stripe being the fully contended case.
+//
+// Usage: LockContentionBenchmark <writers> <entries per writer> <keys per writer> [stripes...]
+public class LockContentionBenchmark {
+  public static void main(String[] args) throws Exception {
+    int writers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int entries = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+    int keys = args.length > 2 ? Integer.parseInt(args[2]) : 1_000;
+    int[] stripes =
+        args.length > 3
+            ? Arrays.stream(args, 3, args.length).mapToInt(Integer::parseInt).toArray()
+            : new int[] {1, 16, 256, LockTable.DEFAULT_STRIPES};
+
+    System.out.printf(
+        "%d writers, %d entries each over %d keys per writer%n", writers, entries, keys);
+
+    for (int round = 0; round < 2; round++) {
+      for (int stripeCount : stripes) {
+        Store store = new Store(Clock.systemUTC(), stripeCount);
+        long elapsed = run(store, writers, entries, keys);
+        long total = (long) writers * entries;
+
+        if (round == 1) {
+          System.out.printf(
+              "stripes=%-5d %,12.0f ops/s  %6d ms%n",
+              stripeCount, total * 1e9 / elapsed, elapsed / 1_000_000);
+        }
+      }
+    }
+  }
+
+  private static long run(Store store, int writers, int entries, int keys) throws Exception {
+    CountDownLatch go = new CountDownLatch(1);
+    List<String> fields = List.of("field", "value");
+    long start;
+
+    try (ExecutorService pool = Executors.newFixedThreadPool(writers)) {
+      for (int w = 0; w < writers; w++) {
+        String prefix = "stream:" + w + ":";
+
+        pool.execute(
+            () -> {
+              try {
+                go.await();
+              } catch (InterruptedException e) {
+                return;
+              }
+
+              for (int i = 0; i < entries; i++) {
+                store.setStreamEntry(prefix + (i % keys), "*", fields);
+              }
+            });
+      }
+
+      start = System.nanoTime();
+      go.countDown();
+    }
+
+    return System.nanoTime() - start;
+  }
+}
@@ -0,0 +1,35 @@
+package be.julienpiron.redis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+public class LockTableTest {
+  @Test
+  void shouldMapAKeyToTheSameLock() {
+    LockTable locks = new LockTable(16);
+
+    assertSame(locks.forKey("ennemies"), locks.forKey(new String("ennemies")));
+    assertSame(locks.stripe(locks.stripeOf("ennemies")), locks.forKey("ennemies"));
+  }
+
+  @Test
+  void shouldNotGrowWithTheKeyspace() {
+    LockTable locks = new LockTable(16);
+
+    for (int i = 0; i < 10_000; i++) {
+      int stripe = locks.stripeOf("key:" + i);
+      assertEquals(stripe, stripe & 15);
+    }
+
+    assertEquals(16, locks.size());
+  }
+
+  @Test
+  void shouldRejectStripeCountsThatAreNotPowersOfTwo() {
+    assertThrows(IllegalArgumentException.class, () -> new LockTable(12));
+    assertThrows(IllegalArgumentException.class, () -> new LockTable(0));
+  }
+}
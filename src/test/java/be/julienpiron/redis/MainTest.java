@@ -7,6 +7,7 @@ import static org.junit.jupiter.api.Assertions.*;
 import be.julienpiron.redis.RESP.BulkString;
 import java.io.IOException;
 import java.time.Duration;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
@@ -26,7 +27,7 @@ public class MainTest {
   @BeforeEach
   void startServer() throws IOException {
     store = new TestStore();
-    server = new TestServer();
+    server = createServer();
     serverThread =
         new Thread(
             () -> {
@@ -43,6 +44,10 @@ public class MainTest {
     server.stop();
   }
 
+  protected TestServer createServer() throws IOException {
+    return new TestServer();
+  }
+
   @Test
   void shouldHandlePING() throws Exception {
     String response = run(client -> client.send("PING"));
@@ -63,6 +68,47 @@ public class MainTest {
     assertEquals("+PONG\r\n", responses.get(1));
   }
 
+  @Test
+  void shouldHandlePipelinedRequests() throws Exception {
+    String expected = "+OK\r\n$5\r\nLumos\r\n+PONG\r\n";
+
+    String response =
+        run(
+            client -> {
+              try {
+                return client.pipeline(
+                    expected.length(),
+                    new String[] {"SET", "spell", "Lumos"},
+                    new String[] {"GET", "spell"},
+                    new String[] {"PING"});
+              } catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+            });
+
+    assertEquals(expected, response);
+  }
+
+  @Test
+  void shouldHandlePipelineLargerThanOutputBuffer() throws Exception {
+    String payload = "x".repeat(100);
+    String[][] commands = new String[2_000][];
+    Arrays.fill(commands, new String[] {"ECHO", payload});
+    String expected = ("$100\r\n" + payload + "\r\n").repeat(commands.length);
+
+    String response =
+        run(
+            client -> {
+              try {
+                return client.pipeline(expected.length(), commands);
+              } catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+            });
+
+    assertEquals(expected, response);
+  }
+
   @Test
   void shouldHandleMultipleClients() throws Exception {
     String[] responses =
@@ -84,6 +130,66 @@ public class MainTest {
     assertEquals("$" + payload.length() + "\r\n" + payload + "\r\n", response);
   }
 
+  @Test
+  void shouldHandleRequestSplitAcrossWrites() throws Exception {
+    String response =
+        run(
+            client -> {
+              try {
+                return client.sendRaw("*2\r\n$4\r\nEC", "HO\r\n$5\r", "\nhello\r\n");
+              } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+              }
+            });
+
+    assertEquals("$5\r\nhello\r\n", response);
+  }
+
+  @Test
+  void shouldHandleMultiByteECHO() throws Exception {
+    String payload = "héllo wörld ✨";
+
+    String response = run(client -> client.send("ECHO", payload));
+
+    assertEquals("$17\r\n" + payload + "\r\n", response);
+  }
+
+  @Test
+  void shouldRejectUnknownCommand() throws Exception {
+    assertEquals("-ERR unknown command 'FLY'\r\n", run(client -> client.send("FLY", "broom")));
+  }
+
+  @Test
+  void shouldRejectWrongNumberOfArguments() throws Exception {
+    assertEquals(
+        "-ERR wrong number of arguments for 'get' command\r\n",
+        run(client -> client.send("get", "spell", "extra")));
+  }
+
+  @Test
+  void shouldReportCommandStats() throws Exception {
+    String info =
+        run(
+            client -> {
+              client.send("ping");
+              client.send("PING");
+              client.send("GET");
+              return client.send("INFO", "commandstats");
+            });
+
+    assertTrue(info.contains("cmdstat_ping:calls=2,"), info);
+    assertTrue(info.contains("cmdstat_get:calls=0,"), info);
+    assertTrue(info.contains("rejected_calls=1,"), info);
+  }
+
+  @Test
+  void shouldReportExpiryStats() throws Exception {
+    String info = run(client -> client.send("INFO", "stats"));
+
+    assertTrue(info.contains("expired_keys:0\r\n"), info);
+    assertTrue(info.contains("expire_cycle_cpu_milliseconds:"), info);
+  }
+
   @Test
   void shouldHandleSETandGET() throws Exception {
     String spell = faker.harryPotter().spell();
@@ -127,6 +233,62 @@ public class MainTest {
     assertEquals("$-1\r\n", responseAfterExpiry);
   }
 
+  @Test
+  void shouldHandleEXPIREandTTL() throws Exception {
+    run(client -> client.send("SET", "spell", "Lumos"));
+
+    assertEquals(":-1\r\n", run(client -> client.send("TTL", "spell")));
+    assertEquals(":-2\r\n", run(client -> client.send("TTL", "missing_key")));
+    assertEquals(":0\r\n", run(client -> client.send("EXPIRE", "missing_key", "10")));
+
+    assertEquals(":1\r\n", run(client -> client.send("EXPIRE", "spell", "10")));
+    store.advanceClock(Duration.ofMillis(2400));
+    assertEquals(":8\r\n", run(client -> client.send("TTL", "spell")));
+    assertEquals(":7600\r\n", run(client -> client.send("PTTL", "spell")));
+
+    assertEquals(":1\r\n", run(client -> client.send("PERSIST", "spell")));
+    assertEquals(":0\r\n", run(client -> client.send("PERSIST", "spell")));
+    assertEquals(":-1\r\n", run(client -> client.send("TTL", "spell")));
+  }
+
+  @Test
+  void shouldExpireStreams() throws Exception {
+    run(client -> client.send("XADD", "ennemies", "0-1", "name", "Voldemort"));
+
+    assertEquals(":1\r\n", run(client -> client.send("PEXPIRE", "ennemies", "500")));
+    store.advanceClock(Duration.ofMillis(600));
+
+    assertEquals("+none\r\n", run(client -> client.send("TYPE", "ennemies")));
+    assertEquals(":-2\r\n", run(client -> client.send("PTTL", "ennemies")));
+  }
+
+  @Test
+  void shouldHandlePEXPIREAT() throws Exception {
+    run(client -> client.send("SET", "spell", "Lumos"));
+    String at = Long.toString(store.clock.millis() + 1500);
+
+    assertEquals(":1\r\n", run(client -> client.send("PEXPIREAT", "spell", at)));
+    assertEquals(":1500\r\n", run(client -> client.send("PTTL", "spell")));
+    assertEquals(":0\r\n", run(client -> client.send("PEXPIREAT", "missing_key", at)));
+  }
+
+  @Test
+  void shouldDeleteKeyWhenEXPIREisInThePast() throws Exception {
+    run(client -> client.send("SET", "spell", "Lumos"));
+
+    assertEquals(":1\r\n", run(client -> client.send("EXPIRE", "spell", "-1")));
+    assertEquals("$-1\r\n", run(client -> client.send("GET", "spell")));
+  }
+
+  @Test
+  void shouldRejectOverflowingEXPIRE() throws Exception {
+    run(client -> client.send("SET", "spell", "Lumos"));
+
+    assertEquals(
+        "-ERR invalid expire time in 'expire' command\r\n",
+        run(client -> client.send("EXPIRE", "spell", "9223372036854775807")));
+  }
+
   @Test
   void shouldHandleTYPE() throws Exception {
     String character = faker.harryPotter().character();
@@ -275,6 +437,219 @@ public class MainTest {
         response);
   }
 
+  @Test
+  void shouldHandleXRANGEandXREVRANGEWithCOUNT() throws Exception {
+    for (int i = 1; i <= 5; i++) {
+      store.setStreamEntry("some_key", "1-" + i, List.of("n", Integer.toString(i)));
+    }
+
+    assertEquals(
+        "*2\r\n"
+            + "*2\r\n$3\r\n1-2\r\n*2\r\n$1\r\nn\r\n$1\r\n2\r\n"
+            + "*2\r\n$3\r\n1-3\r\n*2\r\n$1\r\nn\r\n$1\r\n3\r\n",
+        run(client -> client.send("XRANGE", "some_key", "1-2", "+", "COUNT", "2")));
+
+    assertEquals(
+        "*2\r\n"
+            + "*2\r\n$3\r\n1-4\r\n*2\r\n$1\r\nn\r\n$1\r\n4\r\n"
+            + "*2\r\n$3\r\n1-3\r\n*2\r\n$1\r\nn\r\n$1\r\n3\r\n",
+        run(client -> client.send("XREVRANGE", "some_key", "1-4", "-", "count", "2")));
+
+    assertEquals(
+        "*0\r\n", run(client -> client.send("XRANGE", "some_key", "-", "+", "COUNT", "0")));
+    assertEquals("*0\r\n", run(client -> client.send("XRANGE", "missing_key", "-", "+")));
+    assertEquals(
+        "-ERR syntax error\r\n",
+        run(client -> client.send("XRANGE", "some_key", "-", "+", "LIMIT", "2")));
+  }
+
+  @Test
+  void shouldTrimStreamsWithXADDandXTRIM() throws Exception {
+    for (int i = 1; i <= 5; i++) {
+      run(client -> client.send("XADD", "owls", "MAXLEN", "3", "*", "name", "Hedwig"));
+    }
+
+    assertEquals(
+        3, store.getStreamRange("owls", StreamEntry.MIN_ID, StreamEntry.MAX_ID, 10, false).size());
+    assertEquals(
+        "$3\r\n1-6\r\n",
+        run(client -> client.send("XADD", "letters", "MINID", "~", "0", "1-6", "to", "Harry")));
+    assertEquals(":2\r\n", run(client -> client.send("XTRIM", "owls", "MAXLEN", "=", "1")));
+    assertEquals(":1\r\n", run(client -> client.send("XTRIM", "letters", "MAXLEN", "~", "0")));
+    assertEquals("stream", store.type("letters"));
+    assertEquals(":0\r\n", run(client -> client.send("XTRIM", "missing", "MINID", "1-0")));
+    assertEquals(
+        "-ERR The MAXLEN argument must be >= 0.\r\n",
+        run(client -> client.send("XTRIM", "owls", "MAXLEN", "-1")));
+    assertEquals(
+        "-ERR syntax error\r\n", run(client -> client.send("XTRIM", "owls", "LENGTH", "1")));
+  }
+
+  @Test
+  void shouldShareAStreamBetweenConsumersOfAGroup() throws Exception {
+    for (int i = 1; i <= 4; i++) {
+      store.setStreamEntry("owls", "1-" + i, List.of("n", Integer.toString(i)));
+    }
+
+    assertEquals("+OK\r\n", run(client -> client.send("XGROUP", "CREATE", "owls", "post", "0")));
+    assertEquals(
+        "-BUSYGROUP Consumer Group name already exists\r\n",
+        run(client -> client.send("XGROUP", "CREATE", "owls", "post", "$")));
+
+    assertEquals(
+        "*1\r\n*2\r\n$4\r\nowls\r\n*2\r\n"
+            + "*2\r\n$3\r\n1-1\r\n*2\r\n$1\r\nn\r\n$1\r\n1\r\n"
+            + "*2\r\n$3\r\n1-2\r\n*2\r\n$1\r\nn\r\n$1\r\n2\r\n",
+        run(
+            client ->
+                client.send(
+                    "XREADGROUP", "GROUP", "post", "alice", "COUNT", "2", "STREAMS", "owls", ">")));
+    assertEquals(
+        "*1\r\n*2\r\n$4\r\nowls\r\n*2\r\n"
+            + "*2\r\n$3\r\n1-3\r\n*2\r\n$1\r\nn\r\n$1\r\n3\r\n"
+            + "*2\r\n$3\r\n1-4\r\n*2\r\n$1\r\nn\r\n$1\r\n4\r\n",
+        run(
+            client ->
+                client.send("XREADGROUP", "GROUP", "post", "bob", "STREAMS", "owls", ">")));
+    assertEquals(
+        "*-1\r\n",
+        run(
+            client ->
+                client.send("XREADGROUP", "GROUP", "post", "alice", "STREAMS", "owls", ">")));
+
+    assertEquals(":2\r\n", run(client -> client.send("XACK", "owls", "post", "1-1", "1-3")));
+    assertEquals(
+        "*4\r\n:2\r\n$3\r\n1-2\r\n$3\r\n1-4\r\n"
+            + "*2\r\n*2\r\n$5\r\nalice\r\n$1\r\n1\r\n*2\r\n$3\r\nbob\r\n$1\r\n1\r\n",
+        run(client -> client.send("XPENDING", "owls", "post")));
+    assertEquals(
+        "*1\r\n*2\r\n$4\r\nowls\r\n*1\r\n"
+            + "*2\r\n$3\r\n1-2\r\n*2\r\n$1\r\nn\r\n$1\r\n2\r\n",
+        run(
+            client ->
+                client.send("XREADGROUP", "GROUP", "post", "alice", "STREAMS", "owls", "0")));
+    assertEquals(
+        "-NOGROUP No such key 'owls' or consumer group 'mail' in XREADGROUP with GROUP option\r\n",
+        run(
+            client ->
+                client.send("XREADGROUP", "GROUP", "mail", "alice", "STREAMS", "owls", ">")));
+  }
+
+  @Test
+  void shouldClaimIdlePendingEntries() throws Exception {
+    run(client -> client.send("XGROUP", "CREATE", "owls", "post", "$", "MKSTREAM"));
+    run(client -> client.send("XADD", "owls", "1-1", "name", "Hedwig"));
+    run(client -> client.send("XREADGROUP", "GROUP", "post", "alice", "STREAMS", "owls", ">"));
+
+    assertEquals(
+        "*0\r\n", run(client -> client.send("XCLAIM", "owls", "post", "bob", "1000", "1-1")));
+
+    store.advanceClock(Duration.ofSeconds(2));
+
+    assertEquals(
+        "*1\r\n$3\r\n1-1\r\n",
+        run(client -> client.send("XCLAIM", "owls", "post", "bob", "1000", "1-1", "JUSTID")));
+    assertEquals(
+        "*1\r\n*4\r\n$3\r\n1-1\r\n$3\r\nbob\r\n:0\r\n:1\r\n",
+        run(client -> client.send("XPENDING", "owls", "post", "-", "+", "10", "bob")));
+    assertEquals(
+        "*0\r\n",
+        run(client -> client.send("XPENDING", "owls", "post", "IDLE", "1", "-", "+", "10")));
+  }
+
+  @Test
+  void shouldUnblockXREADGROUPForOneConsumerOnly() throws Exception {
+    run(client -> client.send("XGROUP", "CREATE", "owls", "post", "$", "MKSTREAM"));
+
+    List<CompletableFuture<String>> responses =
+        List.of("alice", "bob").stream()
+            .map(
+                consumer ->
+                    CompletableFuture.supplyAsync(
+                        () -> {
+                          try (TestClient client = new TestClient(server)) {
+                            return client.send(
+                                "XREADGROUP",
+                                "GROUP",
+                                "post",
+                                consumer,
+                                "BLOCK",
+                                "1000",
+                                "STREAMS",
+                                "owls",
+                                ">");
+                          } catch (Exception e) {
+                            throw new RuntimeException(e);
+                          }
+                        }))
+            .toList();
+
+    await().atMost(1000, MILLISECONDS).until(() -> store.blockedClients().size() == 2);
+    run(client -> client.send("XADD", "owls", "1-1", "name", "Hedwig"));
+
+    await().atMost(2000, MILLISECONDS).until(() -> responses.stream().allMatch(f -> f.isDone()));
+
+    // The entry is delivered to one consumer, the other one times out.
+    assertEquals(1, responses.stream().filter(f -> f.join().contains("Hedwig")).count());
+    assertEquals(1, responses.stream().filter(f -> f.join().equals("*-1\r\n")).count());
+  }
+
+  @Test
+  void shouldHandleSAVEandBGSAVE() throws Exception {
+    run(client -> client.send("SET", "owl", "Hedwig"));
+
+    long before = Long.parseLong(run(client -> client.send("LASTSAVE")).trim().substring(1));
+
+    assertEquals("+OK\r\n", run(client -> client.send("SAVE")));
+    assertEquals("+Background saving started\r\n", run(client -> client.send("BGSAVE")));
+    await()
+        .atMost(2000, MILLISECONDS)
+        .until(
+            () ->
+                run(client -> client.send("INFO", "persistence"))
+                    .contains("rdb_bgsave_in_progress:0"));
+
+    long after = Long.parseLong(run(client -> client.send("LASTSAVE")).trim().substring(1));
+    assertTrue(after >= before);
+  }
+
+  @Test
+  void shouldStreamLargeXRANGEReplies() throws Exception {
+    String value = "x".repeat(100);
+    StringBuilder forward = new StringBuilder("*3000\r\n");
+    StringBuilder backward = new StringBuilder();
+
+    for (int i = 1; i <= 3000; i++) {
+      String id = "1-" + i;
+      store.setStreamEntry("big", id, List.of("n", value));
+
+      String entry =
+          new RESP.Array(
+                  List.of(
+                      new BulkString(id),
+                      new RESP.Array(List.of(new BulkString("n"), new BulkString(value)))))
+              .encode();
+      forward.append(entry);
+      backward.insert(0, entry);
+    }
+    backward.insert(0, "*3000\r\n");
+
+    String response =
+        run(
+            client -> {
+              try {
+                return client.pipeline(
+                    forward.length() + backward.length(),
+                    new String[] {"XRANGE", "big", "-", "+"},
+                    new String[] {"XREVRANGE", "big", "+", "-"});
+              } catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+            });
+
+    assertEquals(forward.toString() + backward, response);
+  }
+
   @Test
   void shouldHandleXRANGEWithoutStartArgument() throws Exception {
     run(
@@ -435,7 +810,6 @@ public class MainTest {
   }
 
   @Test
-  @Disabled
   void shouldHandleXREADWithTimeout() throws Exception {
     String key = "key";
 
@@ -479,7 +853,342 @@ public class MainTest {
         response.get(1500, TimeUnit.MILLISECONDS));
   }
 
-  private <T> T run(Function<TestClient, T> action) throws Exception {
+  @Test
+  void shouldUnblockXREADOnAnyOfSeveralKeys() throws Exception {
+    run(client -> client.send("XADD", "owls", "1-1", "name", "Hedwig"));
+
+    CompletableFuture<String> response =
+        CompletableFuture.supplyAsync(
+            () -> {
+              try (TestClient client = new TestClient(server)) {
+                return client.send("XREAD", "BLOCK", "2000", "STREAMS", "owls", "cats", "$", "$");
+              } catch (Exception e) {
+                throw new RuntimeException(e);
+              }
+            });
+
+    await().atMost(1000, MILLISECONDS).until(() -> store.blockedClients().size() == 1);
+    run(client -> client.send("XADD", "cats", "2-1", "name", "Crookshanks"));
+
+    assertEquals(
+        "*1\r\n"
+            + "*2\r\n"
+            + "$4\r\ncats\r\n"
+            + "*1\r\n"
+            + "*2\r\n"
+            + "$3\r\n2-1\r\n"
+            + "*2\r\n"
+            + "$4\r\nname\r\n"
+            + "$11\r\nCrookshanks\r\n",
+        response.get(1500, TimeUnit.MILLISECONDS));
+    await().atMost(500, MILLISECONDS).until(() -> store.blockedClients().size() == 0);
+  }
+
+  @Test
+  void shouldForgetABlockedClientThatDisconnects() throws Exception {
+    TestClient client = new TestClient(server);
+    CompletableFuture.runAsync(() -> client.send("XREAD", "BLOCK", "0", "STREAMS", "owls", "$"));
+
+    await().atMost(1000, MILLISECONDS).until(() -> store.blockedClients().size() == 1);
+    client.close();
+
+    await().atMost(1000, MILLISECONDS).until(() -> store.blockedClients().size() == 0);
+  }
+
+  @Test
+  void shouldKeepServingAClientAfterItsBlockingRead() throws Exception {
+    try (TestClient client = new TestClient(server)) {
+      CompletableFuture<String> response =
+          CompletableFuture.supplyAsync(
+              () -> client.send("XREAD", "BLOCK", "0", "STREAMS", "owls", "$"));
+
+      await().atMost(1000, MILLISECONDS).until(() -> store.blockedClients().size() == 1);
+      run(other -> other.send("XADD", "owls", "1-1", "name", "Hedwig"));
+
+      assertTrue(response.get(1000, MILLISECONDS).contains("Hedwig"));
+      assertEquals("+PONG\r\n", client.send("PING"));
+    }
+  }
+
+  @Test
+  void shouldOnlyReturnNewEntriesForDollarID() throws Exception {
+    run(client -> client.send("XADD", "owls", "1-1", "name", "Hedwig"));
+
+    assertEquals(
+        "*-1\r\n", run(client -> client.send("XREAD", "BLOCK", "100", "STREAMS", "owls", "$")));
+    assertEquals(0, store.blockedClients().size());
+  }
+
+  @Test
+  void shouldHandleXREADWithCOUNT() throws Exception {
+    for (int i = 1; i <= 3; i++) {
+      store.setStreamEntry("owls", "1-" + i, List.of("n", Integer.toString(i)));
+    }
+
+    assertEquals(
+        "*1\r\n*2\r\n$4\r\nowls\r\n*1\r\n*2\r\n$3\r\n1-2\r\n*2\r\n$1\r\nn\r\n$1\r\n2\r\n",
+        run(client -> client.send("XREAD", "COUNT", "1", "STREAMS", "owls", "1-1")));
+  }
+
+  @Test
+  void shouldHandleINCRAndDECR() throws Exception {
+    assertEquals(":1\r\n", run(client -> client.send("INCR", "points")));
+    assertEquals(":51\r\n", run(client -> client.send("INCRBY", "points", "50")));
+    assertEquals(":50\r\n", run(client -> client.send("DECR", "points")));
+    assertEquals(":-100\r\n", run(client -> client.send("DECRBY", "points", "150")));
+    assertEquals("$4\r\n-100\r\n", run(client -> client.send("GET", "points")));
+  }
+
+  @Test
+  void shouldRejectINCROnAValueThatIsNoInteger() throws Exception {
+    run(client -> client.send("MSET", "spell", "Lumos", "galleons", "9223372036854775807"));
+
+    assertEquals(
+        "-ERR value is not an integer or out of range\r\n",
+        run(client -> client.send("INCR", "spell")));
+    assertEquals(
+        "-ERR increment or decrement would overflow\r\n",
+        run(client -> client.send("INCR", "galleons")));
+  }
+
+  @Test
+  void shouldHandleINCRBYFLOAT() throws Exception {
+    run(client -> client.send("SET", "gillyweed", "10.50"));
+
+    assertEquals("$4\r\n10.6\r\n", run(client -> client.send("INCRBYFLOAT", "gillyweed", "0.1")));
+    assertEquals("$2\r\n11\r\n", run(client -> client.send("INCRBYFLOAT", "gillyweed", "0.4")));
+    assertEquals(":12\r\n", run(client -> client.send("INCR", "gillyweed")));
+  }
+
+  @Test
+  void shouldHandleMSETAndMGET() throws Exception {
+    assertEquals(
+        "+OK\r\n", run(client -> client.send("MSET", "owl", "Hedwig", "cat", "Crookshanks")));
+    assertEquals(
+        "*3\r\n$6\r\nHedwig\r\n$-1\r\n$11\r\nCrookshanks\r\n",
+        run(client -> client.send("MGET", "owl", "toad", "cat")));
+    assertEquals(
+        "-ERR wrong number of arguments for 'mset' command\r\n",
+        run(client -> client.send("MSET", "owl", "Hedwig", "cat")));
+  }
+
+  @Test
+  void shouldNeverMGETHalfAnMSET() throws Exception {
+    store.setStrings(List.of("owl", "0", "cat", "0"));
+    CompletableFuture<Void> writer =
+        CompletableFuture.runAsync(
+            () -> {
+              for (int i = 1; i <= 2000; i++) {
+                store.setStrings(List.of("owl", "" + i, "cat", "" + i));
+              }
+            });
+
+    while (!writer.isDone()) {
+      List<String> values = store.getStrings(List.of("owl", "cat"));
+      assertEquals(values.get(0), values.get(1));
+    }
+
+    writer.join();
+  }
+
+  @Test
+  void shouldHandleMSETNX() throws Exception {
+    assertEquals(":1\r\n", run(client -> client.send("MSETNX", "owl", "Hedwig", "cat", "Mrs")));
+    assertEquals(
+        ":0\r\n", run(client -> client.send("MSETNX", "toad", "Trevor", "cat", "Crookshanks")));
+    assertEquals(
+        "*2\r\n$-1\r\n$3\r\nMrs\r\n", run(client -> client.send("MGET", "toad", "cat")));
+  }
+
+  @Test
+  void shouldHandleDELAndEXISTS() throws Exception {
+    run(client -> client.send("MSET", "owl", "Hedwig", "cat", "Crookshanks", "toad", "Trevor"));
+
+    assertEquals(":3\r\n", run(client -> client.send("EXISTS", "owl", "owl", "cat", "rat")));
+    assertEquals(":2\r\n", run(client -> client.send("DEL", "owl", "cat", "owl", "rat")));
+    assertEquals(":1\r\n", run(client -> client.send("UNLINK", "toad")));
+    assertEquals(":0\r\n", run(client -> client.send("EXISTS", "owl", "cat", "toad")));
+  }
+
+  @Test
+  void shouldRunMULTIAndEXECAsOneBatch() throws Exception {
+    List<String> responses =
+        run(
+            client ->
+                List.of(
+                    client.send("MULTI"),
+                    client.send("SET", "spell", "Lumos"),
+                    client.send("GET", "spell"),
+                    client.send("EXEC")));
+
+    assertEquals(
+        List.of("+OK\r\n", "+QUEUED\r\n", "+QUEUED\r\n", "*2\r\n+OK\r\n$5\r\nLumos\r\n"),
+        responses);
+  }
+
+  @Test
+  void shouldFailEXECWhenAWatchedKeyChanged() throws Exception {
+    String response =
+        run(
+            (client1, client2) -> {
+              client1.send("WATCH", "spell");
+              client2.send("SET", "spell", "Nox");
+              client1.send("MULTI");
+              client1.send("SET", "spell", "Lumos");
+              return client1.send("EXEC");
+            });
+
+    assertEquals("*-1\r\n", response);
+    assertEquals("$3\r\nNox\r\n", run(client -> client.send("GET", "spell")));
+  }
+
+  @Test
+  void shouldNotFailEXECOnAnXREADGROUPThatDeliveredNothing() throws Exception {
+    String response =
+        run(
+            (client1, client2) -> {
+              client1.send("XGROUP", "CREATE", "owls", "post", "$", "MKSTREAM");
+              client1.send("WATCH", "owls");
+              client2.send("XREADGROUP", "GROUP", "post", "Harry", "STREAMS", "owls", ">");
+              client2.send("XREADGROUP", "GROUP", "post", "Harry", "STREAMS", "owls", "0");
+              client1.send("MULTI");
+              client1.send("XADD", "owls", "1-1", "name", "Hedwig");
+              return client1.send("EXEC");
+            });
+
+    assertEquals("*1\r\n$3\r\n1-1\r\n", response);
+  }
+
+  @Test
+  void shouldNeverReadAKeyHalfwayThroughAnEXEC() throws Exception {
+    CompletableFuture<Void> writer =
+        CompletableFuture.runAsync(
+            () -> {
+              for (int i = 1; i <= 2000; i++) {
+                store.locked(
+                    List.of("spell"),
+                    () -> {
+                      store.setString("spell", "Lum");
+                      store.setString("spell", "Lumos");
+                      return null;
+                    });
+              }
+            });
+
+    while (!writer.isDone()) {
+      assertFalse("Lum".equals(store.getString("spell")));
+    }
+
+    writer.join();
+  }
+
+  @Test
+  void shouldWakeStreamReadersOnceTheEXECReleasedItsLocks() throws Exception {
+    CompletableFuture<RESPDataType> reader =
+        store
+            .blockedClients()
+            .block(
+                List.of("owls"),
+                () -> store.getStreamTail("owls", StreamEntry.MIN_ID, 10) != null ? RESP.OK : null,
+                0,
+                RESP.NULL_ARRAY);
+
+    store.locked(
+        List.of("owls"),
+        () -> {
+          store.setStreamEntry("owls", "1-1", List.of("name", "Hedwig"));
+          assertFalse(reader.isDone());
+          return null;
+        });
+
+    assertTrue(reader.isDone());
+  }
+
+  @Test
+  void shouldNotBlockInsideEXEC() throws Exception {
+    List<String> responses =
+        run(
+            client ->
+                List.of(
+                    client.send("MULTI"),
+                    client.send("WAIT", "1", "0"),
+                    client.send("XREAD", "BLOCK", "0", "STREAMS", "owls", "$"),
+                    client.send("EXEC")));
+
+    assertEquals("*2\r\n:0\r\n*-1\r\n", responses.get(3));
+  }
+
+  @Test
+  void shouldDiscardATransaction() throws Exception {
+    List<String> responses =
+        run(
+            client ->
+                List.of(
+                    client.send("MULTI"),
+                    client.send("SET", "spell", "Lumos"),
+                    client.send("DISCARD"),
+                    client.send("EXEC")));
+
+    assertEquals(
+        List.of("+OK\r\n", "+QUEUED\r\n", "+OK\r\n", "-ERR EXEC without MULTI\r\n"),
+        responses);
+    assertEquals("$-1\r\n", run(client -> client.send("GET", "spell")));
+  }
+
+  @Test
+  void shouldAbortATransactionWithAnInvalidCommand() throws Exception {
+    String response =
+        run(
+            client -> {
+              client.send("MULTI");
+              client.send("SET", "spell", "Lumos");
+              client.send("GET");
+              return client.send("EXEC");
+            });
+
+    assertEquals("-EXECABORT Transaction discarded because of previous errors.\r\n", response);
+    assertEquals("$-1\r\n", run(client -> client.send("GET", "spell")));
+  }
+
+  @Test
+  void shouldReplicateToAFollower() throws Exception {
+    TestServer follower = createServer();
+    new Thread(follower::start).start();
+    await().atMost(200, MILLISECONDS).until(() -> follower.isRunning());
+
+    try (TestClient replica = new TestClient(follower)) {
+      run(client -> client.send("SET", "owl", "Hedwig"));
+      assertEquals(
+          "+OK\r\n", replica.send("REPLICAOF", "localhost", Integer.toString(server.getPort())));
+      await().atMost(2000, MILLISECONDS).until(() -> replica.send("GET", "owl").contains("Hedwig"));
+
+      run(client -> client.send("SET", "cat", "Crookshanks"));
+      assertEquals(":1\r\n", run(client -> client.send("WAIT", "1", "1000")));
+      assertEquals("$11\r\nCrookshanks\r\n", replica.send("GET", "cat"));
+
+      run(
+          client -> {
+            client.send("MULTI");
+            client.send("SET", "toad", "Trevor");
+            client.send("SET", "rat", "Scabbers");
+            return client.send("EXEC");
+          });
+      assertEquals(":1\r\n", run(client -> client.send("WAIT", "1", "1000")));
+      assertEquals(
+          "*2\r\n$6\r\nTrevor\r\n$8\r\nScabbers\r\n", replica.send("MGET", "toad", "rat"));
+      assertTrue(run(client -> client.send("INFO", "replication")).contains("connected_slaves:1"));
+      assertEquals(
+          "-READONLY You can't write against a read only replica.\r\n",
+          replica.send("SET", "owl", "Errol"));
+
+      assertEquals("+OK\r\n", replica.send("REPLICAOF", "NO", "ONE"));
+      assertEquals("+OK\r\n", replica.send("SET", "owl", "Errol"));
+    } finally {
+      follower.stop();
+    }
+  }
+
+  protected <T> T run(Function<TestClient, T> action) throws Exception {
     CompletableFuture<T> future =
         CompletableFuture.supplyAsync(
             () -> {
@@ -0,0 +1,10 @@
+package be.julienpiron.redis;
+
+import java.io.IOException;
+
+public class NioShardedServerTest extends ShardedServerTest {
+  @Override
+  protected TestServer createServer() throws IOException {
+    return new TestServer(IOMode.NIO, 4);
+  }
+}
@@ -3,6 +3,7 @@ package be.julienpiron.redis;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import org.junit.jupiter.api.Test;
 
 public class RESPTest {
@@ -34,6 +35,37 @@ public class RESPTest {
     assertEquals("-ERR this is an error\r\n", simpleError.encode());
   }
 
+  @Test
+  void shouldNotFailOnErrorWithoutMessage() {
+    assertEquals("-ERR unknown error\r\n", RESP.error(null).encode());
+  }
+
+  @Test
+  void shouldKeepErrorsOnOneLine() {
+    assertEquals("-ERR no such key: a  b\r\n", RESP.error("no such key: a\r\nb").encode());
+  }
+
+  @Test
+  void shouldNotShowInternalsOfAFailedDeferredReply() {
+    RESP.Deferred invalid =
+        new RESP.Deferred(
+            CompletableFuture.supplyAsync(
+                () -> {
+                  throw new IllegalArgumentException("value is not an integer");
+                }));
+    RESP.Deferred broken =
+        new RESP.Deferred(CompletableFuture.failedFuture(new IllegalStateException("at\r\nline")));
+
+    assertEquals("-ERR value is not an integer\r\n", invalid.value().encode());
+    assertEquals("-ERR internal error: IllegalStateException\r\n", broken.value().encode());
+  }
+
+  @Test
+  void shouldEncodeInteger() {
+    assertEquals(":42\r\n", new RESP.Int(42).encode());
+    assertEquals(":-2\r\n", new RESP.Int(-2).encode());
+  }
+
   @Test
   void shouldEncodeArray() {
     RESP.Array array =
@@ -57,4 +89,51 @@ public class RESPTest {
 
     assertEquals(array1, array2);
   }
+
+  @Test
+  void shouldEncodeMultiByteBulkStringLengthInBytes() {
+    RESP.BulkString bulkString = new RESP.BulkString("Göbelin 🧙");
+
+    assertEquals("$13\r\nGöbelin 🧙\r\n", bulkString.encode());
+  }
+
+  @Test
+  void shouldWriteNestedArrayIntoWriter() {
+    RESPWriter writer = new RESPWriter(4);
+
+    new RESP.Array(List.of(new RESP.Array("0-1", "name"), new RESP.BulkString(null))).write(writer);
+
+    assertEquals("*2\r\n*2\r\n$3\r\n0-1\r\n$4\r\nname\r\n$-1\r\n", writer.toString());
+  }
+
+  @Test
+  void shouldWriteLongs() {
+    RESPWriter writer = new RESPWriter();
+
+    writer.writeLong(0).writeCRLF().writeLong(-42).writeCRLF().writeLong(Long.MIN_VALUE);
+
+    assertEquals("0\r\n-42\r\n" + Long.MIN_VALUE, writer.toString());
+  }
+
+  @Test
+  void shouldEncodeSharedReplies() {
+    assertEquals("+OK\r\n", RESP.OK.encode());
+    assertEquals("+PONG\r\n", RESP.PONG.encode());
+    assertEquals("$-1\r\n", RESP.NULL_BULK.encode());
+    assertEquals("*-1\r\n", RESP.NULL_ARRAY.encode());
+    assertEquals("*0\r\n", RESP.EMPTY_ARRAY.encode());
+  }
+
+  @Test
+  void shouldWriteHeadersInsideAndOutsideTheCache() {
+    RESPWriter writer = new RESPWriter();
+
+    writer.writeHeader((byte) '$', 0);
+    writer.writeHeader((byte) '*', 1023);
+    writer.writeHeader((byte) '*', 1024);
+    writer.writeHeader((byte) ':', 42);
+    writer.writeHeader((byte) '$', -1);
+
+    assertEquals("$0\r\n*1023\r\n*1024\r\n:42\r\n$-1\r\n", writer.toString());
+  }
 }
@@ -0,0 +1,43 @@
+package be.julienpiron.redis;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+public class ReplicationBacklogTest {
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  void shouldReadAcrossTheEndOfTheRing() throws InterruptedException {
+    ReplicationBacklog backlog = new ReplicationBacklog(8);
+    backlog.append(bytes("Hedwig"));
+    backlog.append(bytes("Errol"));
+
+    assertEquals(11, backlog.offset());
+    assertEquals(3, backlog.start());
+    assertArrayEquals(bytes("wigErrol"), backlog.read(3, 16, 0));
+    assertArrayEquals(bytes("Err"), backlog.read(6, 3, 0));
+    assertArrayEquals(new byte[0], backlog.read(11, 16, 0));
+  }
+
+  @Test
+  void shouldLoseOffsetsThatLeftTheRing() throws InterruptedException {
+    ReplicationBacklog backlog = new ReplicationBacklog(8);
+    backlog.append(bytes("Hedwig"));
+
+    assertTrue(backlog.contains(0));
+
+    backlog.append(bytes("Pigwidgeon"));
+
+    assertFalse(backlog.contains(0));
+    assertNull(backlog.read(0, 16, 0));
+    assertArrayEquals(bytes("Pigwidgeon".substring(2)), backlog.read(8, 16, 0));
+  }
+}
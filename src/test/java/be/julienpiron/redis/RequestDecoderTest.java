@@ -0,0 +1,100 @@
+package be.julienpiron.redis;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class RequestDecoderTest {
+  private final RequestDecoder decoder = new RequestDecoder();
+
+  @Test
+  void shouldDecodeRequest() {
+    Request request = decoder.decode(buffer("*3\r\n$3\r\nSET\r\n$5\r\nspell\r\n$5\r\nLumos\r\n"));
+
+    assertEquals("SET", request.command());
+    assertEquals(List.of("spell", "Lumos"), request.args());
+  }
+
+  @Test
+  void shouldDecodePipelinedRequests() {
+    ByteBuffer buffer = buffer("*1\r\n$4\r\nPING\r\n*2\r\n$4\r\nECHO\r\n$2\r\nhi\r\n");
+
+    assertEquals("PING", decoder.decode(buffer).command());
+    assertEquals(List.of("hi"), decoder.decode(buffer).args());
+    assertNull(decoder.decode(buffer));
+  }
+
+  @Test
+  void shouldResumePartialFrames() {
+    String frame = "*2\r\n$4\r\nECHO\r\n$8\r\nHermione\r\n";
+    ByteBuffer buffer = ByteBuffer.allocate(64);
+
+    for (int i = 0; i < frame.length() - 1; i++) {
+      buffer.put((byte) frame.charAt(i)).flip();
+      assertNull(decoder.decode(buffer));
+      buffer.compact();
+    }
+
+    buffer.put((byte) frame.charAt(frame.length() - 1)).flip();
+
+    assertEquals(List.of("Hermione"), decoder.decode(buffer).args());
+    assertEquals(0, buffer.remaining());
+  }
+
+  @Test
+  void shouldCountBulkLengthInBytes() {
+    byte[] payload = "héllo ✨".getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocate(64);
+    buffer.put(("*2\r\n$4\r\nECHO\r\n$" + payload.length + "\r\n").getBytes());
+    buffer.put(payload).put("\r\n".getBytes()).flip();
+
+    Request request = decoder.decode(buffer);
+
+    assertArrayEquals(payload, request.arguments().getFirst());
+    assertEquals("héllo ✨", request.args().getFirst());
+  }
+
+  @Test
+  void shouldReportBytesNeededForLargeBulkString() {
+    assertNull(decoder.decode(buffer("*2\r\n$4\r\nECHO\r\n$100000\r\nabc")));
+
+    assertEquals(100_002, decoder.bytesNeeded());
+  }
+
+  @Test
+  void shouldDecodeMoreArgumentsThanFirstAllocated() {
+    StringBuilder frame = new StringBuilder("*3001\r\n$4\r\nMGET\r\n");
+
+    for (int i = 0; i < 3000; i++) {
+      String key = "owl" + i;
+      frame.append("$").append(key.length()).append("\r\n").append(key).append("\r\n");
+    }
+
+    assertNull(decoder.decode(buffer("*1048576\r\n$4\r\nMGET\r\n")));
+
+    Request request = new RequestDecoder().decode(buffer(frame.toString()));
+
+    assertEquals(3000, request.args().size());
+    assertEquals("owl2999", request.args().get(2999));
+  }
+
+  @Test
+  void shouldRejectUnknownType() {
+    assertThrows(IllegalArgumentException.class, () -> decoder.decode(buffer("PING\r\n")));
+  }
+
+  @Test
+  void shouldRejectInvalidLength() {
+    assertThrows(IllegalArgumentException.class, () -> decoder.decode(buffer("*1\r\n$x\r\n")));
+  }
+
+  private static ByteBuffer buffer(String input) {
+    return ByteBuffer.wrap(input.getBytes(StandardCharsets.UTF_8));
+  }
+}
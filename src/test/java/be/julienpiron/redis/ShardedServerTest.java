@@ -0,0 +1,219 @@
+package be.julienpiron.redis;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import org.junit.jupiter.api.*;
+
+public class ShardedServerTest {
+  private static final String CROSSSLOT =
+      "-CROSSSLOT Keys in request don't hash to the same slot\r\n";
+
+  private TestServer server;
+  private Thread serverThread;
+  private Shards shards = new Shards(4);
+  // Two keys on one shard and one on another.
+  private String owl = "owl";
+  private String sameShard;
+  private String otherShard;
+
+  @BeforeEach
+  void startServer() throws IOException {
+    server = createServer();
+    serverThread = new Thread(() -> server.start());
+    serverThread.start();
+
+    for (int i = 0; sameShard == null || otherShard == null; i++) {
+      String key = "owl" + i;
+
+      if (shards.shardOf(key) == shards.shardOf(owl)) {
+        sameShard = key;
+      } else {
+        otherShard = key;
+      }
+    }
+
+    await().atMost(200, MILLISECONDS).until(() -> server.isRunning());
+  }
+
+  @AfterEach
+  void stopServer() {
+    server.stop();
+    shards.stop();
+  }
+
+  protected TestServer createServer() throws IOException {
+    return new TestServer(IOMode.THREADS, 4);
+  }
+
+  @Test
+  void shouldSetAndGetKeysOnEveryShard() throws Exception {
+    List<String> responses =
+        run(
+            client ->
+                List.of(
+                    client.send("SET", owl, "Hedwig"),
+                    client.send("SET", otherShard, "Errol"),
+                    client.send("GET", owl),
+                    client.send("GET", otherShard)));
+
+    assertEquals(List.of("+OK\r\n", "+OK\r\n", "$6\r\nHedwig\r\n", "$5\r\nErrol\r\n"), responses);
+  }
+
+  @Test
+  void shouldSplitMultiKeyCommandsAcrossShards() throws Exception {
+    List<String> responses =
+        run(
+            client ->
+                List.of(
+                    client.send("MSET", owl, "Hedwig", otherShard, "Errol", sameShard, "Pig"),
+                    client.send("MGET", otherShard, "missing", owl, sameShard),
+                    client.send("EXISTS", owl, otherShard, "missing"),
+                    client.send("DEL", owl, otherShard, sameShard),
+                    client.send("MGET", owl, otherShard)));
+
+    assertEquals(
+        List.of(
+            "+OK\r\n",
+            "*4\r\n$5\r\nErrol\r\n$-1\r\n$6\r\nHedwig\r\n$3\r\nPig\r\n",
+            ":2\r\n",
+            ":3\r\n",
+            "*2\r\n$-1\r\n$-1\r\n"),
+        responses);
+  }
+
+  @Test
+  void shouldRefuseOtherCommandsWhoseKeysSpanShards() throws Exception {
+    List<String> responses =
+        run(
+            client ->
+                List.of(
+                    client.send("MSETNX", owl, "Hedwig", otherShard, "Errol"),
+                    client.send("MSETNX", owl, "Hedwig", sameShard, "Pig"),
+                    client.send("WATCH", owl, otherShard)));
+
+    assertEquals(List.of(CROSSSLOT, ":1\r\n", CROSSSLOT), responses);
+  }
+
+  @Test
+  void shouldRunEXECOnTheShardOwningItsKeys() throws Exception {
+    List<String> responses =
+        run(
+            client ->
+                List.of(
+                    client.send("WATCH", owl),
+                    client.send("MULTI"),
+                    client.send("SET", owl, "41"),
+                    client.send("INCR", sameShard),
+                    client.send("EXEC"),
+                    client.send("GET", owl)));
+
+    assertEquals(
+        List.of(
+            "+OK\r\n",
+            "+OK\r\n",
+            "+QUEUED\r\n",
+            "+QUEUED\r\n",
+            "*2\r\n+OK\r\n:1\r\n",
+            "$2\r\n41\r\n"),
+        responses);
+  }
+
+  @Test
+  void shouldRefuseAnEXECWhoseKeysSpanShards() throws Exception {
+    List<String> responses =
+        run(
+            client ->
+                List.of(
+                    client.send("MULTI"),
+                    client.send("SET", owl, "Hedwig"),
+                    client.send("SET", otherShard, "Errol"),
+                    client.send("EXEC"),
+                    client.send("EXEC"),
+                    client.send("MGET", owl, otherShard)));
+
+    assertEquals(
+        List.of(
+            "+OK\r\n",
+            "+QUEUED\r\n",
+            "+QUEUED\r\n",
+            CROSSSLOT,
+            "-ERR EXEC without MULTI\r\n",
+            "*2\r\n$-1\r\n$-1\r\n"),
+        responses);
+  }
+
+  @Test
+  void shouldWakeABlockedReadFromAnotherConnection() throws Exception {
+    try (TestClient client = new TestClient(server)) {
+      CompletableFuture<String> response =
+          CompletableFuture.supplyAsync(
+              () -> client.send("XREAD", "BLOCK", "0", "STREAMS", owl, "$"));
+
+      Thread.sleep(100);
+      run(other -> other.send("XADD", owl, "1-1", "name", "Hedwig"));
+
+      assertTrue(response.get(1000, MILLISECONDS).contains("Hedwig"));
+      assertEquals("+PONG\r\n", client.send("PING"));
+    }
+  }
+
+  @Test
+  void shouldAnswerPipelinedRequestsInOrder() throws Exception {
+    String expected =
+        "+OK\r\n"
+            + "+OK\r\n"
+            + "+PONG\r\n"
+            + "$6\r\nHedwig\r\n"
+            + "*2\r\n$6\r\nHedwig\r\n$5\r\nErrol\r\n"
+            + ":2\r\n"
+            + "$5\r\nErrol\r\n"
+            + ":2\r\n";
+
+    String response =
+        run(
+            client -> {
+              try {
+                return client.pipeline(
+                    expected.length(),
+                    new String[] {"SET", owl, "Hedwig"},
+                    new String[] {"SET", otherShard, "Errol"},
+                    new String[] {"PING"},
+                    new String[] {"GET", owl},
+                    new String[] {"MGET", owl, otherShard},
+                    new String[] {"EXISTS", owl, otherShard, sameShard},
+                    new String[] {"GET", otherShard},
+                    new String[] {"DEL", owl, otherShard, sameShard});
+              } catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+            });
+
+    assertEquals(expected, response);
+  }
+
+  @Test
+  void shouldNotSaveWithShards() throws Exception {
+    assertEquals(
+        "-ERR Saving is not available with shards\r\n", run(client -> client.send("SAVE")));
+  }
+
+  private <T> T run(Function<TestClient, T> action) throws Exception {
+    CompletableFuture<T> future =
+        CompletableFuture.supplyAsync(
+            () -> {
+              try (TestClient client = new TestClient(server)) {
+                return action.apply(client);
+              } catch (Exception e) {
+                throw new RuntimeException(e);
+              }
+            });
+
+    return future.get(2000, MILLISECONDS);
+  }
+}
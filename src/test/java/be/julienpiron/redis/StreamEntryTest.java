@@ -0,0 +1,206 @@
+package be.julienpiron.redis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class StreamEntryTest {
+  private final Clock clock = Clock.systemUTC();
+  private StreamEntry stream;
+
+  @BeforeEach
+  void setUp() {
+    stream = new StreamEntry();
+
+    // Spans several chunks, with sequence bumps, millisecond jumps and a change of fields.
+    for (int i = 1; i <= 1000; i++) {
+      long milliseconds = 1_526_985_054_000L + i / 3 * 1000;
+      List<String> values =
+          i % 50 == 0
+              ? List.of("humidity", Integer.toString(i))
+              : List.of("temperature", Integer.toString(i), "place", "Hogwarts");
+      stream.add(milliseconds + "-" + i, values, clock);
+    }
+  }
+
+  @Test
+  void shouldReturnEveryEntryInOrder() {
+    List<Stream> all = stream.all();
+
+    assertEquals(1000, all.size());
+    assertEquals(1000, stream.length());
+
+    for (int i = 0; i < all.size(); i++) {
+      assertEquals(i + 1, all.get(i).id().sequence());
+    }
+  }
+
+  @Test
+  void shouldKeepFieldsOfEachEntry() {
+    List<Stream> all = stream.all();
+
+    assertEquals(List.of("temperature", "1", "place", "Hogwarts"), all.get(0).values());
+    assertEquals(List.of("humidity", "50"), all.get(49).values());
+    assertEquals(List.of("temperature", "51", "place", "Hogwarts"), all.get(50).values());
+  }
+
+  @Test
+  void shouldReturnRangesAcrossChunks() {
+    StreamId from = stream.all().get(95).id();
+    StreamId to = stream.all().get(304).id();
+
+    List<Stream> range = stream.range(from, to);
+
+    assertEquals(210, range.size());
+    assertEquals(from, range.getFirst().id());
+    assertEquals(to, range.getLast().id());
+  }
+
+  @Test
+  void shouldWalkRangesBackwardsInBatches() {
+    List<Stream> all = stream.all();
+    StreamEntry.Range range = stream.range(all.get(95).id(), all.get(304).id(), 150, true);
+
+    assertEquals(150, range.size());
+
+    List<Stream> walked = new ArrayList<>();
+    List<Stream> batch;
+    while (!(batch = range.next()).isEmpty()) {
+      assertTrue(batch.size() <= StreamChunk.MAX_ENTRIES);
+      walked.addAll(batch);
+    }
+
+    assertEquals(150, walked.size());
+    assertEquals(all.get(304).id(), walked.getFirst().id());
+    assertEquals(all.get(155).id(), walked.getLast().id());
+  }
+
+  @Test
+  void shouldReturnTailAfterAnId() {
+    StreamId id = stream.all().get(899).id();
+
+    assertEquals(100, stream.tail(id, false).size());
+    assertEquals(101, stream.tail(id, true).size());
+    assertEquals(0, stream.tail(stream.all().getLast().id(), false).size());
+  }
+
+  @Test
+  void shouldReturnNothingOutsideTheStream() {
+    assertEquals(0, stream.range(new StreamId(0, 0), new StreamId(1, 0)).size());
+    assertEquals(
+        0, stream.range(new StreamId(Long.MAX_VALUE, 0), new StreamId(Long.MAX_VALUE, 1)).size());
+  }
+
+  @Test
+  void shouldTrimExactlyToMaxLength() {
+    assertEquals(750, stream.trim(StreamEntry.Trim.maxLength(250, false)));
+
+    List<Stream> all = stream.all();
+
+    assertEquals(250, stream.length());
+    assertEquals(250, all.size());
+    assertEquals(751, all.getFirst().id().sequence());
+    assertEquals(List.of("temperature", "751", "place", "Hogwarts"), all.getFirst().values());
+    assertEquals(0, stream.trim(StreamEntry.Trim.maxLength(250, false)));
+  }
+
+  @Test
+  void shouldOnlyDropWholeChunksWhenApproximate() {
+    List<Stream> before = stream.all();
+    long removed = stream.trim(StreamEntry.Trim.maxLength(250, true));
+
+    assertTrue(stream.length() >= 250 && stream.length() < 250 + StreamChunk.MAX_ENTRIES);
+    assertEquals(1000 - removed, stream.length());
+    assertEquals(before.get((int) removed).id(), stream.all().getFirst().id());
+  }
+
+  @Test
+  void shouldTrimEntriesBelowMinId() {
+    StreamId minId = stream.all().get(420).id();
+
+    assertEquals(420, stream.trim(StreamEntry.Trim.minId(minId, false)));
+    assertEquals(minId, stream.all().getFirst().id());
+    assertEquals(580, stream.range(StreamEntry.MIN_ID, StreamEntry.MAX_ID, 1000, true).size());
+  }
+
+  @Test
+  void shouldKeepTheLastIdOnceEmpty() {
+    StreamId last = stream.lastId();
+
+    assertEquals(1000, stream.trim(StreamEntry.Trim.maxLength(0, true)));
+    assertEquals(0, stream.length());
+    assertEquals(List.of(), stream.all());
+    assertEquals(last, stream.lastId());
+    assertThrows(
+        IllegalArgumentException.class, () -> stream.add("1-1", List.of("n", "1"), clock));
+  }
+
+  @Test
+  void shouldNotChangeRangesTakenBeforeTrimming() {
+    StreamEntry.Range range = stream.range(StreamEntry.MIN_ID, StreamEntry.MAX_ID, 1000, false);
+
+    stream.trim(StreamEntry.Trim.maxLength(10, false));
+
+    assertEquals(1000, range.size());
+    assertEquals(1000, range.all().size());
+  }
+
+  @Test
+  void shouldStayCappedWhenTrimmedOnEveryAdd() {
+    StreamEntry exact = new StreamEntry();
+    StreamEntry approximate = new StreamEntry();
+
+    for (int i = 1; i <= 10_000; i++) {
+      List<String> values = List.of("n", Integer.toString(i));
+      exact.add("1-" + i, values, clock);
+      exact.trim(StreamEntry.Trim.maxLength(1000, false));
+      approximate.add("1-" + i, values, clock);
+      approximate.trim(StreamEntry.Trim.maxLength(1000, true));
+    }
+
+    assertEquals(1000, exact.length());
+    assertEquals(9001, exact.all().getFirst().id().sequence());
+    assertTrue(approximate.length() >= 1000);
+    assertTrue(approximate.length() < 1000 + StreamChunk.MAX_ENTRIES);
+    assertEquals(10_000, approximate.all().getLast().id().sequence());
+  }
+
+  @Test
+  void shouldNeverExposeTornStateToConcurrentReaders() throws Exception {
+    StreamEntry live = new StreamEntry();
+    int entries = 20_000;
+
+    Thread writer =
+        Thread.ofPlatform()
+            .start(
+                () -> {
+                  for (int i = 1; i <= entries; i++) {
+                    live.add("1-" + i, List.of("n", Integer.toString(i)), clock);
+                  }
+                });
+
+    int seen = 0;
+
+    while (seen < entries) {
+      List<Stream> all = live.all();
+
+      // Every snapshot is a gap free prefix of what the writer appended.
+      for (int i = 0; i < all.size(); i++) {
+        Stream stream = all.get(i);
+        assertEquals(i + 1, stream.id().sequence());
+        assertEquals(List.of("n", Integer.toString(i + 1)), stream.values());
+      }
+
+      assertTrue(all.size() >= seen);
+      seen = all.size();
+    }
+
+    writer.join();
+  }
+}
@@ -26,6 +26,40 @@ class TestClient implements AutoCloseable {
     writer.write(data.encode());
     writer.flush();
 
+    return read();
+  }
+
+  public String sendRaw(String... chunks) throws InterruptedException {
+    for (String chunk : chunks) {
+      writer.write(chunk);
+      writer.flush();
+      Thread.sleep(20);
+    }
+
+    return read();
+  }
+
+  public String pipeline(int responseLength, String[]... commands) throws IOException {
+    for (String[] command : commands) {
+      writer.write(new RESP.Array(command).encode());
+    }
+    writer.flush();
+
+    char[] response = new char[responseLength];
+    int length = 0;
+
+    while (length < responseLength) {
+      int read = reader.read(response, length, responseLength - length);
+      if (read == -1) {
+        break;
+      }
+      length += read;
+    }
+
+    return new String(response, 0, length);
+  }
+
+  private String read() {
     char[] response = new char[2048];
     int length;
     try {
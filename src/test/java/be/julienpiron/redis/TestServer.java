@@ -2,10 +2,25 @@ package be.julienpiron.redis;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.nio.file.Files;
 
 public class TestServer extends Server {
   TestServer() throws IOException {
-    super(TestServer.getRandomPort());
+    this(IOMode.THREADS);
+  }
+
+  TestServer(IOMode ioMode) throws IOException {
+    this(ioMode, 0);
+  }
+
+  TestServer(IOMode ioMode, int shards) throws IOException {
+    super(
+        Config.defaults()
+            .withPort(TestServer.getRandomPort())
+            .withIOMode(ioMode)
+            .withIOThreads(2)
+            .withShards(shards)
+            .withDir(Files.createTempDirectory("redis-test").toString()));
   }
 
   public void setStore(TestStore store) {
@@ -0,0 +1,10 @@
+package be.julienpiron.redis;
+
+import java.io.IOException;
+
+public class VirtualThreadMainTest extends MainTest {
+  @Override
+  protected TestServer createServer() throws IOException {
+    return new TestServer(IOMode.VIRTUAL_THREADS);
+  }
+}